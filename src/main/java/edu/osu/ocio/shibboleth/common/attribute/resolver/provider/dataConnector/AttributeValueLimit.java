@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.osu.ocio.shibboleth.common.attribute.resolver.provider.dataConnector;
+
+import java.util.regex.Pattern;
+
+/**
+ * Restricts the values of a single LDAP attribute that are retained by the connector.
+ *
+ * @author Scott Cantor
+ *
+ */
+public class AttributeValueLimit {
+
+	/** Name of the LDAP attribute. */
+	private final String attributeId;
+
+	/** Maximum number of values to retain, or 0 for no limit. */
+	private final int maxValues;
+
+	/** Optional expression that values must match to be retained. */
+	private final Pattern valuePattern;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id		name of the LDAP attribute
+	 * @param max		maximum number of values to retain, or 0 for no limit
+	 * @param pattern	regular expression that values must match, or null
+	 */
+	public AttributeValueLimit(String id, int max, String pattern) {
+		attributeId = id;
+		maxValues = max;
+		valuePattern = (pattern != null) ? Pattern.compile(pattern) : null;
+	}
+
+	/**
+	 * Gets the name of the LDAP attribute.
+	 * @return	the attribute name
+	 */
+	public String getAttributeId() {
+		return attributeId;
+	}
+
+	/**
+	 * Gets the maximum number of values to retain.
+	 * @return	the value limit, or 0 for no limit
+	 */
+	public int getMaxValues() {
+		return maxValues;
+	}
+
+	/**
+	 * Returns true iff the limit can be pushed down to the directory as a value range,
+	 * which requires that every value returned be retained.
+	 *
+	 * @return	indicator of whether a value range can be requested
+	 */
+	public boolean isRangeable() {
+		return maxValues > 0 && valuePattern == null;
+	}
+
+	/**
+	 * Returns true iff the number of values retained so far has reached the limit.
+	 *
+	 * @param count	number of values retained so far
+	 * @return	indicator of whether the limit has been reached
+	 */
+	public boolean isFull(int count) {
+		return maxValues > 0 && count >= maxValues;
+	}
+
+	/**
+	 * Returns true iff a value should be retained.
+	 *
+	 * @param value	the value to check
+	 * @return	indicator of whether to retain the value
+	 */
+	public boolean accepts(Object value) {
+		return valuePattern == null || (value instanceof String && valuePattern.matcher((String) value).matches());
+	}
+}
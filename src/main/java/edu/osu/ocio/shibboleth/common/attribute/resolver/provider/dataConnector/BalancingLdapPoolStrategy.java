@@ -0,0 +1,501 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.osu.ocio.shibboleth.common.attribute.resolver.provider.dataConnector;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.common.attribute.resolver.provider.dataConnector.LdapPoolStrategy;
+import edu.internet2.middleware.shibboleth.common.attribute.resolver.provider.dataConnector.LdapPoolVTStrategy;
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.LdapConfig;
+import edu.vt.middleware.ldap.SearchFilter;
+import edu.vt.middleware.ldap.handler.ConnectionHandler;
+import edu.vt.middleware.ldap.handler.DefaultConnectionHandler;
+import edu.vt.middleware.ldap.handler.TlsConnectionHandler;
+import edu.vt.middleware.ldap.pool.AbstractLdapFactory;
+import edu.vt.middleware.ldap.pool.DefaultLdapFactory;
+import edu.vt.middleware.ldap.pool.LdapFactory;
+import edu.vt.middleware.ldap.pool.LdapPoolConfig;
+
+/**
+ * Pool strategy that keeps a separate pool for each LDAP URL and routes each checkout to
+ * the better of two randomly chosen replicas, based on moving averages of response time
+ * and error rate. Replicas whose error rate crosses a threshold are ejected for a time.
+ *
+ * <p>Response time is measured from checkout to checkin, which covers the single search
+ * the connector performs per checkout.</p>
+ *
+ * @author Scott Cantor
+ *
+ */
+public class BalancingLdapPoolStrategy implements LdapPoolStrategy {
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(BalancingLdapPoolStrategy.class);
+
+	/** Configuration applied to each replica's pool. */
+	private LdapPoolConfig ldapPoolConfig = new LdapPoolConfig();
+
+	/** Factory supplying the connection configuration. */
+	private LdapFactory<Ldap> ldapFactory;
+
+	/** Whether to block when a replica's pool is empty. */
+	private boolean blockWhenEmpty = true;
+
+	/** Time in ms to block when a replica's pool is empty, or 0 to wait indefinitely. */
+	private int blockWaitTime;
+
+	/** Weight given to each new sample in the moving averages. */
+	private double smoothing = 0.1;
+
+	/** Error rate at which a replica is ejected. */
+	private double errorThreshold = 0.5;
+
+	/** Time in ms that an ejected replica is avoided. */
+	private long ejectionTime = 30000;
+
+	/** The replicas, one per URL. */
+	private Replica[] replicas;
+
+	/** Source of replica choices. */
+	private final Random random = new Random();
+
+	/** {@inheritDoc} */
+	public void setLdapPoolConfig(LdapPoolConfig config) {
+		ldapPoolConfig = config;
+	}
+
+	/** {@inheritDoc} */
+	public void setLdapFactory(LdapFactory<Ldap> factory) {
+		ldapFactory = factory;
+	}
+
+	/** {@inheritDoc} */
+	public void setBlockWhenEmpty(boolean b) {
+		blockWhenEmpty = b;
+	}
+
+	/**
+	 * Sets the time to block when a replica's pool is empty.
+	 * @param ms	time in ms, or 0 to wait indefinitely
+	 */
+	public void setBlockWaitTime(int ms) {
+		blockWaitTime = ms;
+	}
+
+	/**
+	 * Sets the weight given to each new sample in the moving averages.
+	 * @param weight	a value between 0 and 1
+	 */
+	public void setSmoothing(double weight) {
+		smoothing = weight;
+	}
+
+	/**
+	 * Sets the error rate at which a replica is ejected.
+	 * @param threshold	a value between 0 and 1
+	 */
+	public void setErrorThreshold(double threshold) {
+		errorThreshold = threshold;
+	}
+
+	/**
+	 * Sets the time that an ejected replica is avoided.
+	 * @param ms	time in ms
+	 */
+	public void setEjectionTime(long ms) {
+		ejectionTime = ms;
+	}
+
+	/** {@inheritDoc} */
+	public void initialize() {
+		if (ldapFactory instanceof DefaultLdapFactory) {
+			// The template connection only supplies configuration.
+			((DefaultLdapFactory) ldapFactory).setConnectOnCreate(false);
+		}
+		LdapConfig config = ldapFactory.create().getLdapConfig();
+		AbstractLdapFactory<Ldap> parent = (ldapFactory instanceof AbstractLdapFactory)
+				? (AbstractLdapFactory<Ldap>) ldapFactory : null;
+
+		String[] urls = config.getLdapUrl().trim().split("\\s+");
+		replicas = new Replica[urls.length];
+		for (int i = 0; i < urls.length; ++i) {
+			replicas[i] = new Replica(urls[i]);
+			ReplicaLdapFactory factory = new ReplicaLdapFactory(config, replicas[i]);
+			if (parent != null) {
+				factory.setLdapActivator(parent.getLdapActivator());
+				factory.setLdapPassivator(parent.getLdapPassivator());
+				factory.setLdapValidator(parent.getLdapValidator());
+			}
+
+			LdapPoolVTStrategy pool = new LdapPoolVTStrategy();
+			pool.setLdapPoolConfig(ldapPoolConfig);
+			pool.setBlockWhenEmpty(blockWhenEmpty);
+			if (blockWaitTime > 0) {
+				pool.setBlockWaitTime(blockWaitTime);
+			}
+			pool.setLdapFactory(factory);
+			replicas[i].pool = pool;
+			try {
+				pool.initialize();
+			} catch (RuntimeException e) {
+				log.warn("LDAP pool for replica {} failed to initialize: {}", urls[i], e.getMessage());
+				replicas[i].eject(System.currentTimeMillis());
+			}
+		}
+		log.info("Balancing LDAP searches across {} replica(s)", replicas.length);
+	}
+
+	/** {@inheritDoc} */
+	public Ldap checkOut() throws Exception {
+		Replica replica = choose(null);
+		try {
+			return replica.checkOut();
+		} catch (Exception e) {
+			replica.record(0, true);
+			Replica alternate = choose(replica);
+			if (alternate == null) {
+				throw e;
+			}
+			log.warn("Unable to obtain connection to replica {}, trying {}: {}",
+					new Object[] {replica.url, alternate.url, e.getMessage()});
+			try {
+				return alternate.checkOut();
+			} catch (Exception e2) {
+				alternate.record(0, true);
+				throw e2;
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void checkIn(Ldap ldap) throws Exception {
+		ReplicaLdap r = (ReplicaLdap) ldap;
+		r.replica.active.decrementAndGet();
+		r.replica.record(System.nanoTime() - r.checkOutTime, r.failed);
+		r.replica.pool.checkIn(r);
+	}
+
+	/**
+	 * Picks the cheaper of two distinct replicas chosen at random, skipping ejected replicas.
+	 * If every replica is ejected, the one due back first is returned.
+	 *
+	 * @param exclude	a replica to avoid, or null
+	 * @return	the chosen replica, or null if none is eligible
+	 */
+	private Replica choose(Replica exclude) {
+		long now = System.currentTimeMillis();
+		int n = replicas.length;
+		if (n > 1) {
+			int i = random.nextInt(n);
+			int j = random.nextInt(n - 1);
+			if (j >= i) {
+				++j;
+			}
+			Replica a = replicas[i];
+			Replica b = replicas[j];
+			if (a != exclude && b != exclude && a.isAvailable(now) && b.isAvailable(now)) {
+				return (a.cost() <= b.cost()) ? a : b;
+			}
+		}
+
+		Replica best = null;
+		for (Replica r : replicas) {
+			if (r != exclude && r.isAvailable(now) && (best == null || r.cost() < best.cost())) {
+				best = r;
+			}
+		}
+		if (best == null) {
+			for (Replica r : replicas) {
+				if (r != exclude && (best == null || r.ejectedUntil < best.ejectedUntil)) {
+					best = r;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Updates a moving average stored as the bits of a double.
+	 *
+	 * @param average	the stored average
+	 * @param sample	the new sample
+	 * @return	the updated average
+	 */
+	private double update(AtomicLong average, double sample) {
+		while (true) {
+			long bits = average.get();
+			double current = Double.longBitsToDouble(bits);
+			double next = current + smoothing * (sample - current);
+			if (average.compareAndSet(bits, Double.doubleToLongBits(next))) {
+				return next;
+			}
+		}
+	}
+
+	/** A directory replica and its statistics. */
+	private final class Replica {
+
+		/** URL of the replica. */
+		private final String url;
+
+		/** Connection pool for the replica. */
+		private LdapPoolStrategy pool;
+
+		/** Number of connections checked out. */
+		private final AtomicInteger active = new AtomicInteger();
+
+		/** Moving average of response time in ns. */
+		private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(0));
+
+		/** Moving average of the error rate. */
+		private final AtomicLong errors = new AtomicLong(Double.doubleToLongBits(0));
+
+		/** Time before which the replica is avoided. */
+		private volatile long ejectedUntil;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param url	URL of the replica
+		 */
+		private Replica(String url) {
+			this.url = url;
+		}
+
+		/**
+		 * Returns true iff the replica is not ejected.
+		 *
+		 * @param now	the current time
+		 * @return	indicator of whether the replica is available
+		 */
+		private boolean isAvailable(long now) {
+			return now >= ejectedUntil;
+		}
+
+		/**
+		 * Gets the relative cost of sending a search to the replica.
+		 *
+		 * @return	the cost
+		 */
+		private double cost() {
+			double errorRate = Math.min(Double.longBitsToDouble(errors.get()), 0.99);
+			return Double.longBitsToDouble(latency.get()) * (active.get() + 1) / (1.0 - errorRate);
+		}
+
+		/**
+		 * Checks out a connection to the replica.
+		 *
+		 * @return	the connection
+		 * @throws Exception	if a connection can't be obtained
+		 */
+		private Ldap checkOut() throws Exception {
+			ReplicaLdap ldap = (ReplicaLdap) pool.checkOut();
+			active.incrementAndGet();
+			ldap.failed = false;
+			ldap.checkOutTime = System.nanoTime();
+			return ldap;
+		}
+
+		/**
+		 * Records the outcome of an operation.
+		 *
+		 * @param elapsed	response time in ns
+		 * @param failed	whether the operation failed
+		 */
+		private void record(long elapsed, boolean failed) {
+			if (!failed) {
+				update(latency, elapsed);
+			}
+			double errorRate = update(errors, failed ? 1.0 : 0.0);
+			if (failed && errorRate >= errorThreshold) {
+				long now = System.currentTimeMillis();
+				if (isAvailable(now)) {
+					log.warn("Ejecting LDAP replica {} with error rate {}", url, errorRate);
+					eject(now);
+				}
+			}
+		}
+
+		/**
+		 * Ejects the replica.
+		 *
+		 * @param now	the current time
+		 */
+		private void eject(long now) {
+			ejectedUntil = now + ejectionTime;
+		}
+	}
+
+	/** Connection pinned to a single replica that notes failed operations. */
+	private static final class ReplicaLdap extends Ldap {
+
+		/** Serial version UID. */
+		private static final long serialVersionUID = 1540212539524577395L;
+
+		/** Replica the connection belongs to. */
+		private final transient Replica replica;
+
+		/** Time of checkout in ns. */
+		private long checkOutTime;
+
+		/** Whether an operation failed since checkout. */
+		private boolean failed;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param config	connection configuration
+		 * @param replica	replica to connect to
+		 */
+		private ReplicaLdap(LdapConfig config, Replica replica) {
+			super(config);
+			this.replica = replica;
+			ConnectionHandler template = config.getConnectionHandler();
+			if (template instanceof TlsConnectionHandler) {
+				connectionHandler = new ReplicaTlsConnectionHandler((TlsConnectionHandler) template, replica.url);
+			} else if (template instanceof DefaultConnectionHandler) {
+				connectionHandler = new ReplicaConnectionHandler((DefaultConnectionHandler) template, replica.url);
+			} else {
+				throw new IllegalStateException("Unsupported connection handler: " + template.getClass().getName());
+			}
+		}
+
+		/** {@inheritDoc} */
+		public Iterator<SearchResult> search(SearchFilter filter, String[] retAttrs) throws NamingException {
+			try {
+				return super.search(filter, retAttrs);
+			} catch (NamingException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		/** {@inheritDoc} */
+		public Attributes getAttributes(String dn, String[] retAttrs) throws NamingException {
+			try {
+				return super.getAttributes(dn, retAttrs);
+			} catch (NamingException e) {
+				failed = true;
+				throw e;
+			}
+		}
+	}
+
+	/** Factory for connections to a single replica. */
+	private static final class ReplicaLdapFactory extends AbstractLdapFactory<Ldap> {
+
+		/** Connection configuration. */
+		private final LdapConfig config;
+
+		/** Replica to connect to. */
+		private final Replica replica;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param config	connection configuration
+		 * @param replica	replica to connect to
+		 */
+		private ReplicaLdapFactory(LdapConfig config, Replica replica) {
+			this.config = config;
+			this.replica = replica;
+		}
+
+		/** {@inheritDoc} */
+		public Ldap create() {
+			Ldap ldap = new ReplicaLdap(config, replica);
+			try {
+				ldap.connect();
+			} catch (NamingException e) {
+				logger.error("unable to connect to the ldap", e);
+			}
+			return ldap;
+		}
+
+		/** {@inheritDoc} */
+		public void destroy(Ldap ldap) {
+			ldap.close();
+		}
+	}
+
+	/** Connection handler pinned to a single URL. */
+	private static final class ReplicaConnectionHandler extends DefaultConnectionHandler {
+
+		/** URL to connect to. */
+		private final String url;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param template	handler to copy settings from
+		 * @param url		URL to connect to
+		 */
+		private ReplicaConnectionHandler(DefaultConnectionHandler template, String url) {
+			super(template);
+			this.url = url;
+		}
+
+		/** {@inheritDoc} */
+		protected String[] parseLdapUrl(String ldapUrl, ConnectionStrategy strategy) {
+			return new String[] {url};
+		}
+
+		/** {@inheritDoc} */
+		public ReplicaConnectionHandler newInstance() {
+			return new ReplicaConnectionHandler(this, url);
+		}
+	}
+
+	/** StartTLS connection handler pinned to a single URL. */
+	private static final class ReplicaTlsConnectionHandler extends TlsConnectionHandler {
+
+		/** URL to connect to. */
+		private final String url;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param template	handler to copy settings from
+		 * @param url		URL to connect to
+		 */
+		private ReplicaTlsConnectionHandler(TlsConnectionHandler template, String url) {
+			super(template);
+			this.url = url;
+		}
+
+		/** {@inheritDoc} */
+		protected String[] parseLdapUrl(String ldapUrl, ConnectionStrategy strategy) {
+			return new String[] {url};
+		}
+
+		/** {@inheritDoc} */
+		public ReplicaTlsConnectionHandler newInstance() {
+			return new ReplicaTlsConnectionHandler(this, url);
+		}
+	}
+}
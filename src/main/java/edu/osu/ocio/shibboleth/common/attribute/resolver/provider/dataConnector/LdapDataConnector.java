@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.osu.ocio.shibboleth.common.attribute.resolver.provider.dataConnector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import net.sf.ehcache.Cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.common.attribute.BaseAttribute;
+import edu.internet2.middleware.shibboleth.common.attribute.resolver.AttributeResolutionException;
+import edu.internet2.middleware.shibboleth.common.attribute.resolver.provider.dataConnector.LdapPoolStrategy;
+import edu.vt.middleware.ldap.Ldap;
+
+/**
+ * LDAP connector that bounds the number of values held for very large multi-valued
+ * attributes, using Active Directory range retrieval to avoid transferring them when possible.
+ *
+ * @author Scott Cantor
+ *
+ */
+public class LdapDataConnector
+		extends
+		edu.internet2.middleware.shibboleth.common.attribute.resolver.provider.dataConnector.LdapDataConnector {
+
+	/** Matches the range option attached to a partially returned attribute. */
+	private static final Pattern RANGE_OPTION = Pattern.compile(";range=(\\d+)-(\\d+|\\*)", Pattern.CASE_INSENSITIVE);
+
+	/** Class logger. */
+	private final Logger log = LoggerFactory.getLogger(LdapDataConnector.class);
+
+	/** Value limits keyed by lowercased attribute name. */
+	private final Map<String, AttributeValueLimit> valueLimits;
+
+	/** Whether to request and follow value ranges. */
+	private final boolean rangeRetrieval;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool				LDAP connection pool
+	 * @param cache				results cache, or null
+	 * @param limits			value limits to apply
+	 * @param rangeRetrieval	whether to request and follow value ranges
+	 */
+	public LdapDataConnector(LdapPoolStrategy pool, Cache cache, Collection<AttributeValueLimit> limits,
+			boolean rangeRetrieval) {
+		super(pool, cache);
+		valueLimits = new HashMap<String, AttributeValueLimit>();
+		if (limits != null) {
+			for (AttributeValueLimit limit : limits) {
+				valueLimits.put(limit.getAttributeId().toLowerCase(), limit);
+			}
+		}
+		this.rangeRetrieval = rangeRetrieval;
+	}
+
+	/** {@inheritDoc} */
+	public void setReturnAttributes(String[] attributes) {
+		if (attributes != null && rangeRetrieval && valueLimits != null) {
+			// Push value limits down to the directory so the excess is never sent.
+			String[] ranged = new String[attributes.length];
+			for (int i = 0; i < attributes.length; ++i) {
+				AttributeValueLimit limit = valueLimits.get(attributes[i].toLowerCase());
+				if (limit != null && limit.isRangeable()) {
+					ranged[i] = attributes[i] + ";range=0-" + (limit.getMaxValues() - 1);
+				} else {
+					ranged[i] = attributes[i];
+				}
+			}
+			super.setReturnAttributes(ranged);
+		} else {
+			super.setReturnAttributes(attributes);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@SuppressWarnings("rawtypes")
+	protected Map<String, BaseAttribute> buildBaseAttributes(Iterator<SearchResult> results)
+			throws AttributeResolutionException {
+		if (valueLimits.isEmpty() && !rangeRetrieval) {
+			return super.buildBaseAttributes(results);
+		}
+
+		List<SearchResult> trimmed = new ArrayList<SearchResult>(1);
+		while (results.hasNext()) {
+			SearchResult result = results.next();
+			try {
+				result.setAttributes(trimAttributes(result.getName(), result.getAttributes()));
+			} catch (NamingException e) {
+				log.debug("Error processing LDAP attributes for " + getId(), e);
+				throw new AttributeResolutionException("Error processing LDAP attributes for " + getId(), e);
+			}
+			trimmed.add(result);
+		}
+		return super.buildBaseAttributes(trimmed.iterator());
+	}
+
+	/**
+	 * Applies value limits to a set of attributes and completes any partially returned ranges.
+	 *
+	 * @param dn			DN of the entry
+	 * @param attributes	attributes returned from the directory
+	 * @return	attributes to use
+	 * @throws NamingException	if an error occurs reading the attributes
+	 */
+	private Attributes trimAttributes(String dn, Attributes attributes) throws NamingException {
+		Attributes trimmed = new BasicAttributes(true);
+		NamingEnumeration<? extends Attribute> attrs = attributes.getAll();
+		while (attrs.hasMore()) {
+			Attribute attr = attrs.next();
+			String id = attr.getID();
+			Matcher range = RANGE_OPTION.matcher(id);
+			boolean ranged = range.find();
+			if (ranged) {
+				id = id.substring(0, range.start()) + id.substring(range.end());
+			}
+			AttributeValueLimit limit = valueLimits.get(id.toLowerCase());
+			if (!ranged && limit == null) {
+				trimmed.put(attr);
+				continue;
+			}
+
+			// Ordered attributes skip the linear duplicate check on every add.
+			Attribute copy = new BasicAttribute(id, true);
+			boolean full = copyValues(attr, copy, limit);
+			if (ranged && rangeRetrieval && !full && !"*".equals(range.group(2))) {
+				retrieveRanges(dn, id, Long.parseLong(range.group(2)) + 1, copy, limit);
+			}
+			trimmed.put(copy);
+		}
+		return trimmed;
+	}
+
+	/**
+	 * Copies the values of an attribute subject to a limit.
+	 *
+	 * @param source	attribute to copy from
+	 * @param dest		attribute to copy to
+	 * @param limit		limit to apply, or null
+	 * @return	true iff the limit has been reached
+	 * @throws NamingException	if an error occurs reading the values
+	 */
+	private boolean copyValues(Attribute source, Attribute dest, AttributeValueLimit limit) throws NamingException {
+		NamingEnumeration<?> values = source.getAll();
+		while (values.hasMore()) {
+			Object value = values.next();
+			if (limit == null) {
+				dest.add(value);
+			} else if (limit.accepts(value)) {
+				dest.add(value);
+				if (limit.isFull(dest.size())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Retrieves the remaining value ranges of an attribute until it's complete or the limit is reached.
+	 *
+	 * @param dn		DN of the entry
+	 * @param id		name of the attribute
+	 * @param start		index of the first value to retrieve
+	 * @param dest		attribute to copy values to
+	 * @param limit		limit to apply, or null
+	 */
+	private void retrieveRanges(String dn, String id, long start, Attribute dest, AttributeValueLimit limit) {
+		Ldap ldap = null;
+		try {
+			ldap = getLdapPool().checkOut();
+			while (true) {
+				log.debug("Retrieving values of {} from index {} for {}", new Object[] {id, start, dn});
+				Attributes page = ldap.getAttributes(dn, new String[] {id + ";range=" + start + "-*"});
+				Attribute attr = null;
+				NamingEnumeration<? extends Attribute> attrs = page.getAll();
+				while (attr == null && attrs.hasMore()) {
+					Attribute a = attrs.next();
+					if (a.getID().toLowerCase().startsWith(id.toLowerCase() + ";range=")) {
+						attr = a;
+					}
+				}
+				if (attr == null || copyValues(attr, dest, limit)) {
+					return;
+				}
+				Matcher range = RANGE_OPTION.matcher(attr.getID());
+				if (!range.find() || "*".equals(range.group(2))) {
+					return;
+				}
+				start = Long.parseLong(range.group(2)) + 1;
+			}
+		} catch (Exception e) {
+			log.warn("Range retrieval of {} failed, keeping {} values: {}",
+					new Object[] {id, dest.size(), e.getMessage()});
+		} finally {
+			if (ldap != null) {
+				try {
+					getLdapPool().checkIn(ldap);
+				} catch (Exception e) {
+					log.error("Unable to return connection to pool for " + getId(), e);
+				}
+			}
+		}
+	}
+}
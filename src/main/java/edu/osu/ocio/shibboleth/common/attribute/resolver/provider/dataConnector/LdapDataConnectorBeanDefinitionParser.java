@@ -16,9 +16,22 @@
 
 package edu.osu.ocio.shibboleth.common.attribute.resolver.provider.dataConnector;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import javax.xml.namespace.QName;
+
+import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.XMLHelper;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.ParserContext;
 import org.w3c.dom.Element;
+
+import edu.internet2.middleware.shibboleth.common.config.SpringConfigurationUtils;
+import edu.internet2.middleware.shibboleth.common.config.attribute.resolver.dataConnector.DataConnectorNamespaceHandler;
 import edu.osu.ocio.shibboleth.config.NamespaceHandler;
+import edu.vt.middleware.ldap.pool.LdapPoolConfig;
 
 /**
  * Parses configuration of our customized LDAP connector.
@@ -32,10 +45,111 @@ public class LdapDataConnectorBeanDefinitionParser
 
     /** Custom LDAP data connector type name. */
     public static final QName TYPE_NAME = new QName(NamespaceHandler.NAMESPACE, "GracefulPoolLDAPDirectory");
+
+    /** Per-attribute value limit element name. */
+    public static final QName VALUE_LIMIT_ELEMENT_NAME = new QName(NamespaceHandler.NAMESPACE, "ValueLimit");
 	
+    /** Connection pool element name. */
+    private static final QName CONNECTION_POOL_ELEMENT_NAME =
+        new QName(DataConnectorNamespaceHandler.NAMESPACE, "ConnectionPool");
+
     /** {@inheritDoc} */
     protected Class<?> getBeanClass(Element element) {
         return LdapDataConnectorFactoryBean.class;
     }
+
+    /** {@inheritDoc} */
+    protected void doParse(String pluginId, Element pluginConfig, Map<QName, List<Element>> pluginConfigChildren,
+            BeanDefinitionBuilder pluginBuilder, ParserContext parserContext) {
+        super.doParse(pluginId, pluginConfig, pluginConfigChildren, pluginBuilder, parserContext);
+
+        if (pluginConfig.hasAttributeNS(null, "pagedResultsSize")) {
+            pluginBuilder.addPropertyValue("pagedResultsSize", Integer.parseInt(DatatypeHelper.safeTrim(
+                    pluginConfig.getAttributeNS(null, "pagedResultsSize"))));
+        }
+
+        if (pluginConfig.hasAttributeNS(null, "rangeRetrieval")) {
+            pluginBuilder.addPropertyValue("rangeRetrieval", XMLHelper.getAttributeValueAsBoolean(
+                    pluginConfig.getAttributeNodeNS(null, "rangeRetrieval")));
+        }
+
+        List<Element> limitElements = pluginConfigChildren.get(VALUE_LIMIT_ELEMENT_NAME);
+        if (limitElements != null && !limitElements.isEmpty()) {
+            List<AttributeValueLimit> limits = new ArrayList<AttributeValueLimit>(limitElements.size());
+            for (Element e : limitElements) {
+                int max = 0;
+                if (e.hasAttributeNS(null, "maxValues")) {
+                    max = Integer.parseInt(DatatypeHelper.safeTrim(e.getAttributeNS(null, "maxValues")));
+                }
+                String pattern = null;
+                if (e.hasAttributeNS(null, "valuePattern")) {
+                    pattern = e.getAttributeNS(null, "valuePattern");
+                }
+                limits.add(new AttributeValueLimit(DatatypeHelper.safeTrim(e.getAttributeNS(null, "attributeID")),
+                        max, pattern));
+            }
+            pluginBuilder.addPropertyValue("valueLimits", limits);
+        }
+    }
 	
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("deprecation")
+    protected void processPoolingConfig(String pluginId, Element pluginConfig,
+            Map<QName, List<Element>> pluginConfigChildren, BeanDefinitionBuilder pluginBuilder,
+            ParserContext parserContext) {
+        super.processPoolingConfig(pluginId, pluginConfig, pluginConfigChildren, pluginBuilder, parserContext);
+
+        if (!pluginConfig.hasAttributeNS(null, "balanceReplicas") || !XMLHelper.getAttributeValueAsBoolean(
+                pluginConfig.getAttributeNodeNS(null, "balanceReplicas"))) {
+            return;
+        }
+
+        // Replace the single pool with one per replica, sharing the same pool settings.
+        BalancingLdapPoolStrategy strategy = new BalancingLdapPoolStrategy();
+        List<Element> poolConfigElements = pluginConfigChildren.get(CONNECTION_POOL_ELEMENT_NAME);
+        if (poolConfigElements != null && !poolConfigElements.isEmpty()) {
+            Element poolConfigElement = poolConfigElements.get(0);
+            LdapPoolConfig poolConfig = new LdapPoolConfig();
+            if (poolConfigElement.hasAttributeNS(null, "minPoolSize")) {
+                poolConfig.setMinPoolSize(Integer.parseInt(poolConfigElement.getAttributeNS(null, "minPoolSize")));
+            }
+            if (poolConfigElement.hasAttributeNS(null, "maxPoolSize")) {
+                poolConfig.setMaxPoolSize(Integer.parseInt(poolConfigElement.getAttributeNS(null, "maxPoolSize")));
+            }
+            if (poolConfigElement.hasAttributeNS(null, "validatePeriodically")) {
+                poolConfig.setValidatePeriodically(XMLHelper.getAttributeValueAsBoolean(
+                        poolConfigElement.getAttributeNodeNS(null, "validatePeriodically")));
+            }
+            if (poolConfigElement.hasAttributeNS(null, "validateTimerPeriod")) {
+                poolConfig.setValidateTimerPeriod(SpringConfigurationUtils.parseDurationToMillis("validateTimerPeriod",
+                        poolConfigElement.getAttributeNS(null, "validateTimerPeriod"), 0));
+            }
+            if (poolConfigElement.hasAttributeNS(null, "expirationTime")) {
+                poolConfig.setExpirationTime(SpringConfigurationUtils.parseDurationToMillis("expirationTime",
+                        poolConfigElement.getAttributeNS(null, "expirationTime"), 0));
+            }
+            strategy.setLdapPoolConfig(poolConfig);
+
+            if (poolConfigElement.hasAttributeNS(null, "blockWhenEmpty")) {
+                strategy.setBlockWhenEmpty(XMLHelper.getAttributeValueAsBoolean(
+                        poolConfigElement.getAttributeNodeNS(null, "blockWhenEmpty")));
+            }
+            if (poolConfigElement.hasAttributeNS(null, "blockWaitTime")) {
+                strategy.setBlockWaitTime((int) SpringConfigurationUtils.parseDurationToMillis("blockWaitTime",
+                        poolConfigElement.getAttributeNS(null, "blockWaitTime"), 0));
+            }
+        }
+
+        if (pluginConfig.hasAttributeNS(null, "replicaErrorThreshold")) {
+            strategy.setErrorThreshold(Double.parseDouble(DatatypeHelper.safeTrim(
+                    pluginConfig.getAttributeNS(null, "replicaErrorThreshold"))));
+        }
+        if (pluginConfig.hasAttributeNS(null, "replicaEjectionTime")) {
+            strategy.setEjectionTime(SpringConfigurationUtils.parseDurationToMillis("replicaEjectionTime",
+                    pluginConfig.getAttributeNS(null, "replicaEjectionTime"), 0));
+        }
+
+        pluginBuilder.addPropertyValue("poolStrategy", strategy);
+    }
 }
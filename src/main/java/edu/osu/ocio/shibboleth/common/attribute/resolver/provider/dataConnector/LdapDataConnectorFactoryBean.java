@@ -16,10 +16,76 @@
 
 package edu.osu.ocio.shibboleth.common.attribute.resolver.provider.dataConnector;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.ehcache.Cache;
+
 public class LdapDataConnectorFactoryBean
 		extends
 		edu.internet2.middleware.shibboleth.common.config.attribute.resolver.dataConnector.LdapDataConnectorFactoryBean {
 
+	/** vt-ldap property controlling the simple paged results control. */
+	private static final String PAGED_RESULTS_SIZE_PROPERTY = "edu.vt.middleware.ldap.pagedResultsSize";
+
+	/** Page size for the simple paged results control, or 0 to disable. */
+	private int pagedResultsSize;
+
+	/** Whether to request and follow value ranges. */
+	private boolean rangeRetrieval;
+
+	/** Per-attribute value limits. */
+	private List<AttributeValueLimit> valueLimits;
+
+	/**
+	 * Gets the page size for the simple paged results control.
+	 * @return	the page size, or 0 if disabled
+	 */
+	public int getPagedResultsSize() {
+		return pagedResultsSize;
+	}
+
+	/**
+	 * Sets the page size for the simple paged results control.
+	 * @param size	the page size, or 0 to disable
+	 */
+	public void setPagedResultsSize(int size) {
+		pagedResultsSize = size;
+	}
+
+	/**
+	 * Gets whether value ranges are requested and followed.
+	 * @return	true iff range retrieval is enabled
+	 */
+	public boolean isRangeRetrieval() {
+		return rangeRetrieval;
+	}
+
+	/**
+	 * Sets whether value ranges are requested and followed.
+	 * @param b	true iff range retrieval should be enabled
+	 */
+	public void setRangeRetrieval(boolean b) {
+		rangeRetrieval = b;
+	}
+
+	/**
+	 * Gets the per-attribute value limits.
+	 * @return	the value limits
+	 */
+	public List<AttributeValueLimit> getValueLimits() {
+		return valueLimits;
+	}
+
+	/**
+	 * Sets the per-attribute value limits.
+	 * @param limits	the value limits
+	 */
+	public void setValueLimits(List<AttributeValueLimit> limits) {
+		valueLimits = limits;
+	}
+
 	protected void setupPoolStrategy() throws Exception {
 		try {
 			super.setupPoolStrategy();
@@ -28,4 +94,31 @@ public class LdapDataConnectorFactoryBean
 			logger.warn("LDAP pool failed to initialize", e);
 		}
 	}
+
+	protected Object createInstance() throws Exception {
+		if (pagedResultsSize > 0) {
+			Map<String, String> props = getLdapProperties();
+			if (props == null) {
+				props = new HashMap<String, String>();
+				setLdapProperties(props);
+			}
+			props.put(PAGED_RESULTS_SIZE_PROPERTY, Integer.toString(pagedResultsSize));
+		}
+
+		edu.internet2.middleware.shibboleth.common.attribute.resolver.provider.dataConnector.LdapDataConnector base =
+			(edu.internet2.middleware.shibboleth.common.attribute.resolver.provider.dataConnector.LdapDataConnector)
+				super.createInstance();
+		if (!rangeRetrieval && (valueLimits == null || valueLimits.isEmpty())) {
+			return base;
+		}
+
+		// Rebuild the connector around the pool and cache the parent already set up.
+		Cache cache = base.isCacheResults() ? getCacheManager().getCache(getPluginId()) : null;
+		LdapDataConnector connector = new LdapDataConnector(base.getLdapPool(), cache, valueLimits, rangeRetrieval);
+		populateDataConnector(connector);
+		connector.setNoResultsIsError(isNoResultsIsError());
+		connector.setReturnAttributes(base.getReturnAttributes());
+		connector.registerTemplate(getTemplateEngine(), getFilterTemplate());
+		return connector;
+	}
 }
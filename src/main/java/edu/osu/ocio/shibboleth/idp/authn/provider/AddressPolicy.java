@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Policy for binding SSO cookies to client addresses.
+ *
+ * The client address is taken from the forwarding header when the connection comes from a
+ * trusted proxy, walking the header from the right so a client can't spoof its way past the
+ * proxies. A cookie matches a client whose address shares a configured prefix with the address
+ * the cookie was issued to, so clients whose address varies within a network (IPv6 privacy
+ * addresses, carrier NAT pools) keep their sessions. Cookies issued to addresses in an excluded
+ * range aren't bound to an address at all.
+ */
+public class AddressPolicy {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AddressPolicy.class);
+
+    /** Ranges of cookie addresses that aren't validated. */
+    private List<String> exclusions = new ArrayList<String>();
+
+    /** Ranges of proxies whose forwarding header is trusted. */
+    private List<String> trustedProxies = new ArrayList<String>();
+
+    /** Prefix length of IPv4 addresses that must match. */
+    private int ipv4Prefix = 32;
+
+    /** Prefix length of IPv6 addresses that must match. */
+    private int ipv6Prefix = 64;
+
+    /** Name of the forwarding header. */
+    private String forwardedHeader = "X-Forwarded-For";
+
+    /** Compiled exclusions. */
+    private CidrTrie excluded;
+
+    /** Compiled trusted proxies. */
+    private CidrTrie trusted;
+
+    /**
+     * Gets the ranges of cookie addresses that aren't validated.
+     * @return the ranges in CIDR notation
+     */
+    public List<String> getExclusions() {
+        return exclusions;
+    }
+
+    /**
+     * Gets the ranges of proxies whose forwarding header is trusted.
+     * @return the ranges in CIDR notation
+     */
+    public List<String> getTrustedProxies() {
+        return trustedProxies;
+    }
+
+    /**
+     * Gets the prefix length of IPv4 addresses that must match.
+     * @return the prefix length
+     */
+    public int getIpv4Prefix() {
+        return ipv4Prefix;
+    }
+
+    /**
+     * Gets the prefix length of IPv6 addresses that must match.
+     * @return the prefix length
+     */
+    public int getIpv6Prefix() {
+        return ipv6Prefix;
+    }
+
+    /**
+     * Gets the name of the forwarding header.
+     * @return the header name
+     */
+    public String getForwardedHeader() {
+        return forwardedHeader;
+    }
+
+    /**
+     * Sets the ranges of cookie addresses that aren't validated.
+     * @param exclusions the ranges in CIDR notation
+     */
+    public void setExclusions(List<String> exclusions) {
+        this.exclusions = exclusions;
+    }
+
+    /**
+     * Sets the ranges of proxies whose forwarding header is trusted.
+     * @param trustedProxies the ranges in CIDR notation
+     */
+    public void setTrustedProxies(List<String> trustedProxies) {
+        this.trustedProxies = trustedProxies;
+    }
+
+    /**
+     * Sets the prefix length of IPv4 addresses that must match.
+     * @param ipv4Prefix the prefix length
+     */
+    public void setIpv4Prefix(int ipv4Prefix) {
+        this.ipv4Prefix = ipv4Prefix;
+    }
+
+    /**
+     * Sets the prefix length of IPv6 addresses that must match.
+     * @param ipv6Prefix the prefix length
+     */
+    public void setIpv6Prefix(int ipv6Prefix) {
+        this.ipv6Prefix = ipv6Prefix;
+    }
+
+    /**
+     * Sets the name of the forwarding header.
+     * @param forwardedHeader the header name
+     */
+    public void setForwardedHeader(String forwardedHeader) {
+        this.forwardedHeader = forwardedHeader;
+    }
+
+    /**
+     * Compiles the ranges.
+     *
+     * @throws IllegalArgumentException if a range or prefix length is invalid
+     */
+    public void initialize() {
+        if (ipv4Prefix < 0 || ipv4Prefix > 32 || ipv6Prefix < 0 || ipv6Prefix > 128) {
+            throw new IllegalArgumentException("Invalid address prefix length.");
+        }
+        excluded = compile(exclusions);
+        trusted = compile(trustedProxies);
+        log.info("Address policy compiled {} exclusions and {} trusted proxies, matching /{} and /{}",
+                new Object[] {exclusions.size(), trustedProxies.size(), ipv4Prefix, ipv6Prefix});
+    }
+
+    /**
+     * Gets the address of the client, looking past any trusted proxies.
+     *
+     * @param request   incoming request
+     * @return  the client address
+     */
+    public String getClientAddress(HttpServletRequest request) {
+        String remote = request.getRemoteAddr();
+        if (trusted == null || !trusted.contains(remote)) {
+            return remote;
+        }
+        String header = request.getHeader(forwardedHeader);
+        if (header == null) {
+            return remote;
+        }
+
+        // Each proxy appends the address it received from, so walk back to the first untrusted hop.
+        String[] hops = header.split(",");
+        byte[] hop = null;
+        for (int i = hops.length - 1; i >= 0; --i) {
+            hop = CidrTrie.parseAddress(hops[i]);
+            if (hop == null) {
+                log.debug("Ignoring malformed {} header ({}) from {}", new Object[] {forwardedHeader, header, remote});
+                return remote;
+            } else if (!trusted.contains(hop)) {
+                break;
+            }
+        }
+        if (hop == null) {
+            return remote;
+        }
+        try {
+            return InetAddress.getByAddress(hop).getHostAddress();
+        } catch (UnknownHostException e) {
+            return remote;
+        }
+    }
+
+    /**
+     * Checks whether cookies issued to an address are exempt from validation.
+     *
+     * @param address   the address the cookie was issued to
+     * @return  true iff the address is in an excluded range
+     */
+    public boolean isExcluded(String address) {
+        return excluded != null && excluded.contains(address);
+    }
+
+    /**
+     * Checks whether a client may present a cookie issued to another address.
+     *
+     * @param cookieAddress the address the cookie was issued to
+     * @param clientAddress the address of the client
+     * @return  true iff the addresses share the configured prefix
+     */
+    public boolean isSameClient(String cookieAddress, String clientAddress) {
+        byte[] issued = CidrTrie.parseAddress(cookieAddress);
+        byte[] client = CidrTrie.parseAddress(clientAddress);
+        if (issued == null || client == null) {
+            return cookieAddress.equals(clientAddress);
+        }
+        boolean mapped = CidrTrie.isMapped(issued);
+        if (mapped != CidrTrie.isMapped(client)) {
+            return false;
+        }
+        int prefix = mapped ? CidrTrie.IPV4_MAPPED_BITS + ipv4Prefix : ipv6Prefix;
+        return CidrTrie.commonPrefix(issued, client) >= prefix;
+    }
+
+    /**
+     * Compiles a list of ranges.
+     *
+     * @param ranges    the ranges in CIDR notation
+     * @return  the compiled ranges
+     */
+    private static CidrTrie compile(List<String> ranges) {
+        CidrTrie trie = new CidrTrie();
+        for (String range : ranges) {
+            trie.add(range.trim());
+        }
+        return trie;
+    }
+}
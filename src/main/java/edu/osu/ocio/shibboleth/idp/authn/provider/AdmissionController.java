@@ -0,0 +1,413 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.owasp.esapi.ESAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
+
+/**
+ * Limits the number of credential checks the {@link StatelessLoginServlet} runs at once,
+ * adapting the limit to observed latency and turning away logins it can't admit in time.
+ *
+ * The limit follows a latency gradient: after each window of checks it is scaled by the ratio
+ * of the long-term average latency to the window's average, capped between 0.5 and 1, and then
+ * allowed to grow by its square root. Rising latency shrinks the limit before threads and backend
+ * connections run out, and the limit only grows while it is actually being used. Logins over the
+ * limit wait briefly in a bounded queue, then get a "busy" page rendered from a Velocity template.
+ */
+public class AdmissionController implements WarmUpSupport {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+    /** Fewest samples in a window. */
+    private static final int MIN_WINDOW = 10;
+
+    /** Number of windows over which the long-term latency is averaged. */
+    private static final double LONG_WINDOWS = 100;
+
+    /** Latency increase tolerated before the limit shrinks. */
+    private static final double TOLERANCE = 1.5;
+
+    /** Weight of a new limit against the old one. */
+    private static final double SMOOTHING = 0.2;
+
+    /** Velocity engine to use to render the busy page. */
+    private VelocityEngine velocity;
+
+    /** Name of busy page template. */
+    private String templateName;
+
+    /** Starting limit on concurrent credential checks. */
+    private int initialLimit = 20;
+
+    /** Smallest limit on concurrent credential checks. */
+    private int minLimit = 2;
+
+    /** Largest limit on concurrent credential checks. */
+    private int maxLimit = 200;
+
+    /** Most logins waiting for admission. */
+    private int maxQueue = 50;
+
+    /** Milliseconds a login waits for admission before it is turned away. */
+    private long queueTimeout = 250;
+
+    /** Seconds after which a turned away client is asked to retry. */
+    private int retryAfter = 5;
+
+    /** Current limit, guarded by this object. */
+    private double limit;
+
+    /** Credential checks in progress, guarded by this object. */
+    private int inFlight;
+
+    /** Logins waiting for admission, guarded by this object. */
+    private int waiting;
+
+    /** Most checks in progress during the current window, guarded by this object. */
+    private int windowPeak;
+
+    /** Total latency in the current window in nanoseconds, guarded by this object. */
+    private long windowNanos;
+
+    /** Samples in the current window, guarded by this object. */
+    private int windowCount;
+
+    /** Long-term average latency in nanoseconds, guarded by this object. */
+    private double longLatency;
+
+    /** Number of logins turned away. */
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Gets the template engine.
+     * @return the template engine
+     */
+    public VelocityEngine getVelocityEngine() {
+        return velocity;
+    }
+
+    /**
+     * Gets the template name.
+     * @return the templateName
+     */
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    /**
+     * Gets the starting limit on concurrent credential checks.
+     * @return the initial limit
+     */
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * Gets the smallest limit on concurrent credential checks.
+     * @return the minimum limit
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Gets the largest limit on concurrent credential checks.
+     * @return the maximum limit
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Gets the most logins waiting for admission.
+     * @return the queue size
+     */
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    /**
+     * Gets the milliseconds a login waits for admission.
+     * @return the queue timeout
+     */
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    /**
+     * Gets the seconds after which a turned away client is asked to retry.
+     * @return the retry delay
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Sets the template engine.
+     * @param engine the template engine
+     */
+    public void setVelocityEngine(VelocityEngine engine) {
+        velocity = engine;
+    }
+
+    /**
+     * Sets the template name.
+     * @param templateName the templateName to set
+     */
+    public void setTemplateName(String templateName) {
+        this.templateName = templateName;
+    }
+
+    /**
+     * Sets the starting limit on concurrent credential checks.
+     * @param initialLimit the initial limit
+     */
+    public void setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+    }
+
+    /**
+     * Sets the smallest limit on concurrent credential checks.
+     * @param minLimit the minimum limit
+     */
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    /**
+     * Sets the largest limit on concurrent credential checks.
+     * @param maxLimit the maximum limit
+     */
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Sets the most logins waiting for admission.
+     * @param maxQueue the queue size
+     */
+    public void setMaxQueue(int maxQueue) {
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * Sets the milliseconds a login waits for admission.
+     * @param queueTimeout the queue timeout
+     */
+    public void setQueueTimeout(long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * Sets the seconds after which a turned away client is asked to retry.
+     * @param retryAfter the retry delay
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Gets the current limit on concurrent credential checks.
+     * @return the limit
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Gets the number of credential checks in progress.
+     * @return the in-flight count
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets the number of logins turned away.
+     * @return the shed count
+     */
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    /**
+     * Validates the limits. Must be called once the properties are set.
+     */
+    public synchronized void initialize() {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Concurrency limits must be positive and ordered.");
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Parses the template.
+     * 
+     * @throws Exception if the template can't be loaded
+     */
+    public void warmUp() throws Exception {
+        velocity.getTemplate(templateName);
+    }
+
+    /**
+     * Admits a credential check, waiting up to the queue timeout for capacity.
+     *
+     * @return  true iff the check was admitted and must be followed by {@link #release(long)}
+     */
+    public synchronized boolean acquire() {
+        if (inFlight < (int) limit) {
+            admit();
+            return true;
+        } else if (waiting >= maxQueue) {
+            shed.incrementAndGet();
+            return false;
+        }
+
+        long deadline = System.currentTimeMillis() + queueTimeout;
+        ++waiting;
+        try {
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    shed.incrementAndGet();
+                    return false;
+                }
+                wait(remaining);
+            }
+            admit();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            shed.incrementAndGet();
+            return false;
+        } finally {
+            --waiting;
+        }
+    }
+
+    /**
+     * Ends an admitted credential check and adapts the limit to its latency.
+     *
+     * @param start value of {@link System#nanoTime()} when the check was admitted
+     */
+    public synchronized void release(long start) {
+        --inFlight;
+        windowNanos += System.nanoTime() - start;
+        if (++windowCount >= Math.max(MIN_WINDOW, (int) limit)) {
+            adapt();
+        }
+        notify();
+    }
+
+    /**
+     * Renders the busy page.
+     *
+     * @param request   the client's request
+     * @param response  the response to the client
+     * @param info      the authentication state
+     * @throws AuthenticationException  raised if the template can't be rendered
+     */
+    public void shed(HttpServletRequest request, HttpServletResponse response, StatelessAuthenticationInfo info)
+            throws AuthenticationException {
+        log.debug("Turning away login for username ({}), {} checks in progress",
+                request.getParameter("j_username"), getInFlight());
+
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(retryAfter));
+        response.setContentType("text/html");
+        response.setHeader("Cache-Control", "content=\"no-store,no-cache,must-revalidate\"");
+        response.setHeader("Pragma","no-cache");
+        response.setHeader("Expires","-1");
+
+        VelocityContext vCtx = new VelocityContext();
+        vCtx.put("username", request.getParameter("j_username"));
+        vCtx.put("authnInfo", info);
+        vCtx.put("servletPath", request.getContextPath() + request.getServletPath());
+        vCtx.put("encoder", ESAPI.encoder());
+        vCtx.put("retryAfter", retryAfter);
+
+        long start = System.nanoTime();
+        String result = "failed";
+        try {
+            Template template = velocity.getTemplate(templateName);
+            PrintWriter writer = response.getWriter();
+            template.merge(vCtx, writer);
+            writer.flush();
+            result = "success";
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            throw new AuthenticationException("Error while processing busy template.", e);
+        } finally {
+            LoginTrace.record("template-merge", start, templateName,
+                    info.getLoginContext().getRelyingPartyId(), result);
+        }
+    }
+
+    /**
+     * Counts an admitted check. Must be called while synchronized.
+     */
+    private void admit() {
+        if (++inFlight > windowPeak) {
+            windowPeak = inFlight;
+        }
+    }
+
+    /**
+     * Moves the limit along the latency gradient at the end of a window. Must be called while
+     * synchronized.
+     */
+    private void adapt() {
+        double latency = (double) windowNanos / windowCount;
+        if (longLatency == 0) {
+            longLatency = latency;
+        } else {
+            longLatency += (latency - longLatency) / LONG_WINDOWS;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / latency));
+        double target = limit * gradient + Math.sqrt(limit);
+        if (target > limit && windowPeak < limit / 2) {
+            // Don't grow a limit that isn't being used.
+            target = limit;
+        }
+        double previous = limit;
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+        if ((int) limit != (int) previous) {
+            log.debug("Concurrency limit changed from {} to {}", (int) previous, (int) limit);
+            if (limit > previous) {
+                notifyAll();
+            }
+        }
+
+        windowNanos = 0;
+        windowCount = 0;
+        windowPeak = inFlight;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the number of bytes the current thread has allocated on the heap, using the per-thread
+ * allocation counter of HotSpot's {@link com.sun.management.ThreadMXBean}.
+ *
+ * A reading is a lookup of a counter the JVM already keeps, so bracketing a request or a
+ * submodule with two readings costs well under a microsecond. The few bytes a reading may
+ * allocate itself are measured once and subtracted. On JVMs without the counter every reading
+ * is 0, so differences come out as 0 rather than failing.
+ */
+final class AllocationCounter {
+
+    /** Class logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(AllocationCounter.class);
+
+    /** The counter, or null if the JVM doesn't provide one. */
+    private static final com.sun.management.ThreadMXBean BEAN = getBean();
+
+    /** Bytes allocated by a reading itself. */
+    private static final long OVERHEAD = measureOverhead();
+
+    /** Constructor. */
+    private AllocationCounter() {
+    }
+
+    /**
+     * Returns true iff allocation can be measured on this JVM.
+     *
+     * @return  indicator of whether the counter is available
+     */
+    static boolean isSupported() {
+        return BEAN != null;
+    }
+
+    /**
+     * Reads the number of bytes the current thread has allocated.
+     *
+     * @return  bytes allocated since the thread started, or 0 if allocation can't be measured
+     */
+    static long current() {
+        return (BEAN != null) ? BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * Computes the number of bytes allocated since an earlier reading, net of the reading itself.
+     *
+     * @param start an earlier value of {@link #current()} on the same thread
+     * @return  bytes allocated since then
+     */
+    static long since(long start) {
+        return Math.max(0, current() - start - OVERHEAD);
+    }
+
+    /**
+     * Locates the allocation counter and switches it on if necessary.
+     *
+     * @return  the counter, or null if the JVM doesn't provide one
+     */
+    private static com.sun.management.ThreadMXBean getBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+                if (hotspot.isThreadAllocatedMemorySupported()) {
+                    if (!hotspot.isThreadAllocatedMemoryEnabled()) {
+                        hotspot.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    return hotspot;
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Thread allocation counter is unavailable: {}", e.getMessage());
+        } catch (LinkageError e) {
+            LOG.debug("Thread allocation counter is unavailable: {}", e.getMessage());
+        }
+        LOG.info("Thread allocation counter is unavailable, allocation will be reported as 0.");
+        return null;
+    }
+
+    /**
+     * Measures the bytes allocated by a reading, taking the smallest of several tries.
+     *
+     * @return  bytes allocated per reading
+     */
+    private static long measureOverhead() {
+        if (BEAN == null) {
+            return 0;
+        }
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 16; ++i) {
+            long start = current();
+            overhead = Math.min(overhead, current() - start);
+        }
+        return overhead;
+    }
+}
@@ -15,8 +15,10 @@
  */
 package edu.osu.ocio.shibboleth.idp.authn.provider;
 
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -38,7 +40,7 @@ import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 /**
  * Submodule that resolves attributes for a principal.
  */
-public class AttributeResolverLoginSubmodule implements StatelessLoginSubmodule {
+public class AttributeResolverLoginSubmodule implements PhasedLoginSubmodule {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(AttributeResolverLoginSubmodule.class);
@@ -46,6 +48,11 @@ public class AttributeResolverLoginSubmodule implements StatelessLoginSubmodule
     /** Names of user attributes to resolve and manage. */
     private List<String> attributeNames;
 
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.POST_AUTH);
+    }
+
     /** {@inheritDoc} */
     public void run(StatelessLoginServlet servlet, HttpServletRequest request, HttpServletResponse response,
             StatelessAuthenticationInfo info) throws AuthenticationException {
@@ -77,6 +84,8 @@ public class AttributeResolverLoginSubmodule implements StatelessLoginSubmodule
 
         AttributeResolver resolver = HttpServletHelper.getAttributeResolver(servlet.getServletContext());
         if (resolver != null) {
+            long start = System.nanoTime();
+            String result = "failed";
             try {
                 Map<String, BaseAttribute> attrs = resolver.resolveAttributes(createRequestContext(
                         servlet.getServletContext(), request, info));
@@ -87,8 +96,12 @@ public class AttributeResolverLoginSubmodule implements StatelessLoginSubmodule
                         attributeMap.put(aname, attr.getValues().iterator().next().toString());
                     }
                 }
+                result = "success";
             } catch (AttributeResolutionException e) {
                 log.error("Failed to resolve attributes for {}: {}", info.getUsername(), e.getMessage());
+            } finally {
+                LoginTrace.record("attribute-resolution", start, info.getUsername(),
+                        info.getLoginContext().getRelyingPartyId(), result);
             }
         } else {
             log.warn("No AttributeResolver instance available");
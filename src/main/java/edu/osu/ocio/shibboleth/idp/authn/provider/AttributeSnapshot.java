@@ -0,0 +1,732 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only snapshot of a few attributes per user, built from an LDIF or CSV export of the directory.
+ *
+ * The export is streamed into a file holding the entries sorted by username behind a table of
+ * offsets, and the file is memory-mapped, so a lookup is a binary search against the page cache
+ * and the entries cost no heap however many accounts there are. When the export changes, a new
+ * generation is built alongside the current one and swapped in atomically; lookups in progress
+ * finish on the generation they started with.
+ */
+public class AttributeSnapshot implements WarmUpSupport {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AttributeSnapshot.class);
+
+    /** Marks the start of a snapshot file. */
+    private static final int MAGIC = 0x4f535553;
+
+    /** Length of the file header before the offset table. */
+    private static final int HEADER = 12;
+
+    /** Length marking an absent value. */
+    private static final int ABSENT = 0xffff;
+
+    /** Path of the export. */
+    private String sourceFile;
+
+    /** Format of the export, "ldif" or "csv", or null to go by the file extension. */
+    private String format;
+
+    /** Attribute or column holding the username. */
+    private String usernameAttribute = "uid";
+
+    /** Attributes or columns to keep. */
+    private List<String> attributeNames = new ArrayList<String>();
+
+    /** Directory to write snapshots to, or null for the directory of the export. */
+    private String snapshotDirectory;
+
+    /** Milliseconds between checks of the export for changes, or 0 to load it only once. */
+    private long refreshInterval;
+
+    /** Generation in use, or null before the first load. */
+    private volatile Generation current;
+
+    /** Number of the latest generation built. */
+    private int generationNumber;
+
+    /** Modification time of the export the current generation was built from. */
+    private long sourceModified;
+
+    /** Timer driving refreshes. */
+    private Timer timer;
+
+    /**
+     * Gets the path of the export.
+     * @return the export path
+     */
+    public String getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Gets the format of the export.
+     * @return "ldif" or "csv", or null to go by the file extension
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets the attribute or column holding the username.
+     * @return the username attribute
+     */
+    public String getUsernameAttribute() {
+        return usernameAttribute;
+    }
+
+    /**
+     * Gets the attributes or columns to keep.
+     * @return the attribute names
+     */
+    public List<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    /**
+     * Gets the directory snapshots are written to.
+     * @return the directory, or null for the directory of the export
+     */
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * Gets the interval between checks of the export for changes.
+     * @return the interval in milliseconds, or 0 if the export is only loaded once
+     */
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Sets the path of the export.
+     * @param sourceFile the export path
+     */
+    public void setSourceFile(String sourceFile) {
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Sets the format of the export.
+     * @param format "ldif" or "csv", or null to go by the file extension
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets the attribute or column holding the username.
+     * @param usernameAttribute the username attribute
+     */
+    public void setUsernameAttribute(String usernameAttribute) {
+        this.usernameAttribute = usernameAttribute;
+    }
+
+    /**
+     * Sets the attributes or columns to keep.
+     * @param attributeNames the attribute names
+     */
+    public void setAttributeNames(List<String> attributeNames) {
+        this.attributeNames = attributeNames;
+    }
+
+    /**
+     * Sets the directory snapshots are written to.
+     * @param snapshotDirectory the directory, or null for the directory of the export
+     */
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    /**
+     * Sets the interval between checks of the export for changes.
+     * @param refreshInterval the interval in milliseconds, or 0 to load the export only once
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Builds the first generation and starts watching the export. Must be called once the
+     * properties are set.
+     * 
+     * @throws IOException if the export can't be loaded
+     */
+    public synchronized void initialize() throws IOException {
+        if (sourceFile == null) {
+            throw new IllegalArgumentException("Attribute export not set.");
+        } else if (attributeNames.isEmpty()) {
+            throw new IllegalArgumentException("No attributes to keep.");
+        }
+
+        // Remove generations left by an earlier run.
+        final String prefix = new File(sourceFile).getName() + ".";
+        File[] stale = getDirectory().listFiles();
+        if (stale != null) {
+            for (File f : stale) {
+                if (f.getName().startsWith(prefix) && f.getName().endsWith(".snapshot")) {
+                    f.delete();
+                }
+            }
+        }
+
+        refresh();
+        if (refreshInterval > 0) {
+            timer = new Timer("AttributeSnapshotRefresh", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    if (new File(sourceFile).lastModified() != sourceModified) {
+                        try {
+                            refresh();
+                        } catch (IOException e) {
+                            log.error("Keeping current attribute snapshot, unable to load {}: {}",
+                                    sourceFile, e.getMessage());
+                        }
+                    }
+                }
+            }, refreshInterval, refreshInterval);
+        }
+    }
+
+    /**
+     * Stops watching the export.
+     */
+    public synchronized void destroy() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Reads the current generation into the page cache.
+     */
+    public void warmUp() {
+        Generation g = current;
+        if (g != null) {
+            g.buffer.load();
+        }
+    }
+
+    /**
+     * Gets the number of users in the current generation.
+     * @return the number of users
+     */
+    public int getSize() {
+        Generation g = current;
+        return (g != null) ? g.count : 0;
+    }
+
+    /**
+     * Copies a user's attributes into a map.
+     * 
+     * @param username      the normalized username
+     * @param attributes    the map to add the attributes to
+     * @return  true iff the user was in the snapshot
+     */
+    public boolean lookup(String username, Map<String, String> attributes) {
+        Generation g = current;
+        if (g == null || username == null) {
+            return false;
+        }
+        byte[] key = toBytes(username.toLowerCase());
+        int record = g.find(key);
+        if (record < 0) {
+            return false;
+        }
+        int pos = record + 2 + key.length;
+        for (String name : g.names) {
+            int length = g.buffer.getShort(pos) & 0xffff;
+            pos += 2;
+            if (length != ABSENT) {
+                byte[] value = new byte[length];
+                for (int i = 0; i < length; ++i) {
+                    value[i] = g.buffer.get(pos + i);
+                }
+                attributes.put(name, fromBytes(value));
+                pos += length;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a generation from the export and swaps it in.
+     * 
+     * @throws IOException if the export can't be loaded
+     */
+    private synchronized void refresh() throws IOException {
+        long start = System.currentTimeMillis();
+        File source = new File(sourceFile);
+        long modified = source.lastModified();
+        String[] names = attributeNames.toArray(new String[attributeNames.size()]);
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), "UTF-8"));
+        try {
+            boolean ldif = (format != null) ? "ldif".equalsIgnoreCase(format)
+                    : source.getName().toLowerCase().endsWith(".ldif");
+            if (ldif) {
+                readLdif(reader, names, records);
+            } else {
+                readCsv(reader, names, records);
+            }
+        } finally {
+            reader.close();
+        }
+        Collections.sort(records, new Comparator<byte[]>() {
+            public int compare(byte[] a, byte[] b) {
+                return compareKeys(a, b);
+            }
+        });
+
+        File file = new File(getDirectory(), source.getName() + "." + (++generationNumber) + ".snapshot");
+        int count = write(file, records);
+        Generation next = new Generation(file, names, count);
+        Generation previous = current;
+        current = next;
+        sourceModified = modified;
+        if (previous != null && !previous.file.delete()) {
+            log.debug("Unable to remove attribute snapshot {}", previous.file);
+        }
+        log.info("Loaded attribute snapshot of {} users from {} in {}ms",
+                new Object[] {count, sourceFile, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Reads entries from an LDIF export, keeping the first value of each attribute.
+     * 
+     * @param reader    the export
+     * @param names     the attributes to keep
+     * @param records   list to add the encoded entries to
+     * @throws IOException if the export can't be read
+     */
+    private void readLdif(BufferedReader reader, String[] names, List<byte[]> records) throws IOException {
+        Map<String, Integer> columns = getColumns(names);
+        String[] values = new String[names.length + 1];
+        StringBuilder line = null;
+        while (true) {
+            String raw = reader.readLine();
+            if (raw != null && line != null && raw.startsWith(" ")) {
+                line.append(raw, 1, raw.length());
+                continue;
+            } else if (line != null) {
+                parseLdifLine(line.toString(), columns, values);
+                line = null;
+            }
+
+            if (raw == null || raw.length() == 0) {
+                addRecord(values, records);
+                if (raw == null) {
+                    return;
+                }
+            } else if (!raw.startsWith("#")) {
+                line = new StringBuilder(raw);
+            }
+        }
+    }
+
+    /**
+     * Parses an attribute line of an LDIF entry.
+     * 
+     * @param line      the line, with continuations unfolded
+     * @param columns   positions of the attributes to keep
+     * @param values    the entry's values, with the username last
+     */
+    private void parseLdifLine(String line, Map<String, Integer> columns, String[] values) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = line.substring(0, colon);
+        int option = name.indexOf(';');
+        Integer column = columns.get(((option > 0) ? name.substring(0, option) : name).toLowerCase());
+        if (column == null || values[column] != null) {
+            return;
+        }
+        if (line.startsWith("::", colon)) {
+            byte[] decoded = Base64.decode(line.substring(colon + 2).trim());
+            if (decoded != null) {
+                values[column] = fromBytes(decoded);
+            }
+        } else if (!line.startsWith(":<", colon)) {
+            values[column] = line.substring(colon + 1).trim();
+        }
+    }
+
+    /**
+     * Reads rows from a CSV export whose first row names the columns.
+     * 
+     * @param reader    the export
+     * @param names     the columns to keep
+     * @param records   list to add the encoded rows to
+     * @throws IOException if the export can't be read
+     */
+    private void readCsv(BufferedReader reader, String[] names, List<byte[]> records) throws IOException {
+        String header = reader.readLine();
+        if (header == null) {
+            return;
+        }
+        Map<String, Integer> columns = getColumns(names);
+        List<String> headings = parseCsvLine(header);
+        int[] positions = new int[headings.size()];
+        for (int i = 0; i < positions.length; ++i) {
+            Integer column = columns.get(headings.get(i).trim().toLowerCase());
+            positions[i] = (column != null) ? column : -1;
+        }
+        if (!hasHeading(headings, usernameAttribute)) {
+            throw new IOException("Export has no " + usernameAttribute + " column.");
+        }
+
+        String[] values = new String[names.length + 1];
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() == 0) {
+                continue;
+            }
+            List<String> fields = parseCsvLine(line);
+            for (int i = 0; i < positions.length && i < fields.size(); ++i) {
+                if (positions[i] >= 0 && fields.get(i).length() > 0) {
+                    values[positions[i]] = fields.get(i);
+                }
+            }
+            addRecord(values, records);
+        }
+    }
+
+    /**
+     * Checks whether a CSV header has a column, ignoring case.
+     * 
+     * @param headings  the column names
+     * @param name      the column wanted
+     * @return  true iff the column is present
+     */
+    private static boolean hasHeading(List<String> headings, String name) {
+        for (String heading : headings) {
+            if (heading.trim().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a CSV line into fields, handling quoted fields and doubled quotes.
+     * 
+     * @param line  the line
+     * @return  the fields
+     */
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    ++i;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Maps attribute names to their positions, with the username last.
+     * 
+     * @param names the attributes to keep
+     * @return  positions by lower-cased name
+     */
+    private Map<String, Integer> getColumns(String[] names) {
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        for (int i = 0; i < names.length; ++i) {
+            columns.put(names[i].toLowerCase(), i);
+        }
+        columns.put(usernameAttribute.toLowerCase(), names.length);
+        return columns;
+    }
+
+    /**
+     * Encodes an entry and clears the values for the next one. Entries without a username are skipped.
+     * 
+     * @param values    the entry's values, with the username last
+     * @param records   list to add the encoded entry to
+     * @throws IOException if the entry can't be encoded
+     */
+    private void addRecord(String[] values, List<byte[]> records) throws IOException {
+        String username = values[values.length - 1];
+        if (username != null && username.length() > 0) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(buffer);
+            byte[] key = toBytes(username.toLowerCase());
+            if (key.length < ABSENT) {
+                out.writeShort(key.length);
+                out.write(key);
+                for (int i = 0; i < values.length - 1; ++i) {
+                    byte[] value = (values[i] != null) ? toBytes(values[i]) : null;
+                    if (value == null || value.length >= ABSENT) {
+                        out.writeShort(ABSENT);
+                    } else {
+                        out.writeShort(value.length);
+                        out.write(value);
+                    }
+                }
+                records.add(buffer.toByteArray());
+            }
+        }
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = null;
+        }
+    }
+
+    /**
+     * Writes sorted entries to a snapshot file, dropping duplicate usernames.
+     * 
+     * @param file      the snapshot file
+     * @param records   the encoded entries, sorted by username
+     * @return  the number of entries written
+     * @throws IOException if the file can't be written
+     */
+    private int write(File file, List<byte[]> records) throws IOException {
+        List<byte[]> unique = new ArrayList<byte[]>(records.size());
+        for (byte[] record : records) {
+            if (!unique.isEmpty() && compareKeys(unique.get(unique.size() - 1), record) == 0) {
+                continue;
+            }
+            unique.add(record);
+        }
+        if (unique.size() < records.size()) {
+            log.warn("Ignoring {} duplicate username(s) in {}", records.size() - unique.size(), sourceFile);
+        }
+
+        long size = HEADER + 4L * unique.size();
+        for (byte[] record : unique) {
+            size += record.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Attribute snapshot would exceed 2GB.");
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(attributeNames.size());
+            out.writeInt(unique.size());
+            int offset = HEADER + 4 * unique.size();
+            for (byte[] record : unique) {
+                out.writeInt(offset);
+                offset += record.length;
+            }
+            for (byte[] record : unique) {
+                out.write(record);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to create attribute snapshot " + file);
+        }
+        return unique.size();
+    }
+
+    /**
+     * Gets the directory snapshots are written to.
+     * @return the directory
+     */
+    private File getDirectory() {
+        if (snapshotDirectory != null) {
+            return new File(snapshotDirectory);
+        }
+        File parent = new File(sourceFile).getAbsoluteFile().getParentFile();
+        return (parent != null) ? parent : new File(".");
+    }
+
+    /**
+     * Compares the usernames of two encoded entries as unsigned bytes.
+     * 
+     * @param a the first entry
+     * @param b the second entry
+     * @return  the comparison
+     */
+    private static int compareKeys(byte[] a, byte[] b) {
+        int lengthA = ((a[0] & 0xff) << 8) | (a[1] & 0xff);
+        int lengthB = ((b[0] & 0xff) << 8) | (b[1] & 0xff);
+        for (int i = 0; i < lengthA && i < lengthB; ++i) {
+            int diff = (a[2 + i] & 0xff) - (b[2 + i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * Encodes a string as UTF-8.
+     * 
+     * @param s the string
+     * @return  the bytes
+     */
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes a string from UTF-8.
+     * 
+     * @param b the bytes
+     * @return  the string
+     */
+    private static String fromBytes(byte[] b) {
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A mapped snapshot file.
+     */
+    private static class Generation {
+
+        /** The snapshot file. */
+        private final File file;
+
+        /** Names of the attributes, in the order they're stored. */
+        private final String[] names;
+
+        /** Number of entries. */
+        private final int count;
+
+        /** The mapped file. */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Constructor.
+         * 
+         * @param file  the snapshot file
+         * @param names names of the attributes
+         * @param count number of entries
+         * @throws IOException if the file can't be mapped
+         */
+        Generation(File file, String[] names, int count) throws IOException {
+            this.file = file;
+            this.names = names;
+            this.count = count;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != names.length || buffer.getInt(8) != count) {
+                throw new IOException("Attribute snapshot " + file + " is corrupt.");
+            }
+        }
+
+        /**
+         * Finds a user's entry.
+         * 
+         * @param key   the username as UTF-8
+         * @return  the offset of the entry, or -1 if the user isn't present
+         */
+        int find(byte[] key) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int record = buffer.getInt(HEADER + 4 * mid);
+                int cmp = compare(record, key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return record;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Compares the username of an entry with a key as unsigned bytes.
+         * 
+         * @param record    offset of the entry
+         * @param key       the username as UTF-8
+         * @return  the comparison
+         */
+        private int compare(int record, byte[] key) {
+            int length = buffer.getShort(record) & 0xffff;
+            for (int i = 0; i < length && i < key.length; ++i) {
+                int diff = (buffer.get(record + 2 + i) & 0xff) - (key[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return length - key.length;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records login events to rotating files without blocking the request thread.
+ *
+ * Events are copied into a fixed ring of preallocated slots claimed with a CAS, and a
+ * background thread drains the ring in batches. If the ring is full the event is dropped
+ * and counted rather than waiting for the writer. Each event is written as one line of JSON.
+ */
+public class AuditLog {
+
+    /** Type of a login event. */
+    public enum EventType {
+        /** The user authenticated. */
+        SUCCESS,
+        /** The login was satisfied by an existing SSO session. */
+        SSO,
+        /** The login failed. */
+        FAILURE;
+    }
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+    /** Directory to write files into. */
+    private String directory;
+
+    /** Prefix of file names. */
+    private String filePrefix = "idp-audit";
+
+    /** Number of events the ring can hold, rounded up to a power of two. */
+    private int bufferSize = 8192;
+
+    /** Size in bytes at which a file is rotated, or 0 to rotate only daily. */
+    private long maxFileSize = 100 * 1024 * 1024;
+
+    /** Time in milliseconds the writer waits for more events before flushing. */
+    private long flushInterval = 1000;
+
+    /** Ring of event slots. */
+    private Slot[] ring;
+
+    /** Mask mapping sequence numbers to slots. */
+    private int mask;
+
+    /** Next sequence number to claim. */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** Next sequence number to be written. */
+    private volatile long consumed;
+
+    /** Number of events dropped because the ring was full. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Background writer. */
+    private Thread writerThread;
+
+    /** Whether the writer should keep running. */
+    private volatile boolean running;
+
+    /**
+     * Gets the directory files are written into.
+     * @return the directory
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the prefix of file names.
+     * @return the file prefix
+     */
+    public String getFilePrefix() {
+        return filePrefix;
+    }
+
+    /**
+     * Gets the number of events the ring can hold.
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Gets the size in bytes at which a file is rotated.
+     * @return the maximum file size, or 0 to rotate only daily
+     */
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Gets the time in milliseconds the writer waits before flushing.
+     * @return the flush interval
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Gets the number of events dropped because the ring was full.
+     * @return the number of dropped events
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Sets the directory files are written into.
+     * @param directory the directory to set
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the prefix of file names.
+     * @param filePrefix the file prefix to set
+     */
+    public void setFilePrefix(String filePrefix) {
+        this.filePrefix = filePrefix;
+    }
+
+    /**
+     * Sets the number of events the ring can hold.
+     * @param bufferSize the buffer size to set
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the size in bytes at which a file is rotated.
+     * @param maxFileSize the maximum file size to set, or 0 to rotate only daily
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Sets the time in milliseconds the writer waits before flushing.
+     * @param flushInterval the flush interval to set
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Allocates the ring and starts the writer. Must be called once the properties are set.
+     */
+    public synchronized void initialize() {
+        if (directory == null) {
+            throw new IllegalArgumentException("Audit log directory not set.");
+        }
+        int size = 1;
+        while (size < bufferSize) {
+            size <<= 1;
+        }
+        ring = new Slot[size];
+        for (int i = 0; i < size; ++i) {
+            ring[i] = new Slot();
+        }
+        mask = size - 1;
+
+        running = true;
+        writerThread = new Thread(new Drainer(), "AuditLogWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer once the events already recorded have been written.
+     */
+    public synchronized void destroy() {
+        running = false;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+    }
+
+    /**
+     * Records a login event. Never blocks; the event is dropped if the ring is full.
+     *
+     * @param type          type of event
+     * @param username      identity of the user, or null
+     * @param authnMethod   method of authentication, or null
+     * @param authnInstant  time of authentication, or 0
+     * @param address       client address
+     * @param relyingParty  relying party being logged into, or null
+     * @param reason        reason for a failure, or null
+     */
+    public void record(EventType type, String username, String authnMethod, long authnInstant, String address,
+            String relyingParty, String reason) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Slot slot = ring[(int) seq & mask];
+        slot.time = System.currentTimeMillis();
+        slot.type = type;
+        slot.username = username;
+        slot.authnMethod = authnMethod;
+        slot.authnInstant = authnInstant;
+        slot.address = address;
+        slot.relyingParty = relyingParty;
+        slot.reason = reason;
+        slot.published = seq;
+    }
+
+    /**
+     * Slot holding one event in the ring.
+     */
+    private static class Slot {
+
+        /** Sequence number of the event in the slot, written last to publish it. */
+        private volatile long published = -1;
+
+        /** Time of the event. */
+        private long time;
+
+        /** Type of event. */
+        private EventType type;
+
+        /** Identity of the user. */
+        private String username;
+
+        /** Method of authentication. */
+        private String authnMethod;
+
+        /** Time of authentication, or 0. */
+        private long authnInstant;
+
+        /** Client address. */
+        private String address;
+
+        /** Relying party. */
+        private String relyingParty;
+
+        /** Reason for a failure. */
+        private String reason;
+    }
+
+    /**
+     * Drains the ring into rotating files.
+     */
+    private class Drainer implements Runnable {
+
+        /** Formats timestamps in events. */
+        private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+        /** Formats dates in file names. */
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+        /** Reusable buffer for formatting an event. */
+        private final StringBuilder line = new StringBuilder(256);
+
+        /** Current output. */
+        private Writer out;
+
+        /** Date of the current file. */
+        private String currentDate;
+
+        /** Number of bytes written to the current file. */
+        private long currentSize;
+
+        /** Constructor. */
+        Drainer() {
+            TimeZone utc = TimeZone.getTimeZone("UTC");
+            timestampFormat.setTimeZone(utc);
+            dateFormat.setTimeZone(utc);
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            long pollNanos = Math.max(1, Math.min(flushInterval, 10)) * 1000000L;
+            long lastFlush = System.currentTimeMillis();
+            boolean dirty = false;
+            while (true) {
+                boolean stopping = !running;
+                int count = drain();
+                if (count > 0) {
+                    dirty = true;
+                } else if (stopping) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(pollNanos);
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && (count == 0 || now - lastFlush >= flushInterval)) {
+                    flush();
+                    dirty = false;
+                    lastFlush = now;
+                }
+            }
+            flush();
+            close();
+        }
+
+        /**
+         * Writes the events published so far.
+         *
+         * @return  number of events written
+         */
+        private int drain() {
+            int count = 0;
+            long seq = consumed;
+            while (true) {
+                Slot slot = ring[(int) seq & mask];
+                if (slot.published != seq) {
+                    break;
+                }
+                write(slot);
+                slot.username = null;
+                slot.authnMethod = null;
+                slot.address = null;
+                slot.relyingParty = null;
+                slot.reason = null;
+                consumed = ++seq;
+                ++count;
+            }
+            return count;
+        }
+
+        /**
+         * Writes an event to the current file.
+         *
+         * @param slot  the event
+         */
+        private void write(Slot slot) {
+            line.setLength(0);
+            line.append("{\"time\":\"").append(timestampFormat.format(new Date(slot.time)));
+            line.append("\",\"type\":\"").append(slot.type);
+            append("user", slot.username);
+            append("method", slot.authnMethod);
+            append("authnInstant", (slot.authnInstant != 0) ? Long.toString(slot.authnInstant) : null);
+            append("address", slot.address);
+            append("rp", slot.relyingParty);
+            append("reason", slot.reason);
+            line.append("\"}\n");
+
+            try {
+                rotate(slot.time);
+                out.write(line.toString());
+                currentSize += line.length();
+            } catch (IOException e) {
+                log.error("Unable to write audit event: {}", e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Appends a string field to the current line.
+         *
+         * @param name  field name
+         * @param value field value, or null to omit it
+         */
+        private void append(String name, String value) {
+            if (value == null) {
+                return;
+            }
+            line.append("\",\"").append(name).append("\":\"");
+            for (int i = 0; i < value.length(); ++i) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c < ' ') {
+                    line.append(String.format("\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+
+        /**
+         * Opens a new file if the date has changed or the current one is full.
+         *
+         * @param time  time of the event being written
+         * @throws IOException if a file cannot be opened
+         */
+        private void rotate(long time) throws IOException {
+            String date = dateFormat.format(new Date(time));
+            if (out != null && date.equals(currentDate) && (maxFileSize <= 0 || currentSize < maxFileSize)) {
+                return;
+            }
+            close();
+            File file = new File(directory, filePrefix + "." + date + ".log");
+            for (int i = 1; file.exists() && maxFileSize > 0 && file.length() >= maxFileSize; ++i) {
+                file = new File(directory, filePrefix + "." + date + "." + i + ".log");
+            }
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 65536);
+            currentDate = date;
+            currentSize = file.length();
+        }
+
+        /** Flushes the current file. */
+        private void flush() {
+            if (out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    log.error("Unable to flush audit log: {}", e.getMessage());
+                    close();
+                }
+            }
+        }
+
+        /** Closes the current file. */
+        private void close() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.error("Unable to close audit log: {}", e.getMessage());
+                }
+                out = null;
+            }
+        }
+    }
+}
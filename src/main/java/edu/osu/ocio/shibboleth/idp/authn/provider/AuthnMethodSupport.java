@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.Set;
+
+/**
+ * Implemented by submodules that can only satisfy certain authentication methods, so the
+ * {@link StatelessLoginServlet} can skip them when a request asks for other methods.
+ * Implementations can rely on that and needn't check the requested methods themselves.
+ */
+public interface AuthnMethodSupport {
+
+    /**
+     * Gets the authentication methods the submodule can satisfy.
+     * 
+     * @return  the supported authentication context classes
+     */
+    Set<String> getAuthnMethods();
+}
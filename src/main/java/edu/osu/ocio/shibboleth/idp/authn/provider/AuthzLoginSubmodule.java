@@ -15,7 +15,10 @@
  */
 package edu.osu.ocio.shibboleth.idp.authn.provider;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -35,8 +38,12 @@ import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
 
 /**
  * Submodule that checks for a permission attribute before allowing access.
+ *
+ * With a policy file, access to every managed relying party is decided by a single
+ * {@link AuthzPolicy}; otherwise a single permission attribute is checked for a set of
+ * relying parties.
  */
-public class AuthzLoginSubmodule implements StatelessLoginSubmodule {
+public class AuthzLoginSubmodule implements PhasedLoginSubmodule {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(AuthzLoginSubmodule.class);
@@ -52,6 +59,18 @@ public class AuthzLoginSubmodule implements StatelessLoginSubmodule {
 
     /** Names of SPs to manage access for. */
     private Set<String> relyingParties = new HashSet<String>();
+
+    /** Path of the authorization policy, or null. */
+    private String policyFile;
+
+    /** Number of decisions to cache. */
+    private int decisionCacheSize = 4096;
+
+    /** Milliseconds to cache decisions for. */
+    private long decisionTtl = 60 * 1000;
+
+    /** Compiled authorization policy, or null. */
+    private AuthzPolicy policy;
     
 	/**
      * Gets the template engine.
@@ -85,6 +104,30 @@ public class AuthzLoginSubmodule implements StatelessLoginSubmodule {
 		return relyingParties;
 	}
     
+    /**
+     * Gets the path of the authorization policy.
+     * @return the policy path, or null
+     */
+    public String getPolicyFile() {
+        return policyFile;
+    }
+
+    /**
+     * Gets the number of decisions to cache.
+     * @return the cache size
+     */
+    public int getDecisionCacheSize() {
+        return decisionCacheSize;
+    }
+
+    /**
+     * Gets how long decisions are cached for.
+     * @return the time in milliseconds
+     */
+    public long getDecisionTtl() {
+        return decisionTtl;
+    }
+
     /**
      * Sets the template engine.
      * @param v the template engine to set
@@ -117,6 +160,47 @@ public class AuthzLoginSubmodule implements StatelessLoginSubmodule {
 		this.relyingParties = relyingParties;
 	}
     
+    /**
+     * Sets the path of the authorization policy.
+     * @param policyFile the policy path
+     */
+    public void setPolicyFile(String policyFile) {
+        this.policyFile = policyFile;
+    }
+
+    /**
+     * Sets the number of decisions to cache.
+     * @param decisionCacheSize the cache size, or 0 to disable caching
+     */
+    public void setDecisionCacheSize(int decisionCacheSize) {
+        this.decisionCacheSize = decisionCacheSize;
+    }
+
+    /**
+     * Sets how long decisions are cached for.
+     * @param decisionTtl the time in milliseconds
+     */
+    public void setDecisionTtl(long decisionTtl) {
+        this.decisionTtl = decisionTtl;
+    }
+
+    /**
+     * Compiles the authorization policy, if one is set.
+     * 
+     * @throws IOException if the policy can't be read
+     */
+    public void initialize() throws IOException {
+        if (policyFile != null) {
+            policy = new AuthzPolicy(new File(policyFile), decisionCacheSize, decisionTtl);
+            log.info("Compiled {} authz rule(s) from {}", policy.getSize(), policyFile);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.POST_AUTH);
+    }
+
     /** {@inheritDoc} */
     public void run(StatelessLoginServlet servlet, HttpServletRequest request,
             HttpServletResponse response, StatelessAuthenticationInfo info) throws AuthenticationException {
@@ -125,23 +209,30 @@ public class AuthzLoginSubmodule implements StatelessLoginSubmodule {
             return;
         }
         
-        // Check to see if we're managing this SP.
         String rpID = info.getLoginContext().getRelyingPartyId();
-        if (!relyingParties.isEmpty()) {
-	        if (rpID == null || !relyingParties.contains(rpID)) {
-	        	return;
-	        }
-        }
-        
-        log.debug("Monitoring access to relying party {}", rpID);
-       
-        Map<String,String> attrs = info.getResolvedAttributes();
-        String perm = (attrs != null) ? attrs.get(permissionName) : null;
-        if (perm != null && "1".equals(perm)) {
-        	return;
+        if (policy != null) {
+            if (policy.isAllowed(info.getUsername(), rpID, info.getResolvedAttributes())) {
+                return;
+            }
+        } else {
+            // Check to see if we're managing this SP.
+            if (!relyingParties.isEmpty()) {
+                if (rpID == null || !relyingParties.contains(rpID)) {
+                    return;
+                }
+            }
+
+            log.debug("Monitoring access to relying party {}", rpID);
+
+            Map<String,String> attrs = info.getResolvedAttributes();
+            String perm = (attrs != null) ? attrs.get(permissionName) : null;
+            if (perm != null && "1".equals(perm)) {
+                return;
+            }
         }
         
         log.warn("Access denied for relying party {} to principal {}", rpID, info.getUsername());
+        info.setAccessDenied(true);
         
         response.setContentType("text/html");
         response.setHeader("Cache-Control", "content=\"no-store,no-cache,must-revalidate\"");
@@ -151,6 +242,8 @@ public class AuthzLoginSubmodule implements StatelessLoginSubmodule {
         VelocityContext vCtx = new VelocityContext();
         vCtx.put("authnInfo", info);
         vCtx.put("servletPath", request.getContextPath() + request.getServletPath());
+        long start = System.nanoTime();
+        String result = "failed";
         try {
             Template template = velocity.getTemplate(templateName);
             HttpServletHelper.unbindLoginContext(HttpServletHelper.getStorageService(servlet.getServletContext()),
@@ -158,9 +251,13 @@ public class AuthzLoginSubmodule implements StatelessLoginSubmodule {
             PrintWriter writer = response.getWriter();
             template.merge(vCtx, writer);
             writer.flush();
+            result = "success";
         } catch (Exception e) {
             log.error(e.getMessage());
             throw new AuthenticationException("Error while processing notification template.", e);
+        } finally {
+            LoginTrace.record("template-merge", start, templateName,
+                    info.getLoginContext().getRelyingPartyId(), result);
         }
     }
 
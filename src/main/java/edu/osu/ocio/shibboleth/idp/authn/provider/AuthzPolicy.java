@@ -0,0 +1,517 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiled set of authorization rules, each requiring an expression over a user's resolved
+ * attributes to hold for access to a relying party.
+ *
+ * Rules are read from a file with one rule per line: an entity ID, or a prefix ending in "*",
+ * followed by the expression. An expression combines tests of the form {@code name} (present),
+ * {@code name=value}, {@code name!=value} and {@code name~regex} with {@code !}, {@code &},
+ * {@code |} and parentheses; values containing spaces or operators may be double-quoted. The
+ * rule for an exact entity ID wins, then the one with the longest matching prefix, and relying
+ * parties no rule matches aren't managed.
+ *
+ * Entity IDs are held in a character trie, so finding a rule takes one pass over the entity ID,
+ * and recent decisions are cached per user and relying party in a direct-mapped table.
+ */
+public class AuthzPolicy {
+
+    /** Root of the entity ID trie. */
+    private final Node root;
+
+    /** Number of rules. */
+    private final int size;
+
+    /** Cached decisions. */
+    private final AtomicReferenceArray<Decision> decisions;
+
+    /** Milliseconds to cache decisions for. */
+    private final long decisionTtl;
+
+    /**
+     * Constructor.
+     *
+     * @param file          the rule file
+     * @param cacheSize     number of decisions to cache, or 0 to disable caching
+     * @param decisionTtl   milliseconds to cache decisions for
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public AuthzPolicy(File file, int cacheSize, long decisionTtl) throws IOException {
+        NodeBuilder builder = new NodeBuilder();
+        int rules = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                ++number;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int space = 0;
+                while (space < line.length() && !Character.isWhitespace(line.charAt(space))) {
+                    ++space;
+                }
+                try {
+                    Condition condition = compile(line.substring(space));
+                    String entityId = line.substring(0, space);
+                    if (entityId.endsWith("*")) {
+                        builder.add(entityId.substring(0, entityId.length() - 1), 0).prefixRule = condition;
+                    } else {
+                        builder.add(entityId, 0).exactRule = condition;
+                    }
+                    ++rules;
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid authz rule at line " + number + " of " + file
+                            + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        root = builder.build();
+        size = rules;
+        int slots = 1;
+        while (slots < cacheSize) {
+            slots <<= 1;
+        }
+        decisions = (cacheSize > 0) ? new AtomicReferenceArray<Decision>(slots) : null;
+        this.decisionTtl = decisionTtl;
+    }
+
+    /**
+     * Gets the number of rules.
+     * @return the number of rules
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Finds the rule for a relying party.
+     *
+     * @param relyingParty  the entity ID, or null
+     * @return  the condition for access, or null if the relying party isn't managed
+     */
+    public Condition getRule(String relyingParty) {
+        Condition rule = root.prefixRule;
+        if (relyingParty == null) {
+            return rule;
+        }
+        Node node = root;
+        for (int i = 0; i < relyingParty.length() && node != null; ++i) {
+            node = node.child(relyingParty.charAt(i));
+            if (node != null && node.prefixRule != null) {
+                rule = node.prefixRule;
+            }
+        }
+        return (node != null && node.exactRule != null) ? node.exactRule : rule;
+    }
+
+    /**
+     * Decides whether a user may access a relying party.
+     *
+     * @param username      the username
+     * @param relyingParty  the entity ID, or null
+     * @param attributes    the user's resolved attributes
+     * @return  true iff the relying party isn't managed or its rule holds
+     */
+    public boolean isAllowed(String username, String relyingParty, Map<String, String> attributes) {
+        Condition rule = getRule(relyingParty);
+        if (rule == null) {
+            return true;
+        } else if (decisions == null || username == null) {
+            return rule.matches(attributes);
+        }
+
+        long key = HyperLogLog.hash(username)
+                ^ (HyperLogLog.hash((relyingParty != null) ? relyingParty : "") * 0x9e3779b97f4a7c15L);
+        int slot = (int) (key >>> 32) & (decisions.length() - 1);
+        long now = System.currentTimeMillis();
+        Decision cached = decisions.get(slot);
+        if (cached != null && cached.key == key && cached.expires > now) {
+            return cached.allowed;
+        }
+        boolean allowed = rule.matches(attributes);
+        decisions.set(slot, new Decision(key, allowed, now + decisionTtl));
+        return allowed;
+    }
+
+    /**
+     * Compiles an expression.
+     *
+     * @param expression    the expression
+     * @return  the compiled condition
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static Condition compile(String expression) {
+        Parser parser = new Parser(expression);
+        Condition condition = parser.parseOr();
+        parser.skipSpace();
+        if (parser.pos < expression.length()) {
+            throw new IllegalArgumentException("Unexpected '" + expression.charAt(parser.pos) + "' in "
+                    + expression.trim());
+        }
+        return condition;
+    }
+
+    /**
+     * A compiled expression over resolved attributes.
+     */
+    public interface Condition {
+
+        /**
+         * Evaluates the expression.
+         *
+         * @param attributes    resolved attributes
+         * @return  true iff the expression holds
+         */
+        boolean matches(Map<String, String> attributes);
+    }
+
+    /**
+     * Recursive descent parser for expressions.
+     */
+    private static class Parser {
+
+        /** The expression. */
+        private final String text;
+
+        /** Position of the next character. */
+        private int pos;
+
+        /**
+         * Constructor.
+         *
+         * @param text  the expression
+         */
+        Parser(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Parses a disjunction.
+         * @return the condition
+         */
+        Condition parseOr() {
+            Condition left = parseAnd();
+            while (accept('|')) {
+                final Condition a = left;
+                final Condition b = parseAnd();
+                left = new Condition() {
+                    public boolean matches(Map<String, String> attributes) {
+                        return a.matches(attributes) || b.matches(attributes);
+                    }
+                };
+            }
+            return left;
+        }
+
+        /**
+         * Parses a conjunction.
+         * @return the condition
+         */
+        Condition parseAnd() {
+            Condition left = parseNot();
+            while (accept('&')) {
+                final Condition a = left;
+                final Condition b = parseNot();
+                left = new Condition() {
+                    public boolean matches(Map<String, String> attributes) {
+                        return a.matches(attributes) && b.matches(attributes);
+                    }
+                };
+            }
+            return left;
+        }
+
+        /**
+         * Parses a negation, a parenthesized expression or a test.
+         * @return the condition
+         */
+        Condition parseNot() {
+            if (accept('!')) {
+                final Condition a = parseNot();
+                return new Condition() {
+                    public boolean matches(Map<String, String> attributes) {
+                        return !a.matches(attributes);
+                    }
+                };
+            } else if (accept('(')) {
+                Condition a = parseOr();
+                if (!accept(')')) {
+                    throw new IllegalArgumentException("Missing ')' in " + text.trim());
+                }
+                return a;
+            }
+            return parseTest();
+        }
+
+        /**
+         * Parses a test of an attribute.
+         * @return the condition
+         */
+        Condition parseTest() {
+            final String name = parseToken();
+            if (name.length() == 0) {
+                throw new IllegalArgumentException("Missing attribute name in " + text.trim());
+            }
+            skipSpace();
+            if (text.startsWith("!=", pos)) {
+                pos += 2;
+                final String value = parseValue();
+                return new Condition() {
+                    public boolean matches(Map<String, String> attributes) {
+                        return !value.equals(attributes.get(name));
+                    }
+                };
+            } else if (accept('=')) {
+                final String value = parseValue();
+                return new Condition() {
+                    public boolean matches(Map<String, String> attributes) {
+                        return value.equals(attributes.get(name));
+                    }
+                };
+            } else if (accept('~')) {
+                final Pattern regex;
+                try {
+                    regex = Pattern.compile(parseValue());
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException(e.getDescription() + " in " + text.trim());
+                }
+                return new Condition() {
+                    public boolean matches(Map<String, String> attributes) {
+                        String value = attributes.get(name);
+                        return value != null && regex.matcher(value).matches();
+                    }
+                };
+            }
+            return new Condition() {
+                public boolean matches(Map<String, String> attributes) {
+                    return attributes.get(name) != null;
+                }
+            };
+        }
+
+        /**
+         * Parses a value, which may be double-quoted.
+         * @return the value
+         */
+        String parseValue() {
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == '"') {
+                int end = text.indexOf('"', pos + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated string in " + text.trim());
+                }
+                String value = text.substring(pos + 1, end);
+                pos = end + 1;
+                return value;
+            }
+            String value = parseToken();
+            if (value.length() == 0) {
+                throw new IllegalArgumentException("Missing value in " + text.trim());
+            }
+            return value;
+        }
+
+        /**
+         * Parses a run of characters that aren't whitespace or operators.
+         * @return the token, possibly empty
+         */
+        String parseToken() {
+            skipSpace();
+            int start = pos;
+            while (pos < text.length() && "!=~&|()\"".indexOf(text.charAt(pos)) < 0
+                    && !Character.isWhitespace(text.charAt(pos))) {
+                ++pos;
+            }
+            return text.substring(start, pos);
+        }
+
+        /**
+         * Consumes a character if it comes next.
+         *
+         * @param c the character
+         * @return  true iff the character was consumed
+         */
+        boolean accept(char c) {
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                ++pos;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Skips whitespace.
+         */
+        void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                ++pos;
+            }
+        }
+    }
+
+    /**
+     * Node of the entity ID trie, with its children in character order.
+     */
+    private static class Node {
+
+        /** Characters leading to the children, sorted. */
+        private final char[] labels;
+
+        /** Children, in the same order as the labels. */
+        private final Node[] children;
+
+        /** Rule for entity IDs equal to the path to this node, or null. */
+        private final Condition exactRule;
+
+        /** Rule for entity IDs starting with the path to this node, or null. */
+        private final Condition prefixRule;
+
+        /**
+         * Constructor.
+         *
+         * @param labels        characters leading to the children
+         * @param children      the children
+         * @param exactRule     rule for an exact match, or null
+         * @param prefixRule    rule for a prefix match, or null
+         */
+        Node(char[] labels, Node[] children, Condition exactRule, Condition prefixRule) {
+            this.labels = labels;
+            this.children = children;
+            this.exactRule = exactRule;
+            this.prefixRule = prefixRule;
+        }
+
+        /**
+         * Finds a child.
+         *
+         * @param c the character leading to the child
+         * @return  the child, or null
+         */
+        Node child(char c) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (labels[mid] < c) {
+                    low = mid + 1;
+                } else if (labels[mid] > c) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mutable trie node used while loading rules.
+     */
+    private static class NodeBuilder {
+
+        /** Children by character. */
+        private final TreeMap<Character, NodeBuilder> children = new TreeMap<Character, NodeBuilder>();
+
+        /** Rule for an exact match, or null. */
+        private Condition exactRule;
+
+        /** Rule for a prefix match, or null. */
+        private Condition prefixRule;
+
+        /**
+         * Finds or creates the node for a path.
+         *
+         * @param path  the path
+         * @param depth number of characters of the path already consumed
+         * @return  the node
+         */
+        NodeBuilder add(String path, int depth) {
+            if (depth == path.length()) {
+                return this;
+            }
+            NodeBuilder child = children.get(path.charAt(depth));
+            if (child == null) {
+                child = new NodeBuilder();
+                children.put(path.charAt(depth), child);
+            }
+            return child.add(path, depth + 1);
+        }
+
+        /**
+         * Freezes the subtree.
+         * @return the frozen node
+         */
+        Node build() {
+            char[] labels = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, NodeBuilder> entry : children.entrySet()) {
+                labels[i] = entry.getKey();
+                nodes[i++] = entry.getValue().build();
+            }
+            return new Node(labels, nodes, exactRule, prefixRule);
+        }
+    }
+
+    /**
+     * A cached decision.
+     */
+    private static class Decision {
+
+        /** Hash of the user and relying party. */
+        private final long key;
+
+        /** Whether access was allowed. */
+        private final boolean allowed;
+
+        /** Time the decision expires. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param key       hash of the user and relying party
+         * @param allowed   whether access was allowed
+         * @param expires   time the decision expires
+         */
+        Decision(long key, boolean allowed, long expires) {
+            this.key = key;
+            this.allowed = allowed;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the order in which the {@link StatelessLoginServlet} tries its credential backends.
+ *
+ * The backend that last authenticated a user is tried first for that user. Affinity is kept in
+ * a direct-mapped table of 64-bit words, each holding the upper bits of a username hash and the
+ * backend's position in the low byte, so a colliding user simply displaces the previous one.
+ * Otherwise backends can be ranked by their recent success rate divided by their mean latency,
+ * which minimizes the expected time to find the backend that knows a user.
+ */
+public class BackendSelector {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BackendSelector.class);
+
+    /** Milliseconds between rankings. */
+    private static final long RANKING_INTERVAL = 60 * 1000;
+
+    /** Weight of the latest interval in the smoothed success rates and latencies. */
+    private static final double SMOOTHING = 0.3;
+
+    /** Bits of each affinity entry holding the backend position. */
+    private static final long POSITION_MASK = 0xff;
+
+    /** Whether each submodule is a backend that can be reordered. */
+    private final boolean[] backends;
+
+    /** Metrics for each submodule. */
+    private final StepMetrics[] metrics;
+
+    /** Affinity entries, or null if affinity is disabled. */
+    private final AtomicLongArray affinity;
+
+    /** Whether backends are ranked by observed performance. */
+    private final boolean adaptive;
+
+    /** Time of the next ranking. */
+    private final AtomicLong nextRanking = new AtomicLong();
+
+    /** Rank of each submodule, lowest first. */
+    private volatile int[] ranks;
+
+    /** Attempts observed for each submodule as of the last ranking. */
+    private final long[] lastAttempts;
+
+    /** Successes observed for each submodule as of the last ranking. */
+    private final long[] lastSuccesses;
+
+    /** Total latency observed for each submodule as of the last ranking, in microseconds. */
+    private final long[] lastMicros;
+
+    /** Smoothed success rate of each submodule, or -1 if never observed. */
+    private final double[] successRate;
+
+    /** Smoothed mean latency of each submodule in microseconds. */
+    private final double[] latency;
+
+    /**
+     * Constructor.
+     *
+     * @param backends      whether each submodule is a backend that can be reordered
+     * @param metrics       metrics for each submodule
+     * @param affinitySize  number of users to remember a backend for, rounded up to a power of two,
+     *                          or 0 to disable affinity
+     * @param adaptive      whether to rank backends by observed performance
+     */
+    public BackendSelector(boolean[] backends, StepMetrics[] metrics, int affinitySize, boolean adaptive) {
+        if (backends.length > POSITION_MASK) {
+            throw new IllegalArgumentException("Too many submodules for backend selection.");
+        }
+        this.backends = backends;
+        this.metrics = metrics;
+        this.adaptive = adaptive;
+        if (affinitySize > 0) {
+            int size = 1;
+            while (size < affinitySize) {
+                size <<= 1;
+            }
+            affinity = new AtomicLongArray(size);
+        } else {
+            affinity = null;
+        }
+        ranks = new int[backends.length];
+        for (int i = 0; i < ranks.length; ++i) {
+            ranks[i] = i;
+        }
+        lastAttempts = new long[backends.length];
+        lastSuccesses = new long[backends.length];
+        lastMicros = new long[backends.length];
+        successRate = new double[backends.length];
+        latency = new double[backends.length];
+        for (int i = 0; i < successRate.length; ++i) {
+            successRate[i] = -1;
+        }
+        nextRanking.set(System.currentTimeMillis() + RANKING_INTERVAL);
+    }
+
+    /**
+     * Orders the backends in an execution plan for a user, leaving other submodules in place.
+     *
+     * @param plan      indexes of the submodules to run
+     * @param username  the normalized username, or null
+     * @return  the reordered plan, or the original plan if no change is needed
+     */
+    public int[] order(int[] plan, String username) {
+        int preferred = getAffinity(username);
+        if (preferred < 0 && !adaptive) {
+            return plan;
+        }
+
+        int[] ranks = this.ranks;
+        int[] ordered = plan.clone();
+        int[] positions = new int[plan.length];
+        int count = 0;
+        for (int p = 0; p < plan.length; ++p) {
+            if (backends[plan[p]]) {
+                positions[count++] = p;
+            }
+        }
+
+        // Insertion sort of the backends into the positions they occupy.
+        for (int j = 1; j < count; ++j) {
+            int candidate = ordered[positions[j]];
+            int k = j - 1;
+            while (k >= 0 && precedes(candidate, ordered[positions[k]], preferred, ranks)) {
+                ordered[positions[k + 1]] = ordered[positions[k]];
+                --k;
+            }
+            ordered[positions[k + 1]] = candidate;
+        }
+        return ordered;
+    }
+
+    /**
+     * Notes that a backend authenticated a user.
+     *
+     * @param username  the normalized username
+     * @param index     index of the submodule, ignored if it isn't a backend
+     */
+    public void recordSuccess(String username, int index) {
+        if (affinity == null || username == null || index < 0 || !backends[index]) {
+            return;
+        }
+        long hash = HyperLogLog.hash(username);
+        int slot = (int) hash & (affinity.length() - 1);
+        long entry = (hash & ~POSITION_MASK) | (index + 1);
+        if (affinity.get(slot) != entry) {
+            affinity.set(slot, entry);
+        }
+    }
+
+    /**
+     * Gets the backend that last authenticated a user.
+     *
+     * @param username  the normalized username, or null
+     * @return  index of the backend, or -1 if unknown
+     */
+    public int getAffinity(String username) {
+        if (affinity == null || username == null) {
+            return -1;
+        }
+        long hash = HyperLogLog.hash(username);
+        long entry = affinity.get((int) hash & (affinity.length() - 1));
+        if (entry == 0 || (entry & ~POSITION_MASK) != (hash & ~POSITION_MASK)) {
+            return -1;
+        }
+        return (int) (entry & POSITION_MASK) - 1;
+    }
+
+    /**
+     * Re-ranks the backends if adaptive ordering is enabled and the ranking is due.
+     */
+    public void refresh() {
+        if (!adaptive) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = nextRanking.get();
+        if (now >= next && nextRanking.compareAndSet(next, now + RANKING_INTERVAL)) {
+            rank();
+        }
+    }
+
+    /**
+     * Ranks the backends by smoothed success rate per microsecond of latency.
+     */
+    private synchronized void rank() {
+        final double[] scores = new double[backends.length];
+        for (int i = 0; i < backends.length; ++i) {
+            if (!backends[i]) {
+                continue;
+            }
+            long attempts = metrics[i].getLatency().getCount();
+            long successes = metrics[i].getCount(LoginOutcome.AUTHENTICATED);
+            long micros = metrics[i].getLatency().getSum();
+            long deltaAttempts = attempts - lastAttempts[i];
+            if (deltaAttempts > 0) {
+                double rate = (double) (successes - lastSuccesses[i]) / deltaAttempts;
+                double mean = (double) (micros - lastMicros[i]) / deltaAttempts;
+                if (successRate[i] < 0) {
+                    successRate[i] = rate;
+                    latency[i] = mean;
+                } else {
+                    successRate[i] += SMOOTHING * (rate - successRate[i]);
+                    latency[i] += SMOOTHING * (mean - latency[i]);
+                }
+            }
+            lastAttempts[i] = attempts;
+            lastSuccesses[i] = successes;
+            lastMicros[i] = micros;
+            // Backends never observed go first so they get observed.
+            scores[i] = (successRate[i] < 0) ? Double.MAX_VALUE : successRate[i] / (latency[i] + 1);
+        }
+
+        Integer[] order = new Integer[backends.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(scores[b], scores[a]);
+                return (c != 0) ? c : a.compareTo(b);
+            }
+        });
+        int[] newRanks = new int[backends.length];
+        for (int r = 0; r < order.length; ++r) {
+            newRanks[order[r]] = r;
+        }
+        ranks = newRanks;
+        if (log.isDebugEnabled()) {
+            log.debug("Backend ranking updated: {}", Arrays.toString(order));
+        }
+    }
+
+    /**
+     * Determines whether one backend should be tried before another.
+     *
+     * @param a         index of the first backend
+     * @param b         index of the second backend
+     * @param preferred index of the user's preferred backend, or -1
+     * @param ranks     the current ranking
+     * @return  true iff a should be tried before b
+     */
+    private boolean precedes(int a, int b, int preferred, int[] ranks) {
+        if (a == preferred || b == preferred) {
+            return a == preferred;
+        }
+        return adaptive && ranks[a] < ranks[b];
+    }
+}
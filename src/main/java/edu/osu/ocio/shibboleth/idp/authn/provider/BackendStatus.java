@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+/**
+ * Implemented by components that depend on an external service and can report on its health
+ * without contacting it.
+ */
+public interface BackendStatus {
+
+    /**
+     * Gets a name identifying the backend.
+     * 
+     * @return  the backend name
+     */
+    String getBackendName();
+
+    /**
+     * Returns true iff the backend was usable as of the most recent request.
+     * 
+     * @return  indicator of whether the backend is available
+     */
+    boolean isBackendAvailable();
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+/**
+ * Set of IPv4 and IPv6 address ranges in CIDR notation, held in a path-compressed binary trie.
+ *
+ * IPv4 addresses are stored as IPv4-mapped IPv6 addresses, so both families share one trie and
+ * a lookup visits at most one node per distinguishing bit of a 128-bit key, however many ranges
+ * are held. Addresses are parsed without name resolution; anything that isn't an address literal
+ * is rejected.
+ */
+public class CidrTrie {
+
+    /** Length of an address in bits. */
+    private static final int ADDRESS_BITS = 128;
+
+    /** Length of the IPv4-mapped prefix in bits. */
+    static final int IPV4_MAPPED_BITS = 96;
+
+    /** Root of the trie, or null if empty. */
+    private Node root;
+
+    /**
+     * Adds a range.
+     *
+     * @param cidr  an address, optionally followed by a slash and prefix length
+     * @throws IllegalArgumentException if the range is malformed
+     */
+    public void add(String cidr) {
+        int slash = cidr.indexOf('/');
+        byte[] address = parseAddress((slash < 0) ? cidr : cidr.substring(0, slash));
+        if (address == null) {
+            throw new IllegalArgumentException("Invalid address range: " + cidr);
+        }
+        int length = ADDRESS_BITS;
+        if (slash >= 0) {
+            try {
+                length = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid address range: " + cidr);
+            }
+            if (isMapped(address)) {
+                length += IPV4_MAPPED_BITS;
+            }
+        }
+        if (length < 0 || length > ADDRESS_BITS) {
+            throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+        }
+        root = insert(root, mask(address, length), length);
+    }
+
+    /**
+     * Checks whether an address falls in any range.
+     *
+     * @param address   the address as returned by {@link #parseAddress(String)}
+     * @return  true iff the address is in a range
+     */
+    public boolean contains(byte[] address) {
+        Node node = root;
+        while (node != null) {
+            if (commonPrefix(node.key, address) < node.length) {
+                return false;
+            } else if (node.terminal) {
+                return true;
+            }
+            node = bitAt(address, node.length) ? node.one : node.zero;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an address falls in any range.
+     *
+     * @param address   the address in textual form
+     * @return  true iff the address is valid and in a range
+     */
+    public boolean contains(String address) {
+        byte[] parsed = parseAddress(address);
+        return parsed != null && contains(parsed);
+    }
+
+    /**
+     * Inserts a range below a node.
+     *
+     * @param node      the node, or null
+     * @param key       the masked range address
+     * @param length    the prefix length
+     * @return  the node to put in place of the original
+     */
+    private static Node insert(Node node, byte[] key, int length) {
+        if (node == null) {
+            return new Node(key, length, true);
+        }
+        int common = Math.min(commonPrefix(node.key, key), Math.min(node.length, length));
+        if (common == node.length) {
+            if (length == node.length) {
+                node.terminal = true;
+                node.zero = null;
+                node.one = null;
+            } else if (!node.terminal) {
+                // A terminal node already covers the whole range.
+                if (bitAt(key, node.length)) {
+                    node.one = insert(node.one, key, length);
+                } else {
+                    node.zero = insert(node.zero, key, length);
+                }
+            }
+            return node;
+        }
+
+        // Split at the first differing bit.
+        Node split = new Node(mask(key, common), common, common == length);
+        if (!split.terminal) {
+            Node leaf = new Node(key, length, true);
+            if (bitAt(key, common)) {
+                split.one = leaf;
+                split.zero = node;
+            } else {
+                split.zero = leaf;
+                split.one = node;
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address literal, ignoring any port, brackets or zone.
+     *
+     * @param text  the address
+     * @return  the address as 16 bytes, with IPv4 addresses mapped, or null if it isn't valid
+     */
+    public static byte[] parseAddress(String text) {
+        if (text == null) {
+            return null;
+        }
+        String s = text.trim();
+        if (s.startsWith("[")) {
+            int close = s.indexOf(']');
+            if (close < 0) {
+                return null;
+            }
+            s = s.substring(1, close);
+        } else if (s.indexOf(':') >= 0 && s.indexOf(':') == s.lastIndexOf(':') && s.indexOf('.') >= 0) {
+            // IPv4 with a port
+            s = s.substring(0, s.indexOf(':'));
+        }
+        int zone = s.indexOf('%');
+        if (zone >= 0) {
+            s = s.substring(0, zone);
+        }
+
+        byte[] address = new byte[16];
+        if (s.indexOf(':') < 0) {
+            address[10] = (byte) 0xff;
+            address[11] = (byte) 0xff;
+            return parseIPv4(s, address, 12) ? address : null;
+        }
+        return parseIPv6(s, address) ? address : null;
+    }
+
+    /**
+     * Parses a dotted quad into four bytes.
+     *
+     * @param s         the dotted quad
+     * @param address   buffer for the address
+     * @param offset    position in the buffer
+     * @return  true iff the dotted quad is valid
+     */
+    private static boolean parseIPv4(String s, byte[] address, int offset) {
+        int octet = 0;
+        int digits = 0;
+        int index = offset;
+        for (int i = 0; i <= s.length(); ++i) {
+            char c = (i < s.length()) ? s.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return false;
+                }
+            } else if (c == '.' && digits > 0 && index < offset + 4) {
+                address[index++] = (byte) octet;
+                octet = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        return index == offset + 4;
+    }
+
+    /**
+     * Parses an IPv6 address into sixteen bytes.
+     *
+     * @param s         the address
+     * @param address   buffer for the address
+     * @return  true iff the address is valid
+     */
+    private static boolean parseIPv6(String s, byte[] address) {
+        int gap = s.indexOf("::");
+        if (gap >= 0 && s.indexOf("::", gap + 1) >= 0) {
+            return false;
+        }
+        String head = (gap >= 0) ? s.substring(0, gap) : s;
+        String tail = (gap >= 0) ? s.substring(gap + 2) : "";
+
+        byte[] front = new byte[16];
+        int frontLength = parseGroups(head, front);
+        byte[] back = new byte[16];
+        int backLength = parseGroups(tail, back);
+        if (frontLength < 0 || backLength < 0 || frontLength + backLength > 16
+                || (gap < 0 && frontLength != 16) || (gap >= 0 && frontLength + backLength == 16)) {
+            return false;
+        }
+        System.arraycopy(front, 0, address, 0, frontLength);
+        System.arraycopy(back, 0, address, 16 - backLength, backLength);
+        return true;
+    }
+
+    /**
+     * Parses colon-separated hex groups, the last of which may be a dotted quad.
+     *
+     * @param s     the groups, possibly empty
+     * @param out   buffer for the bytes
+     * @return  the number of bytes parsed, or -1 if the groups are invalid
+     */
+    private static int parseGroups(String s, byte[] out) {
+        if (s.length() == 0) {
+            return 0;
+        }
+        String[] groups = s.split(":", -1);
+        int length = 0;
+        for (int g = 0; g < groups.length; ++g) {
+            String group = groups[g];
+            if (g == groups.length - 1 && group.indexOf('.') >= 0) {
+                if (length + 4 > 16 || !parseIPv4(group, out, length)) {
+                    return -1;
+                }
+                return length + 4;
+            } else if (group.length() == 0 || group.length() > 4 || length + 2 > 16) {
+                return -1;
+            }
+            int value;
+            try {
+                value = Integer.parseInt(group, 16);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            if (value < 0) {
+                return -1;
+            }
+            out[length++] = (byte) (value >>> 8);
+            out[length++] = (byte) value;
+        }
+        return length;
+    }
+
+    /**
+     * Checks whether an address is IPv4-mapped.
+     *
+     * @param address   the address
+     * @return  true iff the address came from an IPv4 literal
+     */
+    static boolean isMapped(byte[] address) {
+        for (int i = 0; i < 10; ++i) {
+            if (address[i] != 0) {
+                return false;
+            }
+        }
+        return address[10] == (byte) 0xff && address[11] == (byte) 0xff;
+    }
+
+    /**
+     * Counts the leading bits two addresses have in common.
+     *
+     * @param a the first address
+     * @param b the second address
+     * @return  the number of common leading bits
+     */
+    static int commonPrefix(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; ++i) {
+            int diff = (a[i] ^ b[i]) & 0xff;
+            if (diff != 0) {
+                return i * 8 + Integer.numberOfLeadingZeros(diff) - 24;
+            }
+        }
+        return ADDRESS_BITS;
+    }
+
+    /**
+     * Gets a bit of an address.
+     *
+     * @param address   the address
+     * @param index     the bit index, from the most significant
+     * @return  true iff the bit is set
+     */
+    private static boolean bitAt(byte[] address, int index) {
+        return (address[index >>> 3] & (0x80 >>> (index & 7))) != 0;
+    }
+
+    /**
+     * Clears the bits of an address beyond a prefix.
+     *
+     * @param address   the address
+     * @param length    the prefix length
+     * @return  a masked copy of the address
+     */
+    private static byte[] mask(byte[] address, int length) {
+        byte[] masked = new byte[16];
+        for (int i = 0; i < 16; ++i) {
+            int bits = Math.max(0, Math.min(8, length - i * 8));
+            masked[i] = (byte) (address[i] & (0xff00 >>> bits));
+        }
+        return masked;
+    }
+
+    /**
+     * Node of the trie, covering the addresses sharing a prefix.
+     */
+    private static class Node {
+
+        /** The prefix, with later bits cleared. */
+        private final byte[] key;
+
+        /** Length of the prefix in bits. */
+        private final int length;
+
+        /** Whether the prefix is itself a range in the set. */
+        private boolean terminal;
+
+        /** Subtree whose next bit is 0. */
+        private Node zero;
+
+        /** Subtree whose next bit is 1. */
+        private Node one;
+
+        /**
+         * Constructor.
+         *
+         * @param key       the prefix
+         * @param length    length of the prefix in bits
+         * @param terminal  whether the prefix is a range in the set
+         */
+        Node(byte[] key, int length, boolean terminal) {
+            this.key = key;
+            this.length = length;
+            this.terminal = terminal;
+        }
+    }
+}
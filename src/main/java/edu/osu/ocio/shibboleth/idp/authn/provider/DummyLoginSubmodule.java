@@ -15,7 +15,9 @@
  */
 package edu.osu.ocio.shibboleth.idp.authn.provider;
 
-import java.util.List;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -29,7 +31,7 @@ import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
 /**
  * Submodule that supports a dummy username/password combination for testing.
  */
-public class DummyLoginSubmodule implements StatelessLoginSubmodule {
+public class DummyLoginSubmodule implements PhasedLoginSubmodule, AuthnMethodSupport {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(DummyLoginSubmodule.class);
@@ -72,6 +74,16 @@ public class DummyLoginSubmodule implements StatelessLoginSubmodule {
         password = p;
     }
 
+    /** {@inheritDoc} */
+    public Set<String> getAuthnMethods() {
+        return Collections.singleton(AuthnContext.PPT_AUTHN_CTX);
+    }
+
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.CREDENTIAL);
+    }
+
     /** {@inheritDoc} */
     public void run(StatelessLoginServlet servlet, HttpServletRequest request,
             HttpServletResponse response, StatelessAuthenticationInfo info) throws AuthenticationException {
@@ -80,14 +92,7 @@ public class DummyLoginSubmodule implements StatelessLoginSubmodule {
             return;
         }
         
-        List<String> requestedMethods = info.getLoginContext().getRequestedAuthenticationMethods();
-        if (requestedMethods != null && !requestedMethods.isEmpty() &&
-                !requestedMethods.contains(AuthnContext.PPT_AUTHN_CTX)) {
-            log.debug("Request does not allow for password-based authn.");
-            return;
-        }
-
-        String u = request.getParameter("j_username");
+        String u = info.getSubmittedUsername();
         String p = request.getParameter("j_password");
         
         if (u != null) {
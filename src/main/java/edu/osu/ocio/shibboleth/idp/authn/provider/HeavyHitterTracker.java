@@ -0,0 +1,294 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Finds the most frequent keys in a stream over a sliding window, in fixed memory.
+ *
+ * Each window counts keys in a count-min sketch and keeps a small table of candidates whose
+ * estimated counts are the highest seen. The sliding estimate weights the previous window by
+ * the part of it still inside the window. All updates are CAS operations, so recording never locks.
+ */
+public class HeavyHitterTracker {
+
+    /** Rows in the count-min sketch. */
+    private static final int DEPTH = 4;
+
+    /** Number of keys reported. */
+    private final int capacity;
+
+    /** Columns in each row of the count-min sketch, a power of two. */
+    private final int width;
+
+    /** Length of a window in milliseconds. */
+    private final long windowDuration;
+
+    /** Current window. */
+    private final AtomicReference<Window> current = new AtomicReference<Window>();
+
+    /** Window before the current one, or null. */
+    private volatile Window previous;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity          number of keys to report
+     * @param width             columns in each row of the sketch, rounded up to a power of two
+     * @param windowDuration    length of a window in milliseconds
+     */
+    public HeavyHitterTracker(int capacity, int width, long windowDuration) {
+        if (capacity < 1 || windowDuration < 1) {
+            throw new IllegalArgumentException("Capacity and window duration must be positive.");
+        }
+        this.capacity = capacity;
+        int w = 1;
+        while (w < width) {
+            w <<= 1;
+        }
+        this.width = w;
+        this.windowDuration = windowDuration;
+        current.set(new Window(System.currentTimeMillis() / windowDuration));
+    }
+
+    /**
+     * Gets the length of a window in milliseconds.
+     * @return the window duration
+     */
+    public long getWindowDuration() {
+        return windowDuration;
+    }
+
+    /**
+     * Records an occurrence of a key.
+     *
+     * @param key   the key, ignored if null
+     */
+    public void record(String key) {
+        if (key == null) {
+            return;
+        }
+        Window w = getWindow(System.currentTimeMillis() / windowDuration);
+        long hash = HyperLogLog.hash(key);
+        w.offer(key, w.increment(hash));
+    }
+
+    /**
+     * Gets the most frequent keys over the sliding window, highest first.
+     *
+     * @return  the keys and their estimated counts
+     */
+    public List<Map.Entry<String, Long>> getTop() {
+        long now = System.currentTimeMillis();
+        Window cur = getWindow(now / windowDuration);
+        Window prev = previous;
+        if (prev != null && prev.epoch != cur.epoch - 1) {
+            prev = null;
+        }
+        double weight = 1.0 - (double) (now % windowDuration) / windowDuration;
+
+        Map<String, Long> counts = new HashMap<String, Long>();
+        collect(cur, counts);
+        if (prev != null) {
+            collect(prev, counts);
+        }
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            long hash = HyperLogLog.hash(entry.getKey());
+            long count = cur.estimate(hash);
+            if (prev != null) {
+                count += Math.round(prev.estimate(hash) * weight);
+            }
+            entry.setValue(count);
+        }
+
+        List<Map.Entry<String, Long>> top = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+        Collections.sort(top, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        return (top.size() > capacity) ? top.subList(0, capacity) : top;
+    }
+
+    /**
+     * Gets the window for a time, rotating if it has passed.
+     *
+     * @param epoch index of the window since the epoch
+     * @return  the window
+     */
+    private Window getWindow(long epoch) {
+        Window w = current.get();
+        while (w.epoch < epoch) {
+            Window fresh = new Window(epoch);
+            if (current.compareAndSet(w, fresh)) {
+                previous = w;
+                return fresh;
+            }
+            w = current.get();
+        }
+        return w;
+    }
+
+    /**
+     * Adds the candidate keys of a window to a map.
+     *
+     * @param w         the window
+     * @param counts    the map
+     */
+    private void collect(Window w, Map<String, Long> counts) {
+        for (int i = 0; i < capacity; ++i) {
+            Candidate c = w.candidates.get(i);
+            if (c != null) {
+                counts.put(c.key, 0L);
+            }
+        }
+    }
+
+    /**
+     * Key whose count is among the highest in a window.
+     */
+    private static class Candidate {
+
+        /** The key. */
+        private final String key;
+
+        /** Estimated count when last updated. */
+        private final long count;
+
+        /**
+         * Constructor.
+         *
+         * @param key   the key
+         * @param count estimated count
+         */
+        Candidate(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Counts for one window.
+     */
+    private class Window {
+
+        /** Index of the window since the epoch. */
+        private final long epoch;
+
+        /** Count-min sketch, one row after another. */
+        private final AtomicLongArray sketch = new AtomicLongArray(DEPTH * width);
+
+        /** Candidate keys. */
+        private final AtomicReferenceArray<Candidate> candidates = new AtomicReferenceArray<Candidate>(capacity);
+
+        /**
+         * Constructor.
+         *
+         * @param epoch index of the window since the epoch
+         */
+        Window(long epoch) {
+            this.epoch = epoch;
+        }
+
+        /**
+         * Counts a key.
+         *
+         * @param hash  hash of the key
+         * @return  the key's estimated count
+         */
+        long increment(long hash) {
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; ++row) {
+                min = Math.min(min, sketch.incrementAndGet(row * width + column(hash, row)));
+            }
+            return min;
+        }
+
+        /**
+         * Estimates the count of a key.
+         *
+         * @param hash  hash of the key
+         * @return  the key's estimated count
+         */
+        long estimate(long hash) {
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; ++row) {
+                min = Math.min(min, sketch.get(row * width + column(hash, row)));
+            }
+            return min;
+        }
+
+        /**
+         * Updates the candidates with a key's count, replacing the lowest if the key is new.
+         *
+         * @param key   the key
+         * @param count the key's estimated count
+         */
+        void offer(String key, long count) {
+            while (true) {
+                int lowest = -1;
+                long lowestCount = Long.MAX_VALUE;
+                Candidate lowestCandidate = null;
+                for (int i = 0; i < capacity; ++i) {
+                    Candidate c = candidates.get(i);
+                    if (c != null && c.key.equals(key)) {
+                        if (c.count >= count || candidates.compareAndSet(i, c, new Candidate(key, count))) {
+                            return;
+                        }
+                        lowest = -1;
+                        break;
+                    }
+                    long n = (c == null) ? -1 : c.count;
+                    if (n < lowestCount) {
+                        lowest = i;
+                        lowestCount = n;
+                        lowestCandidate = c;
+                    }
+                }
+                if (lowest < 0) {
+                    // Lost a race updating this key, so rescan.
+                    continue;
+                }
+                if (lowestCount >= count
+                        || candidates.compareAndSet(lowest, lowestCandidate, new Candidate(key, count))) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Maps a key's hash to a column of a row.
+         *
+         * @param hash  hash of the key
+         * @param row   the row
+         * @return  the column
+         */
+        private int column(long hash, int row) {
+            // Derive independent row hashes from the two halves of the hash.
+            int h = (int) hash + row * (int) (hash >>> 32);
+            return h & (width - 1);
+        }
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.login.LoginException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
+
+/**
+ * Submodule that checks a password against a group of redundant {@link JAASLoginSubmodule}s,
+ * hedging against a slow backend.
+ * 
+ * The first member is asked first. If it hasn't answered within a delay taken from a percentile
+ * of recent backend latencies, the next member is asked as well, and the first answer wins.
+ * Hedges are limited by a budget relative to the number of logins, so a broadly slow backend
+ * doesn't double the load on the others. A member that fails outright is failed over to the next
+ * one without counting against the budget.
+ */
+public class HedgedLoginSubmodule implements PhasedLoginSubmodule, AuthnMethodSupport, WarmUpSupport {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(HedgedLoginSubmodule.class);
+
+    /** Budget units making up one hedge. */
+    private static final long HEDGE_COST = 1000;
+
+    /** Most hedges that can be saved up. */
+    private static final long MAX_BUDGET = 10 * HEDGE_COST;
+
+    /** Backend answers between recomputing the hedge delay. */
+    private static final int DELAY_WINDOW = 256;
+
+    /** Redundant backends, in order of preference. */
+    private List<JAASLoginSubmodule> members;
+
+    /** Percentile of backend latency after which to hedge. */
+    private double hedgePercentile = 95;
+
+    /** Most hedges per login. */
+    private double hedgeBudget = 0.05;
+
+    /** Shortest hedge delay in milliseconds. */
+    private long minHedgeDelay = 10;
+
+    /** Longest hedge delay in milliseconds, used until latencies have been observed. */
+    private long maxHedgeDelay = 1000;
+
+    /** Most backend checks in progress at once. */
+    private int maxThreads = 64;
+
+    /** Authentication methods supported by any member. */
+    private Set<String> authnMethods;
+
+    /** Runs the backend checks. */
+    private ThreadPoolExecutor executor;
+
+    /** Latency of backend answers. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Bucket counts of the latency histogram as of the last delay computation. */
+    private long[] lastCounts;
+
+    /** Current hedge delay in microseconds. */
+    private volatile long hedgeDelay;
+
+    /** Number of backend answers. */
+    private final AtomicLong answers = new AtomicLong();
+
+    /** Hedging budget remaining, in units of 1/1000 of a hedge. */
+    private final AtomicLong budget = new AtomicLong(MAX_BUDGET);
+
+    /** Number of hedges sent. */
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * Gets the redundant backends.
+     * @return the backends, in order of preference
+     */
+    public List<JAASLoginSubmodule> getMembers() {
+        return members;
+    }
+
+    /**
+     * Sets the redundant backends.
+     * @param members the backends, in order of preference
+     */
+    public void setMembers(List<JAASLoginSubmodule> members) {
+        this.members = members;
+    }
+
+    /**
+     * Gets the percentile of backend latency after which to hedge.
+     * @return the percentile
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Sets the percentile of backend latency after which to hedge.
+     * @param hedgePercentile the percentile, from 0 to 100
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Gets the most hedges per login.
+     * @return the hedge budget
+     */
+    public double getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * Sets the most hedges per login.
+     * @param hedgeBudget the hedge budget, such as 0.05 for at most 5% extra backend checks
+     */
+    public void setHedgeBudget(double hedgeBudget) {
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    /**
+     * Gets the shortest hedge delay.
+     * @return the delay in milliseconds
+     */
+    public long getMinHedgeDelay() {
+        return minHedgeDelay;
+    }
+
+    /**
+     * Sets the shortest hedge delay.
+     * @param minHedgeDelay the delay in milliseconds
+     */
+    public void setMinHedgeDelay(long minHedgeDelay) {
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    /**
+     * Gets the longest hedge delay.
+     * @return the delay in milliseconds
+     */
+    public long getMaxHedgeDelay() {
+        return maxHedgeDelay;
+    }
+
+    /**
+     * Sets the longest hedge delay, also used until latencies have been observed.
+     * @param maxHedgeDelay the delay in milliseconds
+     */
+    public void setMaxHedgeDelay(long maxHedgeDelay) {
+        this.maxHedgeDelay = maxHedgeDelay;
+    }
+
+    /**
+     * Gets the most backend checks in progress at once.
+     * @return the thread limit
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Sets the most backend checks in progress at once. Logins beyond the limit check the
+     * members in turn on the request thread.
+     * @param maxThreads the thread limit
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Gets the current hedge delay.
+     * @return the delay in microseconds
+     */
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Gets the number of hedges sent.
+     * @return the hedge count
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /** {@inheritDoc} */
+    public Set<String> getAuthnMethods() {
+        return authnMethods;
+    }
+
+    /**
+     * Starts the backend threads. Must be called once the properties are set.
+     */
+    public synchronized void initialize() {
+        if (members == null || members.isEmpty()) {
+            throw new IllegalArgumentException("Hedged login members not set.");
+        } else if (maxThreads < 1) {
+            throw new IllegalArgumentException("Thread limit must be positive.");
+        }
+        authnMethods = new HashSet<String>();
+        for (JAASLoginSubmodule member : members) {
+            authnMethods.addAll(member.getAuthnMethods());
+        }
+        lastCounts = new long[latency.getBucketCount()];
+        hedgeDelay = maxHedgeDelay * 1000;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HedgedLogin-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the backend threads.
+     */
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Starts the backend threads and warms up the members.
+     * 
+     * @throws Exception if a member couldn't be warmed up
+     */
+    public void warmUp() throws Exception {
+        executor.prestartAllCoreThreads();
+        for (JAASLoginSubmodule member : members) {
+            member.warmUp();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.CREDENTIAL);
+    }
+
+    /** {@inheritDoc} */
+    public void run(StatelessLoginServlet servlet, HttpServletRequest request, HttpServletResponse response,
+            StatelessAuthenticationInfo info) throws AuthenticationException, LoginException {
+
+        if (info.isAuthenticated()) {
+            return;
+        }
+
+        String u = info.getSubmittedUsername();
+        String p = request.getParameter("j_password");
+        if (u == null) {
+            return;
+        } else if (p == null || p.isEmpty()) {
+            info.setInvalidPassword(true);
+            return;
+        }
+
+        depositBudget();
+        long start = System.nanoTime();
+        CompletionService<Attempt> attempts = new ExecutorCompletionService<Attempt>(executor);
+        int next = 0;
+        int pending = 0;
+        boolean hedging = members.size() > 1;
+        long deadline = start + hedgeDelay * 1000;
+        LoginException error = null;
+        try {
+            attempts.submit(new Attempt(members.get(next), u, p));
+            ++next;
+            ++pending;
+            while (pending > 0) {
+                Future<Attempt> done;
+                if (hedging && next < members.size()) {
+                    done = attempts.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        if (withdrawBudget()) {
+                            log.debug("No answer from backend after {}us, hedging to {}", hedgeDelay,
+                                    members.get(next).getJaasConfigName());
+                            attempts.submit(new Attempt(members.get(next), u, p));
+                            ++next;
+                            ++pending;
+                            hedges.incrementAndGet();
+                            deadline = System.nanoTime() + hedgeDelay * 1000;
+                        } else {
+                            hedging = false;
+                        }
+                        continue;
+                    }
+                } else {
+                    done = attempts.take();
+                }
+                --pending;
+
+                Attempt attempt = done.get();
+                if (attempt.error == null) {
+                    copyResult(attempt.result, info);
+                    if (LoginTrace.isEnabled()) {
+                        LoginTrace.record("hedged-login", start, attempt.member.getJaasConfigName(),
+                                info.getLoginContext().getRelyingPartyId(), "attempts=" + next);
+                    }
+                    return;
+                }
+
+                // Fail over to the next member if nothing else is outstanding.
+                error = attempt.error;
+                if (pending == 0 && next < members.size()) {
+                    attempts.submit(new Attempt(members.get(next), u, p));
+                    ++next;
+                    ++pending;
+                    deadline = System.nanoTime() + hedgeDelay * 1000;
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            log.debug("No thread available for hedged login, checking remaining members in turn.");
+            if (pending > 0) {
+                error = awaitAnswer(attempts, pending, info);
+                if (error == null) {
+                    return;
+                }
+            }
+            if (next < members.size()) {
+                checkInTurn(next, u, p, info);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoginException("Interrupted while waiting for backend.");
+        } catch (ExecutionException e) {
+            throw new LoginException(String.valueOf(e.getCause()));
+        }
+        throw error;
+    }
+
+    /**
+     * Waits for the outstanding attempts once no more can be started.
+     * 
+     * @param attempts  the attempts
+     * @param pending   number of attempts outstanding
+     * @param info      object for describing the result
+     * @return  null if a member answered, or the last error
+     * @throws LoginException   raised if interrupted
+     */
+    private LoginException awaitAnswer(CompletionService<Attempt> attempts, int pending,
+            StatelessAuthenticationInfo info) throws LoginException {
+        LoginException error = null;
+        try {
+            while (pending-- > 0) {
+                Attempt attempt = attempts.take().get();
+                if (attempt.error == null) {
+                    copyResult(attempt.result, info);
+                    return null;
+                }
+                error = attempt.error;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoginException("Interrupted while waiting for backend.");
+        } catch (ExecutionException e) {
+            throw new LoginException(String.valueOf(e.getCause()));
+        }
+        return error;
+    }
+
+    /**
+     * Checks the remaining members one at a time on the request thread.
+     * 
+     * @param first     index of the first member to check
+     * @param u         the normalized username
+     * @param p         the password
+     * @param info      object for describing the result
+     * @throws LoginException   raised if no member answered
+     */
+    private void checkInTurn(int first, String u, String p, StatelessAuthenticationInfo info)
+            throws LoginException {
+        for (int i = first; i < members.size(); ++i) {
+            try {
+                members.get(i).checkPassword(u, p, info);
+                return;
+            } catch (LoginException e) {
+                if (i == members.size() - 1) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds one login's share of the hedging budget.
+     */
+    private void depositBudget() {
+        long share = (long) (hedgeBudget * HEDGE_COST);
+        long current = budget.get();
+        while (current < MAX_BUDGET && !budget.compareAndSet(current, Math.min(MAX_BUDGET, current + share))) {
+            current = budget.get();
+        }
+    }
+
+    /**
+     * Takes one hedge from the budget.
+     * 
+     * @return  true iff the budget allowed a hedge
+     */
+    private boolean withdrawBudget() {
+        long current = budget.get();
+        while (current >= HEDGE_COST) {
+            if (budget.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+            current = budget.get();
+        }
+        return false;
+    }
+
+    /**
+     * Records the latency of a backend answer, recomputing the hedge delay periodically.
+     * 
+     * @param nanos the latency
+     */
+    private void recordAnswer(long nanos) {
+        latency.recordNanos(nanos);
+        if (answers.incrementAndGet() % DELAY_WINDOW == 0) {
+            updateHedgeDelay();
+        }
+    }
+
+    /**
+     * Sets the hedge delay to the configured percentile of the latencies seen since the last update.
+     */
+    private synchronized void updateHedgeDelay() {
+        long[] delta = new long[lastCounts.length];
+        long total = 0;
+        for (int i = 0; i < delta.length; ++i) {
+            long count = latency.getCountAt(i);
+            delta[i] = count - lastCounts[i];
+            lastCounts[i] = count;
+            total += delta[i];
+        }
+        if (total == 0) {
+            return;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * hedgePercentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < delta.length; ++i) {
+            seen += delta[i];
+            if (seen >= target) {
+                long micros = LatencyHistogram.getUpperBound(i);
+                hedgeDelay = Math.max(minHedgeDelay * 1000, Math.min(maxHedgeDelay * 1000, micros));
+                log.debug("Hedge delay set to {}us", hedgeDelay);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the result of a member's check.
+     * 
+     * @param from  the member's result
+     * @param to    object for describing the result
+     */
+    private static void copyResult(StatelessAuthenticationInfo from, StatelessAuthenticationInfo to) {
+        if (from.isAuthenticated()) {
+            to.setUsername(from.getUsername());
+            to.setAuthnMethod(from.getAuthnMethod());
+            to.setAuthnInstant(from.getAuthnInstant());
+        }
+        to.setUnknownUsername(to.isUnknownUsername() || from.isUnknownUsername());
+        to.setInvalidPassword(to.isInvalidPassword() || from.isInvalidPassword());
+        to.setExpiredPassword(to.isExpiredPassword() || from.isExpiredPassword());
+        to.setAccountLocked(to.isAccountLocked() || from.isAccountLocked());
+        to.setAccountDisabled(to.isAccountDisabled() || from.isAccountDisabled());
+    }
+
+    /**
+     * A check of the password against one member.
+     */
+    private class Attempt implements Callable<Attempt> {
+
+        /** The member checked. */
+        private final JAASLoginSubmodule member;
+
+        /** The normalized username. */
+        private final String username;
+
+        /** The password. */
+        private final String password;
+
+        /** Result of the check. */
+        private final StatelessAuthenticationInfo result = new StatelessAuthenticationInfo();
+
+        /** Unrecognized error from the member, or null if it answered. */
+        private LoginException error;
+
+        /**
+         * Constructor.
+         * 
+         * @param member    the member to check
+         * @param username  the normalized username
+         * @param password  the password
+         */
+        Attempt(JAASLoginSubmodule member, String username, String password) {
+            this.member = member;
+            this.username = username;
+            this.password = password;
+        }
+
+        /** {@inheritDoc} */
+        public Attempt call() {
+            long start = System.nanoTime();
+            try {
+                member.checkPassword(username, password, result);
+                recordAnswer(System.nanoTime() - start);
+            } catch (LoginException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new LoginException(e.getMessage());
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct strings added to it, in fixed memory.
+ *
+ * Registers are packed four to an int and updated with a CAS, so concurrent adds never lock.
+ * Sketches of the same precision can be merged, and serialized for combining elsewhere.
+ */
+public class HyperLogLog {
+
+    /** Smallest supported precision. */
+    public static final int MIN_PRECISION = 4;
+
+    /** Largest supported precision. */
+    public static final int MAX_PRECISION = 16;
+
+    /** Number of index bits. */
+    private final int precision;
+
+    /** Number of registers. */
+    private final int registerCount;
+
+    /** Registers, packed four per int. */
+    private final AtomicIntegerArray registers;
+
+    /**
+     * Constructor.
+     *
+     * @param precision number of index bits, giving 2^precision registers and a standard
+     *                  error of about 1.04/sqrt(2^precision)
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION + " and "
+                    + MAX_PRECISION + ".");
+        }
+        this.precision = precision;
+        registerCount = 1 << precision;
+        registers = new AtomicIntegerArray(registerCount / 4);
+    }
+
+    /**
+     * Gets the number of index bits.
+     * @return the precision
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Adds a value to the sketch.
+     *
+     * @param value the value to add
+     */
+    public void add(String value) {
+        long hash = hash(value);
+        int index = (int) (hash >>> (64 - precision));
+        // Force a stop bit so the rank is bounded by the remaining bits.
+        long rest = (hash << precision) | (1L << (precision - 1));
+        raise(index, Long.numberOfLeadingZeros(rest) + 1);
+    }
+
+    /**
+     * Adds the contents of another sketch to this one.
+     *
+     * @param other sketch of the same precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge sketches of different precision.");
+        }
+        for (int i = 0; i < registerCount; ++i) {
+            raise(i, other.get(i));
+        }
+    }
+
+    /**
+     * Estimates the number of distinct values added.
+     *
+     * @return  the estimated cardinality
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < registerCount; ++i) {
+            int r = get(i);
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                ++zeros;
+            }
+        }
+        double m = registerCount;
+        double alpha;
+        if (registerCount == 16) {
+            alpha = 0.673;
+        } else if (registerCount == 32) {
+            alpha = 0.697;
+        } else if (registerCount == 64) {
+            alpha = 0.709;
+        } else {
+            alpha = 0.7213 / (1 + 1.079 / m);
+        }
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities.
+            estimate = m * Math.log(m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Serializes the sketch as its precision followed by one byte per register.
+     *
+     * @return  the serialized sketch
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[registerCount + 1];
+        bytes[0] = (byte) precision;
+        for (int i = 0; i < registerCount; ++i) {
+            bytes[i + 1] = (byte) get(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Deserializes a sketch produced by {@link #toByteArray()}.
+     *
+     * @param bytes the serialized sketch
+     * @return  the sketch
+     */
+    public static HyperLogLog fromByteArray(byte[] bytes) {
+        HyperLogLog hll = new HyperLogLog(bytes[0]);
+        if (bytes.length != hll.registerCount + 1) {
+            throw new IllegalArgumentException("Serialized sketch has the wrong length.");
+        }
+        for (int i = 0; i < hll.registerCount; ++i) {
+            hll.raise(i, bytes[i + 1]);
+        }
+        return hll;
+    }
+
+    /**
+     * Gets the value of a register.
+     *
+     * @param index the register
+     * @return  the register value
+     */
+    private int get(int index) {
+        return (registers.get(index >>> 2) >>> ((index & 3) << 3)) & 0xff;
+    }
+
+    /**
+     * Raises a register to a value if it's lower.
+     *
+     * @param index the register
+     * @param value the new value
+     */
+    private void raise(int index, int value) {
+        int slot = index >>> 2;
+        int shift = (index & 3) << 3;
+        while (true) {
+            int packed = registers.get(slot);
+            if (((packed >>> shift) & 0xff) >= value) {
+                return;
+            }
+            int updated = (packed & ~(0xff << shift)) | (value << shift);
+            if (registers.compareAndSet(slot, packed, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hashes a string to 64 bits with FNV-1a followed by the MurmurHash3 finalizer.
+     *
+     * @param value the string
+     * @return  the hash
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); ++i) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
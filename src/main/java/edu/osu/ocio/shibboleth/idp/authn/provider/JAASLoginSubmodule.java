@@ -17,6 +17,7 @@ package edu.osu.ocio.shibboleth.idp.authn.provider;
 
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -27,6 +28,8 @@ import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
 import javax.security.auth.login.LoginException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -40,7 +43,7 @@ import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
 /**
  * Submodule that validates credentials using JAAS.
  */
-public class JAASLoginSubmodule implements StatelessLoginSubmodule {
+public class JAASLoginSubmodule implements PhasedLoginSubmodule, AuthnMethodSupport, WarmUpSupport {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(JAASLoginSubmodule.class);
@@ -50,6 +53,9 @@ public class JAASLoginSubmodule implements StatelessLoginSubmodule {
 
     /** Supported authentication methods. */
     private Set<String> authnMethods = new HashSet<String>();
+
+    /** Optional pre-screen of valid usernames. */
+    private UsernameBloomFilter knownUsernames;
     
     /** Error messages indicating an unknown username. */
     private List<String> unknownUsernameErrors = new ArrayList<String>();
@@ -146,6 +152,22 @@ public class JAASLoginSubmodule implements StatelessLoginSubmodule {
     }
     
 
+    /**
+     * Gets the pre-screen of valid usernames.
+     * @return the username filter, or null
+     */
+    public UsernameBloomFilter getKnownUsernames() {
+        return knownUsernames;
+    }
+
+    /**
+     * Sets the pre-screen of valid usernames.
+     * @param knownUsernames the username filter to set, or null
+     */
+    public void setKnownUsernames(UsernameBloomFilter knownUsernames) {
+        this.knownUsernames = knownUsernames;
+    }
+
     /**
      * Sets the supported authentication methods.
      * @param authnMethods the authn methods to set
@@ -207,6 +229,8 @@ public class JAASLoginSubmodule implements StatelessLoginSubmodule {
      * @throws LoginException thrown if there is a problem authenticating the user
      */
     private Subject authenticateUser(String username, String password) throws LoginException {
+        long start = System.nanoTime();
+        String result = "failed";
         try {
             log.debug("Attempting to authenticate user {}", username);
 
@@ -216,6 +240,7 @@ public class JAASLoginSubmodule implements StatelessLoginSubmodule {
                     jaasConfigName, cbh);
 
             jaasLoginCtx.login();
+            result = "success";
             log.debug("Successfully authenticated user {}", username);
 
             return jaasLoginCtx.getSubject();
@@ -225,6 +250,8 @@ public class JAASLoginSubmodule implements StatelessLoginSubmodule {
         } catch (Throwable e) {
             log.info("User authentication for {} failed: {}", username, e.getMessage());
             throw new LoginException(e.getMessage());
+        } finally {
+            LoginTrace.record("jaas-login", start, jaasConfigName, null, result);
         }
     }
 
@@ -278,6 +305,30 @@ public class JAASLoginSubmodule implements StatelessLoginSubmodule {
         }
     }
 
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.CREDENTIAL);
+    }
+
+    /**
+     * Parses the JAAS configuration and loads its login modules.
+     * 
+     * @throws LoginException if the configuration doesn't define the login
+     * @throws ClassNotFoundException if a login module can't be loaded
+     */
+    public void warmUp() throws LoginException, ClassNotFoundException {
+        AppConfigurationEntry[] entries = Configuration.getConfiguration().getAppConfigurationEntry(jaasConfigName);
+        if (entries == null) {
+            throw new LoginException("No JAAS configuration for " + jaasConfigName);
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        for (AppConfigurationEntry entry : entries) {
+            Class.forName(entry.getLoginModuleName(), true,
+                    (loader != null) ? loader : JAASLoginSubmodule.class.getClassLoader());
+        }
+        log.debug("Loaded {} login module(s) for {}", entries.length, jaasConfigName);
+    }
+
     /** {@inheritDoc} */
     public void run(StatelessLoginServlet servlet, HttpServletRequest request, HttpServletResponse response,
             StatelessAuthenticationInfo info) throws AuthenticationException, LoginException {
@@ -286,88 +337,84 @@ public class JAASLoginSubmodule implements StatelessLoginSubmodule {
             return;
         }
         
-        List<String> requestedMethods = info.getLoginContext().getRequestedAuthenticationMethods();
-        
-        if (requestedMethods != null && !requestedMethods.isEmpty()) {
-            boolean supported = false;
-            for (String m : requestedMethods) {
-                if (authnMethods.contains(m)) {
-                    supported = true;
-                    break;
-                }
-            }
-            if (!supported) {
-                log.debug("Requested authentication method(s) not supported by {}.", jaasConfigName);
-                return;
-            }
-        }
-    
-        String u = request.getParameter("j_username");
+        String u = info.getSubmittedUsername();
         String p = request.getParameter("j_password");
         
-        if (u != null && !u.isEmpty()) {
+        if (u != null) {
             if (p == null || p.isEmpty()) {
                 info.setInvalidPassword(true);
                 return;
             }
-            
-            u = u.toLowerCase();
-            int pos = u.indexOf("@osu.edu");
-            if (pos > 0) {
-            	u = u.substring(0, pos);
-            }
 
-            try {
-                Subject loginSubject = authenticateUser(u, p);
-                info.setUsername(u);
-                Set<Principal> principals = loginSubject.getPrincipals();
-                String method = AuthnContext.PPT_AUTHN_CTX;
-                info.setAuthnMethod(method);
-                info.setAuthnInstant(System.currentTimeMillis());
-            } catch (LoginException e) {
-                for (String m : unknownUsernameErrors) {
-                    if (e.getMessage().contains(m)) {
-                        log.info("Unknown username error in module {}.", jaasConfigName);
-                        info.setUnknownUsername(true);
-                        return;
-                    }
+            checkPassword(u, p, info);
+        }
+    }
+
+    /**
+     * Checks a normalized username and password, recording the result.
+     * 
+     * @param u     the normalized username
+     * @param p     the password
+     * @param info  object for describing the result
+     * @throws LoginException   raised if the error isn't recognized
+     */
+    void checkPassword(String u, String p, StatelessAuthenticationInfo info) throws LoginException {
+        if (knownUsernames != null && !knownUsernames.mightContain(u)) {
+            log.info("Unknown username {} rejected by pre-screen in module {}.", u, jaasConfigName);
+            info.setUnknownUsername(true);
+            return;
+        }
+
+        try {
+            Subject loginSubject = authenticateUser(u, p);
+            info.setUsername(u);
+            Set<Principal> principals = loginSubject.getPrincipals();
+            String method = AuthnContext.PPT_AUTHN_CTX;
+            info.setAuthnMethod(method);
+            info.setAuthnInstant(System.currentTimeMillis());
+        } catch (LoginException e) {
+            for (String m : unknownUsernameErrors) {
+                if (e.getMessage().contains(m)) {
+                    log.info("Unknown username error in module {}.", jaasConfigName);
+                    info.setUnknownUsername(true);
+                    return;
                 }
+            }
 
-                for (String m : invalidPasswordErrors) {
-                    if (e.getMessage().contains(m)) {
-                        log.info("Invalid password error in module {}.", jaasConfigName);
-                        info.setInvalidPassword(true);
-                        return;
-                    }
+            for (String m : invalidPasswordErrors) {
+                if (e.getMessage().contains(m)) {
+                    log.info("Invalid password error in module {}.", jaasConfigName);
+                    info.setInvalidPassword(true);
+                    return;
                 }
+            }
 
-                for (String m : expiredPasswordErrors) {
-                    if (e.getMessage().contains(m)) {
-                        log.info("Expired password error in module {}.", jaasConfigName);
-                        info.setExpiredPassword(true);
-                        return;
-                    }
+            for (String m : expiredPasswordErrors) {
+                if (e.getMessage().contains(m)) {
+                    log.info("Expired password error in module {}.", jaasConfigName);
+                    info.setExpiredPassword(true);
+                    return;
                 }
+            }
 
 
-                for (String m : accountDisabledErrors) {
-                    if (e.getMessage().contains(m)) {
-                        log.info("Disabled account error in module {}.", jaasConfigName);
-                        info.setAccountDisabled(true);
-                        return;
-                    }
+            for (String m : accountDisabledErrors) {
+                if (e.getMessage().contains(m)) {
+                    log.info("Disabled account error in module {}.", jaasConfigName);
+                    info.setAccountDisabled(true);
+                    return;
                 }
-                
-                for (String m : accountLockedErrors) {
-                    if (e.getMessage().contains(m)) {
-                        log.info("Locked account error in module {}.", jaasConfigName);
-                        info.setAccountLocked(true);
-                        return;
-                    }
+            }
+            
+            for (String m : accountLockedErrors) {
+                if (e.getMessage().contains(m)) {
+                    log.info("Locked account error in module {}.", jaasConfigName);
+                    info.setAccountLocked(true);
+                    return;
                 }
-                
-                throw e;
             }
+            
+            throw e;
         }
     }
 }
\ No newline at end of file
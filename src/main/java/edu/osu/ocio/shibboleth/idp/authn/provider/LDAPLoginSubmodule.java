@@ -0,0 +1,581 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.login.LoginException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.saml2.core.AuthnContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
+import edu.vt.middleware.ldap.Ldap;
+import edu.vt.middleware.ldap.LdapConfig;
+import edu.vt.middleware.ldap.SearchFilter;
+import edu.vt.middleware.ldap.pool.AbstractLdapFactory;
+import edu.vt.middleware.ldap.pool.BlockingLdapPool;
+import edu.vt.middleware.ldap.pool.LdapPoolConfig;
+import edu.vt.middleware.ldap.pool.LdapPoolException;
+
+/**
+ * Submodule that validates credentials by binding to an LDAP directory over pooled connections.
+ *
+ * Failures are classified from the LDAP result code and, for Active Directory, the diagnostic
+ * sub-code, rather than by matching error strings. The password policy control is requested
+ * so that expiration and lockout can be reported by directories that support it.
+ */
+public class LDAPLoginSubmodule implements PhasedLoginSubmodule, AuthnMethodSupport, BackendStatus, WarmUpSupport {
+
+    /** LDAP result code for invalid credentials. */
+    private static final int INVALID_CREDENTIALS = 49;
+
+    /** Extracts the result code and Active Directory sub-code from a JNDI error message. */
+    private static final Pattern LDAP_ERROR = Pattern.compile(
+            "LDAP: error code (\\d+)(?:.*?, data ([0-9a-fA-F]+))?");
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(LDAPLoginSubmodule.class);
+
+    /** Connection settings for the directory. */
+    private LdapConfig ldapConfig;
+
+    /** Pool settings for the directory, or null for the defaults. */
+    private LdapPoolConfig ldapPoolConfig;
+
+    /** Filter used to locate the user's entry, with {0} replaced by the username. */
+    private String userFilter;
+
+    /** Pattern used to construct the user's DN, with {0} replaced by the username. */
+    private String userDnFormat;
+
+    /** Supported authentication methods. */
+    private Set<String> authnMethods = new HashSet<String>();
+
+    /** Optional pre-screen of valid usernames. */
+    private UsernameBloomFilter knownUsernames;
+
+    /** Whether to request the password policy control. */
+    private boolean usePasswordPolicy = true;
+
+    /** Name of the attribute used to report the password expiration to later submodules. */
+    private String passwordExpirationAttribute = "passwordExpiration";
+
+    /** Pool of connections used to locate user entries. */
+    private BlockingLdapPool searchPool;
+
+    /** Pool of connections used to bind as users. */
+    private BlockingLdapPool bindPool;
+
+    /** Whether the most recent directory operation reached the directory. */
+    private volatile boolean available = true;
+
+    /**
+     * Gets the connection settings for the directory.
+     * @return the connection settings
+     */
+    public LdapConfig getLdapConfig() {
+        return ldapConfig;
+    }
+
+    /**
+     * Gets the pool settings for the directory.
+     * @return the pool settings
+     */
+    public LdapPoolConfig getLdapPoolConfig() {
+        return ldapPoolConfig;
+    }
+
+    /**
+     * Gets the filter used to locate the user's entry.
+     * @return the user filter
+     */
+    public String getUserFilter() {
+        return userFilter;
+    }
+
+    /**
+     * Gets the pattern used to construct the user's DN.
+     * @return the DN pattern
+     */
+    public String getUserDnFormat() {
+        return userDnFormat;
+    }
+
+    /**
+     * Gets the supported authentication methods.
+     * @return the supported authn methods
+     */
+    public Set<String> getAuthnMethods() {
+        return authnMethods;
+    }
+
+    /**
+     * Gets whether the password policy control is requested.
+     * @return true iff the control is requested
+     */
+    public boolean isUsePasswordPolicy() {
+        return usePasswordPolicy;
+    }
+
+    /**
+     * Gets the name of the attribute used to report the password expiration.
+     * @return the attribute name
+     */
+    public String getPasswordExpirationAttribute() {
+        return passwordExpirationAttribute;
+    }
+
+    /**
+     * Sets the connection settings for the directory.
+     * @param ldapConfig the connection settings to set
+     */
+    public void setLdapConfig(LdapConfig ldapConfig) {
+        this.ldapConfig = ldapConfig;
+    }
+
+    /**
+     * Sets the pool settings for the directory.
+     * @param ldapPoolConfig the pool settings to set
+     */
+    public void setLdapPoolConfig(LdapPoolConfig ldapPoolConfig) {
+        this.ldapPoolConfig = ldapPoolConfig;
+    }
+
+    /**
+     * Sets the filter used to locate the user's entry.
+     * @param userFilter the user filter to set
+     */
+    public void setUserFilter(String userFilter) {
+        this.userFilter = userFilter;
+    }
+
+    /**
+     * Sets the pattern used to construct the user's DN.
+     * @param userDnFormat the DN pattern to set
+     */
+    public void setUserDnFormat(String userDnFormat) {
+        this.userDnFormat = userDnFormat;
+    }
+
+    /**
+     * Gets the pre-screen of valid usernames.
+     * @return the username filter, or null
+     */
+    public UsernameBloomFilter getKnownUsernames() {
+        return knownUsernames;
+    }
+
+    /**
+     * Sets the pre-screen of valid usernames.
+     * @param knownUsernames the username filter to set, or null
+     */
+    public void setKnownUsernames(UsernameBloomFilter knownUsernames) {
+        this.knownUsernames = knownUsernames;
+    }
+
+    /**
+     * Sets the supported authentication methods.
+     * @param authnMethods the authn methods to set
+     */
+    public void setAuthnMethods(Set<String> authnMethods) {
+        this.authnMethods = authnMethods;
+    }
+
+    /**
+     * Sets whether the password policy control is requested.
+     * @param usePasswordPolicy true iff the control should be requested
+     */
+    public void setUsePasswordPolicy(boolean usePasswordPolicy) {
+        this.usePasswordPolicy = usePasswordPolicy;
+    }
+
+    /**
+     * Sets the name of the attribute used to report the password expiration.
+     * @param passwordExpirationAttribute the attribute name to set
+     */
+    public void setPasswordExpirationAttribute(String passwordExpirationAttribute) {
+        this.passwordExpirationAttribute = passwordExpirationAttribute;
+    }
+
+    /** {@inheritDoc} */
+    public String getBackendName() {
+        return ldapConfig.getLdapUrl();
+    }
+
+    /** {@inheritDoc} */
+    public boolean isBackendAvailable() {
+        return available;
+    }
+
+    /**
+     * Creates the connection pools. Must be called once the properties are set.
+     */
+    public void initialize() {
+        if (ldapConfig == null) {
+            throw new IllegalArgumentException("LDAP configuration not set.");
+        } else if (userFilter == null && userDnFormat == null) {
+            throw new IllegalArgumentException("One of userFilter or userDnFormat must be set.");
+        }
+
+        LdapPoolConfig poolConfig = (ldapPoolConfig != null) ? ldapPoolConfig : new LdapPoolConfig();
+        if (userFilter != null) {
+            searchPool = new BlockingLdapPool(poolConfig, new LoginLdapFactory(ldapConfig));
+            searchPool.initialize();
+        }
+        bindPool = new BlockingLdapPool(poolConfig, new LoginLdapFactory(ldapConfig));
+        bindPool.initialize();
+    }
+
+    /**
+     * Closes the connection pools.
+     */
+    public void destroy() {
+        if (searchPool != null) {
+            searchPool.close();
+        }
+        if (bindPool != null) {
+            bindPool.close();
+        }
+    }
+
+    /**
+     * Opens a connection in each pool.
+     * 
+     * @throws LoginException if a connection can't be opened
+     */
+    public void warmUp() throws LoginException {
+        if (searchPool != null) {
+            searchPool.checkIn(checkOut(searchPool));
+        }
+        bindPool.checkIn(checkOut(bindPool));
+        available = true;
+    }
+
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.CREDENTIAL);
+    }
+
+    /** {@inheritDoc} */
+    public void run(StatelessLoginServlet servlet, HttpServletRequest request, HttpServletResponse response,
+            StatelessAuthenticationInfo info) throws AuthenticationException, LoginException {
+
+        if (info.isAuthenticated()) {
+            return;
+        }
+
+        String u = info.getSubmittedUsername();
+        String p = request.getParameter("j_password");
+
+        if (u != null) {
+            if (p == null || p.isEmpty()) {
+                info.setInvalidPassword(true);
+                return;
+            }
+
+            if (knownUsernames != null && !knownUsernames.mightContain(u)) {
+                log.info("Unknown username {} rejected by pre-screen in module {}.", u, ldapConfig.getLdapUrl());
+                info.setUnknownUsername(true);
+                return;
+            }
+
+            String dn = resolveDn(u);
+            if (dn == null) {
+                log.info("Unknown username {} in directory {}.", u, ldapConfig.getLdapUrl());
+                info.setUnknownUsername(true);
+                return;
+            }
+
+            log.debug("Attempting to authenticate user {} as {}", u, dn);
+            BindLdap ldap = checkOut(bindPool);
+            Control[] responseControls = null;
+            try {
+                responseControls = ldap.bind(dn, p,
+                        usePasswordPolicy ? new Control[] {new BasicControl(PasswordPolicyResponse.OID)} : null);
+            } catch (NamingException e) {
+                responseControls = ldap.lastResponseControls;
+                if (!(e instanceof javax.naming.AuthenticationException)
+                        && !(e instanceof javax.naming.NoPermissionException)) {
+                    // Don't hand a connection in an unknown state back out.
+                    ldap.close();
+                    available = !(e instanceof javax.naming.CommunicationException)
+                            && !(e instanceof javax.naming.ServiceUnavailableException);
+                } else {
+                    available = true;
+                }
+                if (!classifyPolicy(u, responseControls, info) && !classifyError(u, e, info)) {
+                    log.info("User authentication for {} failed: {}", u, e.getMessage());
+                    throw new LoginException(e.getMessage());
+                }
+                return;
+            } finally {
+                bindPool.checkIn(ldap);
+            }
+
+            available = true;
+            if (classifyPolicy(u, responseControls, info)) {
+                return;
+            }
+
+            log.debug("Successfully authenticated user {}", u);
+            info.setUsername(u);
+            info.setAuthnMethod(AuthnContext.PPT_AUTHN_CTX);
+            info.setAuthnInstant(System.currentTimeMillis());
+
+            PasswordPolicyResponse policy = decodePolicy(responseControls);
+            if (policy != null && policy.getTimeBeforeExpiration() >= 0 && passwordExpirationAttribute != null) {
+                info.getResolvedAttributes().put(passwordExpirationAttribute,
+                        Long.toString(info.getAuthnInstant() + policy.getTimeBeforeExpiration() * 1000L));
+            }
+        }
+    }
+
+    /**
+     * Determines the DN to bind as for a username.
+     *
+     * @param username  the username
+     * @return  the DN, or null if the user is not found
+     * @throws LoginException if the directory cannot be searched
+     */
+    private String resolveDn(String username) throws LoginException {
+        if (userFilter == null) {
+            return userDnFormat.replace("{0}", Rdn.escapeValue(username));
+        }
+
+        Ldap ldap = checkOut(searchPool);
+        try {
+            Iterator<SearchResult> results = ldap.search(
+                    new SearchFilter(userFilter, new Object[] {username}), new String[0]);
+            available = true;
+            if (!results.hasNext()) {
+                return null;
+            }
+            SearchResult result = results.next();
+            if (results.hasNext()) {
+                log.warn("Multiple entries found for username {}, rejecting", username);
+                return null;
+            }
+            return result.getNameInNamespace();
+        } catch (NamingException e) {
+            available = !(e instanceof javax.naming.CommunicationException)
+                    && !(e instanceof javax.naming.ServiceUnavailableException);
+            log.error("Error searching for user " + username, e);
+            throw new LoginException(e.getMessage());
+        } finally {
+            searchPool.checkIn(ldap);
+        }
+    }
+
+    /**
+     * Checks out a connection from a pool.
+     *
+     * @param pool  the pool
+     * @return  a connection
+     * @throws LoginException if no connection is available
+     */
+    private BindLdap checkOut(BlockingLdapPool pool) throws LoginException {
+        try {
+            return (BindLdap) pool.checkOut();
+        } catch (LdapPoolException e) {
+            available = false;
+            log.error("Unable to obtain LDAP connection from pool", e);
+            throw new LoginException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes a password policy response, ignoring malformed values.
+     *
+     * @param controls  response controls
+     * @return  the decoded response, or null
+     */
+    private PasswordPolicyResponse decodePolicy(Control[] controls) {
+        try {
+            return PasswordPolicyResponse.find(controls);
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring malformed password policy response: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sets the result indicators from a password policy error, if any.
+     *
+     * @param username  the username
+     * @param controls  response controls
+     * @param info      the result to update
+     * @return  true iff a policy error was found
+     */
+    private boolean classifyPolicy(String username, Control[] controls, StatelessAuthenticationInfo info) {
+        PasswordPolicyResponse policy = decodePolicy(controls);
+        if (policy == null) {
+            return false;
+        }
+        switch (policy.getError()) {
+            case PasswordPolicyResponse.PASSWORD_EXPIRED:
+            case PasswordPolicyResponse.CHANGE_AFTER_RESET:
+                log.info("Expired password for {} in directory {}.", username, ldapConfig.getLdapUrl());
+                info.setExpiredPassword(true);
+                return true;
+            case PasswordPolicyResponse.ACCOUNT_LOCKED:
+                log.info("Locked account for {} in directory {}.", username, ldapConfig.getLdapUrl());
+                info.setAccountLocked(true);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sets the result indicators from an LDAP error, if it can be classified.
+     *
+     * @param username  the username
+     * @param e         the error
+     * @param info      the result to update
+     * @return  true iff the error was classified
+     */
+    private boolean classifyError(String username, NamingException e, StatelessAuthenticationInfo info) {
+        // JNDI has no public accessor for the result code, so it's taken from the message.
+        Matcher m = LDAP_ERROR.matcher(e.getMessage() != null ? e.getMessage() : "");
+        if (!m.find() || Integer.parseInt(m.group(1)) != INVALID_CREDENTIALS) {
+            return false;
+        }
+
+        String data = (m.group(2) != null) ? m.group(2).toLowerCase() : "";
+        if ("525".equals(data)) {
+            log.info("Unknown username {} in directory {}.", username, ldapConfig.getLdapUrl());
+            info.setUnknownUsername(true);
+        } else if ("532".equals(data) || "773".equals(data)) {
+            log.info("Expired password for {} in directory {}.", username, ldapConfig.getLdapUrl());
+            info.setExpiredPassword(true);
+        } else if ("533".equals(data) || "701".equals(data) || "530".equals(data) || "531".equals(data)) {
+            log.info("Disabled account for {} in directory {}.", username, ldapConfig.getLdapUrl());
+            info.setAccountDisabled(true);
+        } else if ("775".equals(data)) {
+            log.info("Locked account for {} in directory {}.", username, ldapConfig.getLdapUrl());
+            info.setAccountLocked(true);
+        } else {
+            log.info("Invalid password for {} in directory {}.", username, ldapConfig.getLdapUrl());
+            info.setInvalidPassword(true);
+        }
+        return true;
+    }
+
+    /**
+     * Connection that can re-authenticate in place with request controls.
+     */
+    private static class BindLdap extends Ldap {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** Response controls from the most recent bind. */
+        private Control[] lastResponseControls;
+
+        /**
+         * Constructor.
+         *
+         * @param config    connection settings
+         */
+        BindLdap(LdapConfig config) {
+            super(config);
+        }
+
+        /**
+         * Re-authenticates the underlying connection.
+         *
+         * @param dn        DN to bind as
+         * @param password  password to bind with
+         * @param controls  request controls, or null
+         * @return  the response controls
+         * @throws NamingException if the bind fails
+         */
+        Control[] bind(String dn, String password, Control[] controls) throws NamingException {
+            lastResponseControls = null;
+            if (!connectionHandler.isConnected()) {
+                connect();
+            }
+
+            // Rebinding the handler's own context reuses the connection, where a derived one would not.
+            LdapContext ctx = connectionHandler.getLdapContext();
+            ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+            ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+            ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+            try {
+                ctx.reconnect(controls);
+            } finally {
+                ctx.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+                try {
+                    lastResponseControls = ctx.getResponseControls();
+                } catch (NamingException e) {
+                    lastResponseControls = null;
+                }
+            }
+            return lastResponseControls;
+        }
+    }
+
+    /**
+     * Creates {@link BindLdap} connections for the pools.
+     */
+    private static class LoginLdapFactory extends AbstractLdapFactory<Ldap> {
+
+        /** Connection settings. */
+        private final LdapConfig config;
+
+        /**
+         * Constructor.
+         *
+         * @param config    connection settings
+         */
+        LoginLdapFactory(LdapConfig config) {
+            this.config = config;
+        }
+
+        /** {@inheritDoc} */
+        public Ldap create() {
+            BindLdap ldap = new BindLdap(config);
+            try {
+                ldap.connect();
+            } catch (NamingException e) {
+                logger.error("Unable to connect to " + config.getLdapUrl(), e);
+                ldap = null;
+            }
+            return ldap;
+        }
+
+        /** {@inheritDoc} */
+        public void destroy(Ldap ldap) {
+            ldap.close();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies in microseconds, covering 1us to roughly 12 days
+ * with a relative error of at most 1/16.
+ *
+ * Values below 32 are counted exactly, and each power of two above that is split into
+ * 16 linear buckets. Recording touches only preallocated atomic counters, so it neither
+ * allocates nor blocks.
+ */
+public class LatencyHistogram {
+
+    /** Number of values counted exactly. */
+    private static final int LINEAR_BUCKETS = 32;
+
+    /** Number of buckets per power of two above the linear range. */
+    private static final int SUB_BUCKETS = 16;
+
+    /** Largest power of two tracked; larger values land in the last bucket. */
+    private static final int MAX_MAGNITUDE = 39;
+
+    /** Total number of buckets. */
+    private static final int BUCKETS = LINEAR_BUCKETS + (MAX_MAGNITUDE - 4) * SUB_BUCKETS;
+
+    /** Bucket counts. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Number of values recorded. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of values recorded. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Largest value recorded. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records an elapsed time.
+     *
+     * @param nanos elapsed time in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param micros    latency in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Gets the number of values recorded.
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the sum of the values recorded in microseconds.
+     * @return the sum
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Gets the largest value recorded in microseconds.
+     * @return the maximum
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the number of buckets.
+     * @return the bucket count
+     */
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Gets the number of values recorded in a bucket.
+     *
+     * @param index the bucket index
+     * @return  the number of values in the bucket
+     */
+    public long getCountAt(int index) {
+        return counts.get(index);
+    }
+
+    /**
+     * Gets the exclusive upper bound of a bucket in microseconds.
+     *
+     * @param index the bucket index
+     * @return  the upper bound of the bucket
+     */
+    public static long getUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index + 1;
+        }
+        int magnitude = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 5;
+        long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub + 1) << (magnitude - 4);
+    }
+
+    /**
+     * Gets the number of values recorded in buckets lying entirely below a bound.
+     *
+     * @param micros    the bound in microseconds
+     * @return  the number of values
+     */
+    public long getCountBelow(long micros) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS && getUpperBound(i) <= micros; ++i) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Estimates the value at a percentile, as the upper bound of the bucket containing it.
+     *
+     * @param percentile    the percentile, from 0 to 100
+     * @return  the estimated value in microseconds, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(getUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Maps a value to its bucket.
+     *
+     * @param micros    the value
+     * @return  the bucket index
+     */
+    private static int indexOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (magnitude - 4)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (magnitude - 5) * SUB_BUCKETS + sub;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics collected by a {@link StatelessLoginServlet}, published as a servlet context attribute.
+ *
+ * Steps are registered during servlet initialization, after which the set is read-only.
+ */
+public class LoginMetrics {
+
+    /** Default servlet context attribute holding the metrics. */
+    public static final String DEFAULT_ATTRIBUTE = "osu.StatelessLoginMetrics";
+
+    /** Name of the step recovering identity from the SSO cookie. */
+    public static final String COOKIE_RECOVER_STEP = "cookie-recover";
+
+    /** Name of the step saving identity to the SSO cookie. */
+    public static final String COOKIE_SAVE_STEP = "cookie-save";
+
+    /** Result of checking a request for an SSO cookie. */
+    public enum CookieResult {
+        /** A valid cookie was found. */
+        HIT,
+        /** No cookie was presented. */
+        MISS,
+        /** The cookie had expired. */
+        EXPIRED,
+        /** The cookie was issued to a different client address. */
+        ADDRESS_MISMATCH,
+        /** The cookie's session was revoked. */
+        REVOKED,
+        /** The cookie could not be decoded. */
+        ERROR;
+    }
+
+    /** Kind of login request, for allocation accounting. */
+    public enum RequestType {
+        /** Answered from an existing SSO session. */
+        SSO,
+        /** Rendered the login form or checked credentials. */
+        LOGIN,
+        /** Turned away before running the submodules. */
+        OTHER;
+    }
+
+    /** Steps in registration order. */
+    private final Map<String, StepMetrics> steps = new LinkedHashMap<String, StepMetrics>();
+
+    /** Cookie result counts indexed by ordinal. */
+    private final AtomicLongArray cookieResults = new AtomicLongArray(CookieResult.values().length);
+
+    /** Number of cookies issued. */
+    private final AtomicLong cookiesIssued = new AtomicLong();
+
+    /** Total size of cookies issued. */
+    private final AtomicLong cookieBytes = new AtomicLong();
+
+    /** Largest cookie issued. */
+    private final AtomicLong maxCookieBytes = new AtomicLong();
+
+    /** Latency of sealing cookie values. */
+    private final LatencyHistogram wrapLatency = new LatencyHistogram();
+
+    /** Latency of unsealing cookie values. */
+    private final LatencyHistogram unwrapLatency = new LatencyHistogram();
+
+    /** Number of logins being processed. */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Number of logins turned away for lack of capacity. */
+    private final AtomicLong shed = new AtomicLong();
+
+    /** Bytes allocated per request, indexed by request type ordinal. */
+    private final LatencyHistogram[] requestAllocation = new LatencyHistogram[RequestType.values().length];
+
+    /** Allocation budgets per request, or 0 for none, indexed by request type ordinal. */
+    private final AtomicLongArray allocationBudgets = new AtomicLongArray(RequestType.values().length);
+
+    /** Requests allocating more than their budget, indexed by request type ordinal. */
+    private final AtomicLongArray overBudget = new AtomicLongArray(RequestType.values().length);
+
+    /** Whether the login servlet has finished warming up. */
+    private volatile boolean ready;
+
+    /** Usernames failing most often. */
+    private final HeavyHitterTracker failedUsernames = new HeavyHitterTracker(20, 2048, 10 * 60 * 1000);
+
+    /** Client addresses failing most often. */
+    private final HeavyHitterTracker failedAddresses = new HeavyHitterTracker(20, 2048, 10 * 60 * 1000);
+
+    /** Constructor. */
+    public LoginMetrics() {
+        for (int i = 0; i < requestAllocation.length; ++i) {
+            requestAllocation[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Gets the metrics for a step, registering it if necessary.
+     *
+     * @param name  name of the step
+     * @return  the step metrics
+     */
+    public synchronized StepMetrics getStep(String name) {
+        StepMetrics step = steps.get(name);
+        if (step == null) {
+            step = new StepMetrics(name);
+            steps.put(name, step);
+        }
+        return step;
+    }
+
+    /**
+     * Gets the metrics for all steps.
+     *
+     * @return  the step metrics in registration order
+     */
+    public synchronized Collection<StepMetrics> getSteps() {
+        return new ArrayList<StepMetrics>(steps.values());
+    }
+
+    /**
+     * Records the result of checking a request for an SSO cookie.
+     *
+     * @param result    the result
+     */
+    public void recordCookieResult(CookieResult result) {
+        cookieResults.incrementAndGet(result.ordinal());
+    }
+
+    /**
+     * Gets the number of requests with a given SSO cookie result.
+     *
+     * @param result    the result
+     * @return  the number of requests
+     */
+    public long getCookieCount(CookieResult result) {
+        return cookieResults.get(result.ordinal());
+    }
+
+    /**
+     * Records the bytes allocated while processing a request.
+     *
+     * @param type  kind of request
+     * @param bytes bytes allocated
+     * @return  true iff the request exceeded the budget for its kind
+     */
+    public boolean recordAllocation(RequestType type, long bytes) {
+        requestAllocation[type.ordinal()].record(bytes);
+        long budget = allocationBudgets.get(type.ordinal());
+        if (budget > 0 && bytes > budget) {
+            overBudget.incrementAndGet(type.ordinal());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the bytes allocated per request of a kind, recorded in the histogram's microsecond units.
+     *
+     * @param type  kind of request
+     * @return  the allocation histogram
+     */
+    public LatencyHistogram getAllocation(RequestType type) {
+        return requestAllocation[type.ordinal()];
+    }
+
+    /**
+     * Gets the allocation budget per request of a kind.
+     *
+     * @param type  kind of request
+     * @return  the budget in bytes, or 0 for none
+     */
+    public long getAllocationBudget(RequestType type) {
+        return allocationBudgets.get(type.ordinal());
+    }
+
+    /**
+     * Sets the allocation budget per request of a kind.
+     *
+     * @param type      kind of request
+     * @param budget    the budget in bytes, or 0 for none
+     */
+    public void setAllocationBudget(RequestType type, long budget) {
+        allocationBudgets.set(type.ordinal(), budget);
+    }
+
+    /**
+     * Gets the number of requests of a kind that allocated more than their budget.
+     *
+     * @param type  kind of request
+     * @return  the number of requests
+     */
+    public long getOverBudget(RequestType type) {
+        return overBudget.get(type.ordinal());
+    }
+
+    /**
+     * Records the issuance of an SSO cookie.
+     *
+     * @param bytes size of the cookie value
+     */
+    public void recordCookieIssued(int bytes) {
+        cookiesIssued.incrementAndGet();
+        cookieBytes.addAndGet(bytes);
+        long current = maxCookieBytes.get();
+        while (bytes > current && !maxCookieBytes.compareAndSet(current, bytes)) {
+            current = maxCookieBytes.get();
+        }
+    }
+
+    /**
+     * Gets the number of SSO cookies issued.
+     * @return the number of cookies
+     */
+    public long getCookiesIssued() {
+        return cookiesIssued.get();
+    }
+
+    /**
+     * Gets the total size of SSO cookies issued.
+     * @return the total size in bytes
+     */
+    public long getCookieBytes() {
+        return cookieBytes.get();
+    }
+
+    /**
+     * Gets the size of the largest SSO cookie issued.
+     * @return the largest size in bytes
+     */
+    public long getMaxCookieBytes() {
+        return maxCookieBytes.get();
+    }
+
+    /**
+     * Gets the latency of sealing cookie values.
+     * @return the latency histogram
+     */
+    public LatencyHistogram getWrapLatency() {
+        return wrapLatency;
+    }
+
+    /**
+     * Gets the latency of unsealing cookie values.
+     * @return the latency histogram
+     */
+    public LatencyHistogram getUnwrapLatency() {
+        return unwrapLatency;
+    }
+
+    /**
+     * Notes the start of a login request.
+     */
+    public void loginStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Notes the end of a login request.
+     */
+    public void loginFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Notes a login turned away for lack of capacity.
+     */
+    public void loginShed() {
+        shed.incrementAndGet();
+    }
+
+    /**
+     * Records a failed login attempt.
+     *
+     * @param username  username tried, or null
+     * @param address   client address
+     */
+    public void recordFailure(String username, String address) {
+        failedUsernames.record(username);
+        failedAddresses.record(address);
+    }
+
+    /**
+     * Gets the usernames failing most often.
+     * @return the failed username tracker
+     */
+    public HeavyHitterTracker getFailedUsernames() {
+        return failedUsernames;
+    }
+
+    /**
+     * Gets the client addresses failing most often.
+     * @return the failed address tracker
+     */
+    public HeavyHitterTracker getFailedAddresses() {
+        return failedAddresses;
+    }
+
+    /**
+     * Gets the number of logins being processed.
+     * @return the number of logins in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gets the number of logins turned away for lack of capacity.
+     * @return the number of logins shed
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * Returns true iff the login servlet has finished warming up and should receive traffic.
+     * @return indicator of readiness
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Sets whether the login servlet should receive traffic.
+     * @param ready indicator of readiness
+     */
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+}
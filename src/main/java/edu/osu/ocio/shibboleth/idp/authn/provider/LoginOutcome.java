@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+/**
+ * Result of running one step of the {@link StatelessLoginServlet}.
+ */
+public enum LoginOutcome {
+
+    /** The step ran without effect. */
+    PASSED,
+
+    /** The step generated a response to the client. */
+    RESPONDED,
+
+    /** The step established the user's identity. */
+    AUTHENTICATED,
+
+    /** The step didn't recognize the username. */
+    UNKNOWN_USERNAME,
+
+    /** The step didn't recognize the password. */
+    INVALID_PASSWORD,
+
+    /** The step detected an expired password. */
+    EXPIRED_PASSWORD,
+
+    /** The step detected an account lockout. */
+    ACCOUNT_LOCKED,
+
+    /** The step detected a disabled account. */
+    ACCOUNT_DISABLED,
+
+    /** The step raised a LoginException. */
+    LOGIN_EXCEPTION,
+
+    /** The step raised an AuthenticationException. */
+    AUTHENTICATION_EXCEPTION;
+}
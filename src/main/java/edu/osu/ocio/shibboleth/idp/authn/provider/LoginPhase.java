@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+/**
+ * Phase of a login in which a {@link PhasedLoginSubmodule} takes part.
+ */
+public enum LoginPhase {
+
+    /** Checking credentials supplied by the user, before an identity is established. */
+    CREDENTIAL,
+
+    /** Processing an identity recovered from the SSO cookie. */
+    SSO,
+
+    /** Processing an established identity, whether new or recovered from the SSO cookie. */
+    POST_AUTH,
+
+    /** Rendering a user interface when no identity has been established. */
+    UI;
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits timing events for the stages of a stateless login to a dedicated logger.
+ *
+ * Events are logged at TRACE level to the category named by {@link #CATEGORY}, so they cost a
+ * level check when disabled and can be routed to their own appender when needed. Include the
+ * thread name and a high resolution timestamp in the appender pattern to line events up with
+ * GC and lock contention data from the JVM.
+ */
+final class LoginTrace {
+
+    /** Logging category used for trace events. */
+    static final String CATEGORY = "edu.osu.ocio.shibboleth.idp.authn.Trace";
+
+    /** Trace logger. */
+    private static final Logger TRACE = LoggerFactory.getLogger(CATEGORY);
+
+    /** Constructor. */
+    private LoginTrace() {
+    }
+
+    /**
+     * Returns true iff trace events will be emitted.
+     *
+     * @return  indicator of whether tracing is enabled
+     */
+    static boolean isEnabled() {
+        return TRACE.isTraceEnabled();
+    }
+
+    /**
+     * Emits an event for a completed stage.
+     *
+     * @param stage         name of the stage
+     * @param startNanos    value of {@link System#nanoTime()} when the stage started
+     * @param name          name of the component or resource involved
+     * @param relyingParty  relying party being logged into, or null
+     * @param result        result of the stage
+     */
+    static void record(String stage, long startNanos, String name, String relyingParty, Object result) {
+        if (TRACE.isTraceEnabled()) {
+            TRACE.trace("stage={} micros={} name={} rp={} result={}", new Object[] {
+                    stage, (System.nanoTime() - startNanos) / 1000, name, relyingParty, result});
+        }
+    }
+}
@@ -16,7 +16,9 @@
 package edu.osu.ocio.shibboleth.idp.authn.provider;
 
 import java.io.PrintWriter;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -39,7 +41,7 @@ import edu.internet2.middleware.shibboleth.common.util.DataSealerException;
  * Submodule that produces password expiration warnings, and
  * possibly other messaging in the future.
  */
-public class NotificationLoginSubmodule implements StatelessLoginSubmodule {
+public class NotificationLoginSubmodule implements PhasedLoginSubmodule {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(NotificationLoginSubmodule.class);
@@ -178,6 +180,11 @@ public class NotificationLoginSubmodule implements StatelessLoginSubmodule {
     	activeDirectoryConversion = b;
     }
     
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.POST_AUTH);
+    }
+
     /** {@inheritDoc} */
     public void run(StatelessLoginServlet servlet, HttpServletRequest request,
             HttpServletResponse response, StatelessAuthenticationInfo info) throws AuthenticationException {
@@ -240,14 +247,20 @@ public class NotificationLoginSubmodule implements StatelessLoginSubmodule {
                     vCtx.put("passwordExpiration",
                             DateTimeFormat.forPattern("EEEE MMMM d, h:mm a").print(now + timeLeft));
                     
+                    long start = System.nanoTime();
+                    String result = "failed";
                     try {
                         Template template = velocity.getTemplate(templateName);
                         PrintWriter writer = response.getWriter();
                         template.merge(vCtx, writer);
                         writer.flush();
+                        result = "success";
                     } catch (Exception e) {
                         log.error(e.getMessage());
                         throw new AuthenticationException("Error while processing notification template.", e);
+                    } finally {
+                        LoginTrace.record("template-merge", start, templateName,
+                                info.getLoginContext().getRelyingPartyId(), result);
                     }
                 }
             }
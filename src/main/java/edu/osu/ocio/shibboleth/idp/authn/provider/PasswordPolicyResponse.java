@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import javax.naming.ldap.Control;
+
+/**
+ * Decodes the LDAP password policy response control (draft-behera-ldap-password-policy).
+ */
+public class PasswordPolicyResponse {
+
+    /** OID of the password policy control. */
+    public static final String OID = "1.3.6.1.4.1.42.2.27.8.5.1";
+
+    /** Error indicating an expired password. */
+    public static final int PASSWORD_EXPIRED = 0;
+
+    /** Error indicating a locked account. */
+    public static final int ACCOUNT_LOCKED = 1;
+
+    /** Error indicating the password must be changed after a reset. */
+    public static final int CHANGE_AFTER_RESET = 2;
+
+    /** Seconds before the password expires, or -1. */
+    private int timeBeforeExpiration = -1;
+
+    /** Grace logins remaining, or -1. */
+    private int graceAuthNsRemaining = -1;
+
+    /** Policy error, or -1. */
+    private int error = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param encoded   BER-encoded control value
+     * @throws IllegalArgumentException if the value is malformed
+     */
+    public PasswordPolicyResponse(byte[] encoded) {
+        if (encoded == null || encoded.length < 2 || encoded[0] != 0x30) {
+            throw new IllegalArgumentException("Password policy response is not a SEQUENCE.");
+        }
+        int[] pos = {1};
+        int end = readLength(encoded, pos) + pos[0];
+        while (pos[0] < end) {
+            int tag = encoded[pos[0]++] & 0xff;
+            int len = readLength(encoded, pos);
+            if (tag == 0xa0) {
+                // warning CHOICE
+                int inner = encoded[pos[0]++] & 0xff;
+                int value = readInt(encoded, pos, readLength(encoded, pos));
+                if (inner == 0x80) {
+                    timeBeforeExpiration = value;
+                } else if (inner == 0x81) {
+                    graceAuthNsRemaining = value;
+                }
+            } else if (tag == 0x81) {
+                error = readInt(encoded, pos, len);
+            } else {
+                pos[0] += len;
+            }
+        }
+    }
+
+    /**
+     * Locates and decodes a password policy response among a set of controls.
+     *
+     * @param controls  response controls, may be null
+     * @return  the decoded response, or null if none is present
+     */
+    public static PasswordPolicyResponse find(Control[] controls) {
+        if (controls != null) {
+            for (Control c : controls) {
+                if (OID.equals(c.getID())) {
+                    return new PasswordPolicyResponse(c.getEncodedValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of seconds before the password expires.
+     * @return seconds before expiration, or -1 if not reported
+     */
+    public int getTimeBeforeExpiration() {
+        return timeBeforeExpiration;
+    }
+
+    /**
+     * Gets the number of grace logins remaining.
+     * @return grace logins remaining, or -1 if not reported
+     */
+    public int getGraceAuthNsRemaining() {
+        return graceAuthNsRemaining;
+    }
+
+    /**
+     * Gets the policy error.
+     * @return the error, or -1 if not reported
+     */
+    public int getError() {
+        return error;
+    }
+
+    private static int readLength(byte[] buf, int[] pos) {
+        int len = buf[pos[0]++] & 0xff;
+        if ((len & 0x80) != 0) {
+            int count = len & 0x7f;
+            len = 0;
+            while (count-- > 0) {
+                len = (len << 8) | (buf[pos[0]++] & 0xff);
+            }
+        }
+        if (len < 0 || pos[0] + len > buf.length) {
+            throw new IllegalArgumentException("Password policy response has an invalid length.");
+        }
+        return len;
+    }
+
+    private static int readInt(byte[] buf, int[] pos, int len) {
+        int value = (len > 0 && buf[pos[0]] < 0) ? -1 : 0;
+        for (int i = 0; i < len; ++i) {
+            value = (value << 8) | (buf[pos[0]++] & 0xff);
+        }
+        return value;
+    }
+}
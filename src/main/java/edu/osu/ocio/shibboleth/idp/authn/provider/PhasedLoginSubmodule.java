@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.Set;
+
+/**
+ * Implemented by submodules of the {@link StatelessLoginServlet} that declare the phases of a
+ * login they take part in, so the servlet can skip them when they have nothing to do.
+ * 
+ * Submodules that don't implement this interface are run in every phase.
+ */
+public interface PhasedLoginSubmodule extends StatelessLoginSubmodule {
+
+    /**
+     * Gets the phases this submodule takes part in.
+     * 
+     * @return  the phases
+     */
+    Set<LoginPhase> getPhases();
+}
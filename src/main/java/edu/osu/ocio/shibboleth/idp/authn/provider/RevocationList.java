@@ -0,0 +1,662 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Revoked SSO sessions, identified by username and authentication instant.
+ *
+ * Revocations are held in a ring of Bloom filters, one per interval of cookie expiration time,
+ * so a check hashes the session once and probes the single filter its cookie expires in, without
+ * allocating. A filter is cleared and reused once every cookie it could cover has expired, which
+ * bounds memory without ever tracking individual entries.
+ *
+ * Revocations are read from an append-only file with one "username authnInstant" line per
+ * session, and can be shared between nodes as UDP datagrams authenticated with HMAC-SHA256.
+ * A node passes every revocation in its own file on to its peers, and each one received from a
+ * peer that it hasn't seen before, so every node learns of it whichever node's file it was
+ * appended to. A local revocation is passed on even if the filter wrongly reports it as seen.
+ */
+public class RevocationList {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(RevocationList.class);
+
+    /** MAC algorithm for gossip datagrams. */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /** Length of a MAC in bytes. */
+    private static final int MAC_LENGTH = 32;
+
+    /** Largest gossip datagram. */
+    private static final int MAX_DATAGRAM = 512;
+
+    /** Lifetime of SSO cookies in milliseconds. */
+    private long lifetime = 1000 * 60 * 60 * 8;
+
+    /** Milliseconds of cookie expiration time covered by each filter. */
+    private long bucketDuration = 1000 * 60 * 60;
+
+    /** Expected number of revocations per filter. */
+    private int expectedRevocations = 10000;
+
+    /** Target false positive rate. */
+    private double falsePositiveRate = 0.0001;
+
+    /** Path of the revocation file, or null. */
+    private String revocationFile;
+
+    /** Milliseconds between checks of the revocation file. */
+    private long pollInterval = 1000;
+
+    /** UDP port to receive gossip on, or 0 to disable gossip. */
+    private int gossipPort;
+
+    /** Peers to send gossip to, as host:port. */
+    private List<String> gossipPeers = new ArrayList<String>();
+
+    /** Shared secret authenticating gossip. */
+    private String gossipSecret;
+
+    /** Filters in the ring. */
+    private Bucket[] buckets;
+
+    /** Number of bits in each filter. */
+    private long bitCount;
+
+    /** Number of hash functions. */
+    private int hashes;
+
+    /** Resolved gossip peers. */
+    private List<InetSocketAddress> peers;
+
+    /** Socket for gossip, or null. */
+    private DatagramSocket socket;
+
+    /** Thread receiving gossip. */
+    private Thread receiver;
+
+    /** Timer driving file polls. */
+    private Timer timer;
+
+    /** Bytes of the revocation file already read. */
+    private long fileOffset;
+
+    /**
+     * Gets the lifetime of SSO cookies.
+     * @return the lifetime in milliseconds
+     */
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Gets the cookie expiration time covered by each filter.
+     * @return the bucket duration in milliseconds
+     */
+    public long getBucketDuration() {
+        return bucketDuration;
+    }
+
+    /**
+     * Gets the expected number of revocations per filter.
+     * @return the expected revocations
+     */
+    public int getExpectedRevocations() {
+        return expectedRevocations;
+    }
+
+    /**
+     * Gets the target false positive rate.
+     * @return the false positive rate
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Gets the path of the revocation file.
+     * @return the revocation file, or null
+     */
+    public String getRevocationFile() {
+        return revocationFile;
+    }
+
+    /**
+     * Gets the milliseconds between checks of the revocation file.
+     * @return the poll interval
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Gets the UDP port gossip is received on.
+     * @return the port, or 0 if gossip is disabled
+     */
+    public int getGossipPort() {
+        return gossipPort;
+    }
+
+    /**
+     * Gets the peers gossip is sent to.
+     * @return the peers as host:port
+     */
+    public List<String> getGossipPeers() {
+        return gossipPeers;
+    }
+
+    /**
+     * Sets the lifetime of SSO cookies, which should match the login servlet's.
+     * @param lifetime the lifetime in milliseconds
+     */
+    public void setLifetime(long lifetime) {
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * Sets the cookie expiration time covered by each filter.
+     * @param bucketDuration the bucket duration in milliseconds
+     */
+    public void setBucketDuration(long bucketDuration) {
+        this.bucketDuration = bucketDuration;
+    }
+
+    /**
+     * Sets the expected number of revocations per filter.
+     * @param expectedRevocations the expected revocations
+     */
+    public void setExpectedRevocations(int expectedRevocations) {
+        this.expectedRevocations = expectedRevocations;
+    }
+
+    /**
+     * Sets the target false positive rate.
+     * @param falsePositiveRate the false positive rate
+     */
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Sets the path of the revocation file.
+     * @param revocationFile the revocation file, or null
+     */
+    public void setRevocationFile(String revocationFile) {
+        this.revocationFile = revocationFile;
+    }
+
+    /**
+     * Sets the milliseconds between checks of the revocation file.
+     * @param pollInterval the poll interval
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Sets the UDP port to receive gossip on.
+     * @param gossipPort the port, or 0 to disable gossip
+     */
+    public void setGossipPort(int gossipPort) {
+        this.gossipPort = gossipPort;
+    }
+
+    /**
+     * Sets the peers to send gossip to.
+     * @param gossipPeers the peers as host:port
+     */
+    public void setGossipPeers(List<String> gossipPeers) {
+        this.gossipPeers = gossipPeers;
+    }
+
+    /**
+     * Sets the shared secret authenticating gossip.
+     * @param gossipSecret the secret
+     */
+    public void setGossipSecret(String gossipSecret) {
+        this.gossipSecret = gossipSecret;
+    }
+
+    /**
+     * Allocates the filters, reads the revocation file and starts gossip. Must be called once
+     * the properties are set.
+     *
+     * @throws SocketException if the gossip socket cannot be opened
+     */
+    public synchronized void initialize() throws SocketException {
+        if (lifetime <= 0 || bucketDuration <= 0) {
+            throw new IllegalArgumentException("Lifetime and bucket duration must be positive.");
+        } else if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+        } else if (gossipPort > 0 && (gossipSecret == null || gossipSecret.isEmpty())) {
+            throw new IllegalArgumentException("Gossip requires a shared secret.");
+        }
+
+        long m = (long) Math.ceil(-expectedRevocations * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, (m + 63) >>> 6);
+        bitCount = (long) words << 6;
+        hashes = Math.max(1, (int) Math.round((double) bitCount / expectedRevocations * Math.log(2)));
+        // One spare bucket for revocations issued up to a bucket duration in the future.
+        buckets = new Bucket[(int) (lifetime / bucketDuration) + 3];
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new Bucket(words);
+        }
+
+        if (gossipPort > 0) {
+            peers = new ArrayList<InetSocketAddress>();
+            for (String peer : gossipPeers) {
+                int colon = peer.lastIndexOf(':');
+                peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            }
+            socket = new DatagramSocket(gossipPort);
+            receiver = new Thread(new Receiver(), "RevocationGossip");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        if (revocationFile != null) {
+            poll();
+            timer = new Timer("RevocationFilePoll", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    poll();
+                }
+            }, pollInterval, pollInterval);
+        }
+    }
+
+    /**
+     * Stops polling and gossip.
+     */
+    public synchronized void destroy() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    /**
+     * Checks whether a session has been revoked.
+     *
+     * @param username      the username in the cookie
+     * @param authnInstant  the authentication instant in the cookie
+     * @return  true iff the session was probably revoked
+     */
+    public boolean isRevoked(String username, long authnInstant) {
+        long epoch = (authnInstant + lifetime) / bucketDuration;
+        Bucket bucket = buckets[(int) (epoch % buckets.length)];
+        if (bucket.epoch != epoch) {
+            return false;
+        }
+        long hash = hash(username, authnInstant);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; ++i) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % bitCount;
+            if ((bucket.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Revokes a session on this node, appending it to the revocation file and passing it on
+     * to peers.
+     *
+     * @param username      the username in the cookie
+     * @param authnInstant  the authentication instant in the cookie
+     */
+    public void revoke(String username, long authnInstant) {
+        if (!isCurrent(username, authnInstant)) {
+            return;
+        }
+        if (revocationFile != null) {
+            synchronized (this) {
+                if (append(username, authnInstant)) {
+                    // Reading the line back revokes the session and passes it on, like any other local line.
+                    poll();
+                    return;
+                }
+            }
+        }
+        add(username, authnInstant);
+        gossip(username, authnInstant);
+    }
+
+    /**
+     * Appends a revocation to the revocation file.
+     *
+     * @param username      the username in the cookie
+     * @param authnInstant  the authentication instant in the cookie
+     * @return  true iff the revocation was written
+     */
+    private boolean append(String username, long authnInstant) {
+        FileWriter out = null;
+        try {
+            out = new FileWriter(revocationFile, true);
+            out.write(username + ' ' + authnInstant + '\n');
+            return true;
+        } catch (IOException e) {
+            log.error("Unable to append to revocation file {}: {}", revocationFile, e.getMessage());
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.debug("Error closing revocation file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a session's cookie may still be presented, and that the session isn't dated so
+     * far in the future that adding it would disturb the ring.
+     *
+     * @param username      the username in the cookie
+     * @param authnInstant  the authentication instant in the cookie
+     * @return  true iff a revocation of the session should be applied
+     */
+    private boolean isCurrent(String username, long authnInstant) {
+        long now = System.currentTimeMillis();
+        if (authnInstant + lifetime <= now) {
+            return false;
+        } else if (authnInstant > now + bucketDuration) {
+            // Its bucket would wrap onto one still holding live sessions, and clearing it would
+            // silently un-revoke them.
+            log.warn("Ignoring revocation of {} for a session from the future ({}).", username, authnInstant);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a session to the filter its cookie expires in. The session must have been checked
+     * with {@link #isCurrent(String, long)}.
+     *
+     * @param username      the username in the cookie
+     * @param authnInstant  the authentication instant in the cookie
+     * @return  true iff the filter didn't already report the session as revoked
+     */
+    private boolean add(String username, long authnInstant) {
+        long expiration = authnInstant + lifetime;
+        long epoch = expiration / bucketDuration;
+        Bucket bucket = buckets[(int) (epoch % buckets.length)];
+        if (bucket.epoch != epoch) {
+            synchronized (bucket) {
+                if (bucket.epoch > epoch) {
+                    // Cookies this old expired long ago.
+                    return false;
+                } else if (bucket.epoch != epoch) {
+                    bucket.epoch = -1;
+                    for (int i = 0; i < bucket.bits.length(); ++i) {
+                        bucket.bits.set(i, 0);
+                    }
+                    bucket.epoch = epoch;
+                }
+            }
+        }
+
+        long hash = hash(username, authnInstant);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        boolean added = false;
+        for (int i = 0; i < hashes; ++i) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % bitCount;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bucket.bits.get(word);
+            while ((current & mask) == 0) {
+                if (bucket.bits.compareAndSet(word, current, current | mask)) {
+                    added = true;
+                    break;
+                }
+                current = bucket.bits.get(word);
+            }
+        }
+        if (added) {
+            log.info("Revoked SSO session for username ({}) authenticated at {}", username, authnInstant);
+        }
+        return added;
+    }
+
+    /**
+     * Reads revocations appended to the file since the last poll.
+     */
+    private synchronized void poll() {
+        File file = new File(revocationFile);
+        if (!file.isFile()) {
+            return;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            long length = in.length();
+            if (length < fileOffset) {
+                log.info("Revocation file {} was truncated, rereading it", revocationFile);
+                fileOffset = 0;
+            }
+            if (length == fileOffset) {
+                return;
+            }
+            byte[] data = new byte[(int) (length - fileOffset)];
+            in.seek(fileOffset);
+            in.readFully(data);
+
+            // Only consume complete lines, in case a writer is mid-append.
+            int start = 0;
+            for (int i = 0; i < data.length; ++i) {
+                if (data[i] == '\n') {
+                    String line = new String(data, start, i - start, "UTF-8").trim();
+                    start = i + 1;
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        parse(line, true);
+                    }
+                }
+            }
+            fileOffset += start;
+        } catch (IOException e) {
+            log.error("Unable to read revocation file {}: {}", revocationFile, e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Error closing revocation file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a revocation in "username authnInstant" form.
+     *
+     * @param line      the revocation
+     * @param local     whether the revocation was issued on this node, rather than received from a peer
+     */
+    private void parse(String line, boolean local) {
+        int space = line.lastIndexOf(' ');
+        if (space <= 0) {
+            log.warn("Ignoring malformed revocation: {}", line);
+            return;
+        }
+        String username = line.substring(0, space).trim();
+        long authnInstant;
+        try {
+            authnInstant = Long.parseLong(line.substring(space + 1));
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring malformed revocation: {}", line);
+            return;
+        }
+        if (!isCurrent(username, authnInstant)) {
+            return;
+        }
+        // Received gossip is passed on only the first time, so it doesn't circulate forever.
+        if (add(username, authnInstant) || local) {
+            gossip(username, authnInstant);
+        }
+    }
+
+    /**
+     * Sends a revocation to the gossip peers.
+     *
+     * @param username      the username in the cookie
+     * @param authnInstant  the authentication instant in the cookie
+     */
+    private void gossip(String username, long authnInstant) {
+        DatagramSocket s = socket;
+        if (s == null || peers.isEmpty()) {
+            return;
+        }
+        try {
+            byte[] payload = (username + ' ' + authnInstant).getBytes("UTF-8");
+            byte[] mac = sign(payload, 0, payload.length);
+            byte[] datagram = new byte[payload.length + MAC_LENGTH];
+            System.arraycopy(mac, 0, datagram, 0, MAC_LENGTH);
+            System.arraycopy(payload, 0, datagram, MAC_LENGTH, payload.length);
+            for (InetSocketAddress peer : peers) {
+                s.send(new DatagramPacket(datagram, datagram.length, peer));
+            }
+        } catch (IOException e) {
+            log.warn("Unable to send revocation to peers: {}", e.getMessage());
+        } catch (GeneralSecurityException e) {
+            log.error("Unable to sign revocation: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Computes the MAC of a gossip payload.
+     *
+     * @param data      buffer holding the payload
+     * @param offset    start of the payload
+     * @param length    length of the payload
+     * @return  the MAC
+     * @throws GeneralSecurityException if the MAC cannot be computed
+     * @throws UnsupportedEncodingException never
+     */
+    private byte[] sign(byte[] data, int offset, int length)
+            throws GeneralSecurityException, UnsupportedEncodingException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(gossipSecret.getBytes("UTF-8"), MAC_ALGORITHM));
+        mac.update(data, offset, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * Hashes a session to 64 bits.
+     *
+     * @param username      the username
+     * @param authnInstant  the authentication instant
+     * @return  the hash
+     */
+    private static long hash(String username, long authnInstant) {
+        long h = HyperLogLog.hash(username) ^ (authnInstant * 0x9e3779b97f4a7c15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Bloom filter covering one interval of cookie expiration time.
+     */
+    private static class Bucket {
+
+        /** Interval covered, as expiration time divided by the bucket duration, or -1 while clearing. */
+        private volatile long epoch = -1;
+
+        /** Bits of the filter. */
+        private final AtomicLongArray bits;
+
+        /**
+         * Constructor.
+         *
+         * @param words number of 64-bit words in the filter
+         */
+        Bucket(int words) {
+            bits = new AtomicLongArray(words);
+        }
+    }
+
+    /**
+     * Receives gossip from peers.
+     */
+    private class Receiver implements Runnable {
+
+        /** {@inheritDoc} */
+        public void run() {
+            DatagramSocket s = socket;
+            byte[] buf = new byte[MAX_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (!s.isClosed()) {
+                try {
+                    packet.setLength(buf.length);
+                    s.receive(packet);
+                    int length = packet.getLength();
+                    if (length <= MAC_LENGTH) {
+                        continue;
+                    }
+                    byte[] expected = sign(buf, MAC_LENGTH, length - MAC_LENGTH);
+                    int diff = 0;
+                    for (int i = 0; i < MAC_LENGTH; ++i) {
+                        diff |= expected[i] ^ buf[i];
+                    }
+                    if (diff != 0) {
+                        log.warn("Ignoring revocation with invalid MAC from {}", packet.getAddress());
+                        continue;
+                    }
+                    parse(new String(buf, MAC_LENGTH, length - MAC_LENGTH, "UTF-8"), false);
+                } catch (IOException e) {
+                    if (!s.isClosed()) {
+                        log.warn("Error receiving revocation gossip: {}", e.getMessage());
+                    }
+                } catch (GeneralSecurityException e) {
+                    log.error("Unable to verify revocation gossip: {}", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-local store of authenticated sessions, for issuing a short handle cookie in place of the
+ * fully sealed one.
+ *
+ * Sessions live in a memory-mapped file used as a ring: records are appended at the head and
+ * space is reclaimed from the tail. Every session gets the same lifetime, so the tail always
+ * holds the session expiring next, and expired records are dropped from the tail as new ones
+ * are stored; only when the ring fills up is a live session evicted early. A handle carries the
+ * offset of its record and a random token the record must match, so a handle to a record that
+ * has since been overwritten, or that was issued by another node, simply misses and the servlet
+ * falls back to the sealed cookie. The file survives restarts, so sessions do too.
+ */
+public class SessionStore implements WarmUpSupport {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SessionStore.class);
+
+    /** Marks the start of a store file. */
+    private static final int MAGIC = 0x4f535353;
+
+    /** Marks the start of a record. */
+    private static final int RECORD = 0x52454331;
+
+    /** Marks the end of the records before the ring wraps. */
+    private static final int WRAP = 0x57524150;
+
+    /** Length of the file header; holds the magic, the size, the head, the tail and the record count. */
+    private static final int HEADER = 64;
+
+    /** Length of a record header; holds the magic, the token, the expiration and the payload length. */
+    private static final int RECORD_HEADER = 32;
+
+    /** Length of a decoded handle. */
+    private static final int HANDLE_LENGTH = 20;
+
+    /** Path of the store file. */
+    private String storeFile;
+
+    /** Size of the store file in bytes. */
+    private int capacity = 64 * 1024 * 1024;
+
+    /** Largest session payload stored, in bytes. */
+    private int maxRecordSize = 4096;
+
+    /** The mapped file. */
+    private MappedByteBuffer buffer;
+
+    /** Guards the ring; lookups share it, stores take it exclusively. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Offset at which the next record is written. */
+    private int head;
+
+    /** Offset of the oldest record. */
+    private int tail;
+
+    /** Number of records between the tail and the head. */
+    private int count;
+
+    /** Source of record tokens. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** Number of handles found. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of handles not found. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of sessions evicted before they expired. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Gets the path of the store file.
+     * @return the store path
+     */
+    public String getStoreFile() {
+        return storeFile;
+    }
+
+    /**
+     * Gets the size of the store file.
+     * @return the size in bytes
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the largest session payload stored.
+     * @return the size in bytes
+     */
+    public int getMaxRecordSize() {
+        return maxRecordSize;
+    }
+
+    /**
+     * Gets the number of handles found.
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of handles not found.
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of sessions evicted before they expired.
+     * @return the eviction count
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Sets the path of the store file.
+     * @param storeFile the store path
+     */
+    public void setStoreFile(String storeFile) {
+        this.storeFile = storeFile;
+    }
+
+    /**
+     * Sets the size of the store file.
+     * @param capacity the size in bytes
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the largest session payload stored; larger sessions are left to the sealed cookie.
+     * @param maxRecordSize the size in bytes
+     */
+    public void setMaxRecordSize(int maxRecordSize) {
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Maps the store file, reusing the sessions in it if it was left by a store of the same size.
+     * 
+     * @throws IOException if the file can't be mapped
+     */
+    public void initialize() throws IOException {
+        if (storeFile == null) {
+            throw new IllegalArgumentException("SessionStore requires a storeFile.");
+        } else if (maxRecordSize < 1 || capacity < HEADER + 2 * (RECORD_HEADER + maxRecordSize)) {
+            throw new IllegalArgumentException("SessionStore capacity must hold at least two records.");
+        }
+        File file = new File(storeFile);
+        boolean reuse = file.length() == capacity;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+        if (reuse && buffer.getInt(0) == MAGIC && buffer.getInt(4) == capacity) {
+            head = buffer.getInt(8);
+            tail = buffer.getInt(12);
+            count = buffer.getInt(16);
+            if (head < HEADER || head > capacity || tail < HEADER || tail > capacity || count < 0) {
+                log.warn("Session store {} is corrupt, discarding its sessions.", storeFile);
+                reset();
+            } else {
+                log.info("Reopened session store {} holding {} sessions.", storeFile, count);
+            }
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, capacity);
+            reset();
+            log.info("Created session store {} of {} bytes.", storeFile, capacity);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void warmUp() {
+        buffer.load();
+    }
+
+    /**
+     * Stores a session.
+     * 
+     * @param info      the session
+     * @param expires   expiration of the session in milliseconds since the epoch
+     * @return  a handle to the session, or null if it's too large to store
+     */
+    public String put(StatelessAuthenticationInfo info, long expires) {
+        byte[] payload = serialize(info);
+        if (payload == null) {
+            return null;
+        }
+        long tokenHigh = random.nextLong();
+        long tokenLow = random.nextLong();
+        int size = RECORD_HEADER + payload.length;
+        int offset;
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            while (count > 0 && buffer.getLong(tail + 20) <= now) {
+                removeTail(now);
+            }
+            if (head + size > capacity) {
+                while (count > 0 && tail >= head) {
+                    removeTail(now);
+                }
+                if (head + 4 <= capacity) {
+                    buffer.putInt(head, WRAP);
+                }
+                head = HEADER;
+            }
+            while (count > 0 && tail >= head && tail < head + size) {
+                removeTail(now);
+            }
+            offset = head;
+            buffer.putInt(offset, RECORD);
+            buffer.putLong(offset + 4, tokenHigh);
+            buffer.putLong(offset + 12, tokenLow);
+            buffer.putLong(offset + 20, expires);
+            buffer.putInt(offset + 28, payload.length);
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + RECORD_HEADER);
+            record.put(payload);
+            if (count++ == 0) {
+                tail = offset;
+            }
+            head = offset + size;
+            saveState();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        ByteBuffer handle = ByteBuffer.allocate(HANDLE_LENGTH);
+        handle.putInt(offset).putLong(tokenHigh).putLong(tokenLow);
+        return Base64.encodeBytes(handle.array(), Base64.DONT_BREAK_LINES);
+    }
+
+    /**
+     * Looks up a session.
+     * 
+     * @param handle    handle to the session
+     * @return  the session, or null if it isn't in this store or has expired
+     */
+    public StatelessAuthenticationInfo get(String handle) {
+        ByteBuffer decoded = decode(handle);
+        if (decoded == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        int offset = decoded.getInt();
+        byte[] payload = null;
+        lock.readLock().lock();
+        try {
+            if (matches(offset, decoded.getLong(), decoded.getLong())
+                    && buffer.getLong(offset + 20) > System.currentTimeMillis()) {
+                payload = new byte[buffer.getInt(offset + 28)];
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset + RECORD_HEADER);
+                record.get(payload);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        StatelessAuthenticationInfo info = (payload != null) ? deserialize(payload) : null;
+        (info != null ? hits : misses).incrementAndGet();
+        return info;
+    }
+
+    /**
+     * Removes a session, so its handle no longer works on this node.
+     * 
+     * @param handle    handle to the session
+     */
+    public void remove(String handle) {
+        ByteBuffer decoded = decode(handle);
+        if (decoded == null) {
+            return;
+        }
+        int offset = decoded.getInt();
+        lock.writeLock().lock();
+        try {
+            if (matches(offset, decoded.getLong(), decoded.getLong())) {
+                buffer.putLong(offset + 20, 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Decodes a handle.
+     * 
+     * @param handle    the handle
+     * @return  the handle as a buffer positioned at its start, or null if it's malformed
+     */
+    private ByteBuffer decode(String handle) {
+        byte[] decoded = (handle != null && handle.length() < 2 * HANDLE_LENGTH) ? Base64.decode(handle) : null;
+        if (decoded == null || decoded.length != HANDLE_LENGTH) {
+            return null;
+        }
+        return ByteBuffer.wrap(decoded);
+    }
+
+    /**
+     * Checks whether a well-formed record with a token lies at an offset. The caller must hold the lock.
+     * 
+     * @param offset    offset of the record
+     * @param tokenHigh high half of the token
+     * @param tokenLow  low half of the token
+     * @return  true iff the record is there
+     */
+    private boolean matches(int offset, long tokenHigh, long tokenLow) {
+        if (offset < HEADER || offset > capacity - RECORD_HEADER || buffer.getInt(offset) != RECORD) {
+            return false;
+        }
+        int length = buffer.getInt(offset + 28);
+        if (length < 0 || length > maxRecordSize || offset + RECORD_HEADER + length > capacity) {
+            return false;
+        }
+        // Compare without short-circuiting, so the time taken says nothing about the token.
+        return ((buffer.getLong(offset + 4) ^ tokenHigh) | (buffer.getLong(offset + 12) ^ tokenLow)) == 0;
+    }
+
+    /**
+     * Reclaims the oldest record. The caller must hold the write lock.
+     * 
+     * @param now   current time in milliseconds since the epoch
+     */
+    private void removeTail(long now) {
+        if (buffer.getInt(tail) != RECORD) {
+            log.warn("Session store {} is corrupt, discarding its sessions.", storeFile);
+            reset();
+            return;
+        }
+        if (buffer.getLong(tail + 20) > now) {
+            evictions.incrementAndGet();
+        }
+        int next = tail + RECORD_HEADER + buffer.getInt(tail + 28);
+        if (next + RECORD_HEADER > capacity || buffer.getInt(next) == WRAP) {
+            next = HEADER;
+        }
+        tail = (--count > 0) ? next : head;
+    }
+
+    /** Discards every session. The caller must hold the write lock, if the store is in use. */
+    private void reset() {
+        head = HEADER;
+        tail = HEADER;
+        count = 0;
+        saveState();
+    }
+
+    /** Records the ring's state in the file header. */
+    private void saveState() {
+        buffer.putInt(8, head);
+        buffer.putInt(12, tail);
+        buffer.putInt(16, count);
+    }
+
+    /**
+     * Encodes a session for storage.
+     * 
+     * @param info  the session
+     * @return  the encoded session, or null if it's too large
+     */
+    private byte[] serialize(StatelessAuthenticationInfo info) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(info.getPickled());
+            Map<String, String> attributes = info.getResolvedAttributes();
+            out.writeShort(attributes.size());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                out.writeUTF(attribute.getKey());
+                out.writeUTF(attribute.getValue() != null ? attribute.getValue() : "");
+            }
+            out.close();
+            if (bytes.size() > maxRecordSize) {
+                log.debug("Session for {} is too large to store ({} bytes).", info.getUsername(), bytes.size());
+                return null;
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            log.debug("Session for {} could not be encoded: {}", info.getUsername(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a stored session.
+     * 
+     * @param payload   the encoded session
+     * @return  the session, or null if it's malformed
+     */
+    private StatelessAuthenticationInfo deserialize(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            StatelessAuthenticationInfo info = new StatelessAuthenticationInfo(in.readUTF());
+            for (int i = in.readUnsignedShort(); i > 0; --i) {
+                info.getResolvedAttributes().put(in.readUTF(), in.readUTF());
+            }
+            return info;
+        } catch (IOException e) {
+            log.warn("Stored session could not be decoded: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Stored session could not be decoded: {}", e.getMessage());
+        }
+        return null;
+    }
+}
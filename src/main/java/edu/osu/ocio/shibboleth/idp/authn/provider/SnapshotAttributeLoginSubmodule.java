@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
+
+/**
+ * Submodule that fills in a principal's attributes from an {@link AttributeSnapshot}, in place of
+ * {@link AttributeResolverLoginSubmodule} when the attributes needed are in a periodic export.
+ */
+public class SnapshotAttributeLoginSubmodule implements PhasedLoginSubmodule, WarmUpSupport {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SnapshotAttributeLoginSubmodule.class);
+
+    /** Snapshot to read attributes from. */
+    private AttributeSnapshot snapshot;
+
+    /**
+     * Gets the snapshot to read attributes from.
+     * @return the snapshot
+     */
+    public AttributeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Sets the snapshot to read attributes from.
+     * @param snapshot the snapshot
+     */
+    public void setSnapshot(AttributeSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.POST_AUTH);
+    }
+
+    /** {@inheritDoc} */
+    public void warmUp() {
+        snapshot.warmUp();
+    }
+
+    /** {@inheritDoc} */
+    public void run(StatelessLoginServlet servlet, HttpServletRequest request, HttpServletResponse response,
+            StatelessAuthenticationInfo info) throws AuthenticationException {
+
+        // We have to know the username.
+        if (info.getUsername() == null) {
+            log.debug("Username not set, submodule returning");
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean found = snapshot.lookup(info.getUsername(), info.getResolvedAttributes());
+        if (!found) {
+            log.debug("No attribute snapshot entry for {}", info.getUsername());
+        }
+        LoginTrace.record("attribute-snapshot", start, info.getUsername(),
+                info.getLoginContext().getRelyingPartyId(), found ? "success" : "missing");
+    }
+}
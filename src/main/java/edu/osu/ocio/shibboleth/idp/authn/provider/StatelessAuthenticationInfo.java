@@ -40,9 +40,15 @@ public class StatelessAuthenticationInfo {
     /** Time of authentication since the epoch in milliseconds. */
     private long authnInstant;
 
+    /** Submodule that checked the user's credentials, if tracked. */
+    private String backend;
+
     /** Additional information tracked about the user. */
     private Map<String, String> resolvedAttributes;
 
+    /** Canonical form of the username submitted with this request, if any. */
+    private String submittedUsername;
+
     /** Login context from IdP. */
     private LoginContext loginContext;
 
@@ -66,6 +72,12 @@ public class StatelessAuthenticationInfo {
     
     /** Indicates at least one module detected an account lockout. */
     private boolean accountLocked;
+
+    /** Indicates a module refused the attempt for exceeding a rate limit. */
+    private boolean throttled;
+
+    /** Indicates a module denied the user access to the relying party. */
+    private boolean accessDenied;
         
     /**
      * Constructor.
@@ -74,11 +86,14 @@ public class StatelessAuthenticationInfo {
      *            raw form of data
      */
     public StatelessAuthenticationInfo(String pickled) {
-        String[] values = pickled.split("!", 4);
+        String[] values = pickled.split("!", 5);
         address = values[0];
         username = values[1];
         authnMethod = values[2];
         authnInstant = Long.parseLong(values[3]);
+        if (values.length > 4) {
+            backend = values[4];
+        }
     }
 
     public StatelessAuthenticationInfo() {
@@ -133,6 +148,26 @@ public class StatelessAuthenticationInfo {
         this.authnInstant = authnInstant;
     }
 
+    /**
+     * Sets the submodule that checked the user's credentials.
+     * 
+     * @param backend
+     *            the submodule name, or null
+     */
+    public void setBackend(String backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Sets the canonical form of the username submitted with this request.
+     * 
+     * @param submittedUsername
+     *            the canonical username, or null if none was submitted or it was rejected
+     */
+    public void setSubmittedUsername(String submittedUsername) {
+        this.submittedUsername = submittedUsername;
+    }
+
     /**
      * Sets the LoginContext.
      * 
@@ -195,6 +230,22 @@ public class StatelessAuthenticationInfo {
         this.accountLocked = accountLocked;
     }
 
+    /**
+     * Sets the throttling indicator.
+     * @param throttled the indicator to set
+     */
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    /**
+     * Sets the access denial indicator.
+     * @param accessDenied the indicator to set
+     */
+    public void setAccessDenied(boolean accessDenied) {
+        this.accessDenied = accessDenied;
+    }
+
 
     /**
      * Sets the account disabled indicator.
@@ -240,6 +291,25 @@ public class StatelessAuthenticationInfo {
         return authnInstant;
     }
 
+    /**
+     * Gets the canonical form of the username submitted with this request. Submodules
+     * should use this rather than reading and normalizing the raw parameter themselves.
+     * 
+     * @return the canonical username, or null if none was submitted or it was rejected
+     */
+    public String getSubmittedUsername() {
+        return submittedUsername;
+    }
+
+    /**
+     * Gets the submodule that checked the user's credentials.
+     * 
+     * @return the submodule name, or null if not tracked
+     */
+    public String getBackend() {
+        return backend;
+    }
+
     /**
      * Accesses the map of resolved attributes.
      * 
@@ -311,6 +381,22 @@ public class StatelessAuthenticationInfo {
         return accountLocked;
     }
 
+    /**
+     * Gets the throttling indicator.
+     * @return true iff a module refused the attempt for exceeding a rate limit
+     */
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * Gets the access denial indicator.
+     * @return true iff a module denied the user access to the relying party
+     */
+    public boolean isAccessDenied() {
+        return accessDenied;
+    }
+
     /**
      * Gets the account lockout indicator.
      * @return true iff a module detected an account lockout
@@ -325,7 +411,8 @@ public class StatelessAuthenticationInfo {
      * @return the encoded authentication data
      */
     public String getPickled() {
-        return address + '!' + username + '!' + authnMethod + '!' + Long.toString(authnInstant);
+        String pickled = address + '!' + username + '!' + authnMethod + '!' + Long.toString(authnInstant);
+        return (backend != null) ? pickled + '!' + backend : pickled;
     }
 
 }
@@ -15,10 +15,28 @@
  */
 package edu.osu.ocio.shibboleth.idp.authn.provider;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.security.auth.login.LoginException;
 import javax.servlet.ServletConfig;
@@ -31,7 +49,9 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.datatype.Duration;
 
 import org.joda.time.DateTime;
+import org.opensaml.saml2.core.AuthnContext;
 import org.opensaml.xml.util.XMLHelper;
+import org.owasp.esapi.ESAPI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,15 +92,84 @@ public class StatelessLoginServlet extends HttpServlet {
     /** Object used to protect SSO cookie. */
     private DataSealer dataSealer;
 
-    /** Ordered list of submodules to use. */
-    private String[] submodules;
-    
-    /** Map of submodule ID to submodule. */
-    private HashMap<String, StatelessLoginSubmodule> submoduleMap;
+    /** Submodules to use, replaced as a whole when the chain is reloaded. */
+    private volatile SubmoduleChain chain;
+
+    /** Names of the submodules in the chain, separated by whitespace. */
+    private String submoduleNames;
+
+    /** File listing the submodules, or null. */
+    private File submodulesFile;
+
+    /** Last modification time of the submodule file. */
+    private long submodulesModified;
+
+    /** Timer driving chain reloads, or null. */
+    private Timer reloadTimer;
+
+    /** Number of users to remember the backend of, or 0. */
+    private int affinitySize;
+
+    /** Whether to order backends by observed performance. */
+    private boolean adaptive;
+
+    /** Whether to record the backend that authenticated a user in the SSO cookie. */
+    private boolean affinityInCookie;
+
+    /** Whether to measure the bytes allocated by each request and submodule. */
+    private boolean allocationAccounting;
+
+    /** Revoked SSO sessions, or null. */
+    private RevocationList revocations;
+
+    /** Limit on concurrent credential checks, or null. */
+    private AdmissionController admission;
+
+    /** Policy for binding cookies to client addresses, or null. */
+    private AddressPolicy addressPolicy;
+
+    /** Canonicalizes submitted usernames for the submodules. */
+    private UsernameCanonicalizer canonicalizer = new UsernameCanonicalizer();
+
+    /** Node-local session store backing a short handle cookie, or null. */
+    private SessionStore sessionStore;
+
+    /** The name of the handle cookie, when a session store is in use. */
+    private String handleCookieName;
+
+    /** Whether to issue the sealed cookie alongside the handle cookie. */
+    private boolean sealedFallback = true;
+
+    /** Audit log for login events, or null. */
+    private AuditLog auditLog;
+
+    /** Tracker of distinct users per relying party, or null. */
+    private UniqueUserTracker uniqueUsers;
+
+    /** Metrics shared with the status servlet. */
+    private LoginMetrics metrics;
+
+    /** Thread running the warm-up, or null. */
+    private Thread warmUpThread;
+
+    /** Metrics for recovering identity from the SSO cookie. */
+    private StepMetrics cookieRecoverMetrics;
+
+    /** Metrics for saving identity to the SSO cookie. */
+    private StepMetrics cookieSaveMetrics;
 
     /** init-param which can be passed to the servlet to override the default cookie name. */
     private final String cookieNameInitParam = "cookieName";
 
+    /** init-param which can be passed to the servlet to specify the SessionStore bean id. */
+    private final String sessionStoreInitParam = "sessionStoreRef";
+
+    /** init-param which can be passed to the servlet to override the default handle cookie name. */
+    private final String handleCookieNameInitParam = "handleCookieName";
+
+    /** init-param which can be passed to the servlet to issue only the handle cookie. */
+    private final String sealedFallbackInitParam = "sealedFallback";
+
     /** init-param which can be passed to the servlet to override the default error page. */
     private final String errorPageInitParam = "errorPage";
 
@@ -96,30 +185,141 @@ public class StatelessLoginServlet extends HttpServlet {
     /** init-param which can be passed to the servlet to specify the submodule list. */
     private final String submodulesInitParam = "submodules";
 
+    /** init-param which can be passed to the servlet to read the submodule list from a file. */
+    private final String submodulesFileInitParam = "submodulesFile";
+
+    /** init-param which can be passed to the servlet to check for a changed submodule list. */
+    private final String reloadIntervalInitParam = "reloadInterval";
+
+    /** init-param which can be passed to the servlet to override the metrics attribute name. */
+    private final String metricsInitParam = "metricsRef";
+
+    /** init-param which can be passed to the servlet to specify the AuditLog bean id. */
+    private final String auditLogInitParam = "auditLogRef";
+
+    /** init-param which can be passed to the servlet to specify the RevocationList bean id. */
+    private final String revocationsInitParam = "revocationsRef";
+
+    /** init-param which can be passed to the servlet to specify the AdmissionController bean id. */
+    private final String admissionInitParam = "admissionRef";
+
+    /** init-param which can be passed to the servlet to specify the AddressPolicy bean id. */
+    private final String addressPolicyInitParam = "addressPolicyRef";
+
+    /** init-param which can be passed to the servlet to specify the UsernameCanonicalizer bean id. */
+    private final String usernameCanonicalizerInitParam = "usernameCanonicalizerRef";
+
+    /** init-param which can be passed to the servlet to specify the UniqueUserTracker bean id. */
+    private final String uniqueUsersInitParam = "uniqueUsersRef";
+
+    /** init-param which can be passed to the servlet to remember the backend of this many users. */
+    private final String backendAffinityInitParam = "backendAffinity";
+
+    /** init-param which can be passed to the servlet to carry backend affinity in the SSO cookie. */
+    private final String affinityInCookieInitParam = "affinityInCookie";
+
+    /** init-param which can be passed to the servlet to order backends by observed performance. */
+    private final String adaptiveBackendOrderInitParam = "adaptiveBackendOrder";
+
+    /** init-param which can be passed to the servlet to warm up before reporting ready. */
+    private final String warmUpInitParam = "warmUp";
+
+    /** init-param which can be passed to the servlet to run synthetic logins during warm-up. */
+    private final String warmUpLoginsInitParam = "warmUpLogins";
+
+    /** init-param which can be passed to the servlet to override the default warm-up timeout. */
+    private final String warmUpTimeoutInitParam = "warmUpTimeout";
+
+    /** init-param which can be passed to the servlet to measure allocation per request and submodule. */
+    private final String allocationAccountingInitParam = "allocationAccounting";
+
+    /** init-param which can be passed to the servlet to set the allocation budget of an SSO request. */
+    private final String ssoAllocationBudgetInitParam = "ssoAllocationBudget";
+
+    /** init-param which can be passed to the servlet to set the allocation budget of a login request. */
+    private final String loginAllocationBudgetInitParam = "loginAllocationBudget";
+
+    /** Outcome flag for an established identity. */
+    private static final int AUTHENTICATED_FLAG = 0x01;
+
+    /** Outcome flag for an unknown username. */
+    private static final int UNKNOWN_USERNAME_FLAG = 0x02;
+
+    /** Outcome flag for an invalid password. */
+    private static final int INVALID_PASSWORD_FLAG = 0x04;
+
+    /** Outcome flag for an expired password. */
+    private static final int EXPIRED_PASSWORD_FLAG = 0x08;
+
+    /** Outcome flag for an account lockout. */
+    private static final int ACCOUNT_LOCKED_FLAG = 0x10;
+
+    /** Outcome flag for a disabled account. */
+    private static final int ACCOUNT_DISABLED_FLAG = 0x20;
+
     /** {@inheritDoc} */
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
 
-        if (getInitParameter(submodulesInitParam) == null) {
-            throw new ServletException("Required init-param (submodules) not set.");
+        String metricsAttribute = getInitParameter(metricsInitParam) != null
+                ? getInitParameter(metricsInitParam) : LoginMetrics.DEFAULT_ATTRIBUTE;
+        synchronized (getServletContext()) {
+            metrics = (LoginMetrics) getServletContext().getAttribute(metricsAttribute);
+            if (metrics == null) {
+                metrics = new LoginMetrics();
+                getServletContext().setAttribute(metricsAttribute, metrics);
+            }
         }
-        submodules = getInitParameter(submodulesInitParam).split(" ");
-        if (submodules.length == 0) {
-            throw new ServletException("Required init-param (submodules) was empty.");
+        cookieRecoverMetrics = metrics.getStep(LoginMetrics.COOKIE_RECOVER_STEP);
+        cookieSaveMetrics = metrics.getStep(LoginMetrics.COOKIE_SAVE_STEP);
+
+        affinitySize = (getInitParameter(backendAffinityInitParam) != null)
+                ? Integer.parseInt(getInitParameter(backendAffinityInitParam)) : 0;
+        adaptive = Boolean.parseBoolean(getInitParameter(adaptiveBackendOrderInitParam));
+        affinityInCookie = affinitySize > 0 && Boolean.parseBoolean(getInitParameter(affinityInCookieInitParam));
+
+        String names;
+        if (getInitParameter(submodulesFileInitParam) != null) {
+            submodulesFile = new File(getInitParameter(submodulesFileInitParam));
+            submodulesModified = submodulesFile.lastModified();
+            names = readSubmodulesFile();
+        } else if (getInitParameter(submodulesInitParam) != null) {
+            names = getInitParameter(submodulesInitParam);
+        } else {
+            throw new ServletException("Required init-param (submodules) not set.");
         }
-        submoduleMap = new HashMap<String, StatelessLoginSubmodule>(submodules.length);
-        for (String smname : submodules) {
-            StatelessLoginSubmodule sm = (StatelessLoginSubmodule) getServletContext().getAttribute(smname);
-            if (sm == null) {
-                throw new ServletException("Submodule (" + smname + ") was not found in servlet context.");
-            }
-            submoduleMap.put(smname, sm);
+        chain = buildChain(names, null);
+        submoduleNames = names;
+
+        if (getInitParameter(reloadIntervalInitParam) != null) {
+            long interval = Long.parseLong(getInitParameter(reloadIntervalInitParam));
+            reloadTimer = new Timer("SubmoduleChainReload", true);
+            reloadTimer.schedule(new TimerTask() {
+                public void run() {
+                    reloadChain();
+                }
+            }, interval, interval);
         }
 
         if (getInitParameter(cookieNameInitParam) != null) {
             cookieName = getInitParameter(cookieNameInitParam);
         }
 
+        if (getInitParameter(sessionStoreInitParam) != null) {
+            sessionStore = (SessionStore) getServletContext().getAttribute(getInitParameter(sessionStoreInitParam));
+            if (sessionStore == null) {
+                throw new ServletException("SessionStore (" + getInitParameter(sessionStoreInitParam)
+                        + ") was not found in servlet context.");
+            }
+            handleCookieName = getInitParameter(handleCookieNameInitParam);
+            if (handleCookieName == null) {
+                handleCookieName = cookieName + "_handle";
+            }
+            if (getInitParameter(sealedFallbackInitParam) != null) {
+                sealedFallback = Boolean.parseBoolean(getInitParameter(sealedFallbackInitParam));
+            }
+        }
+
         if (getInitParameter(errorPageInitParam) != null) {
             errorPage = getInitParameter(errorPageInitParam);
         }
@@ -138,11 +338,378 @@ public class StatelessLoginServlet extends HttpServlet {
         } else {
             dataSealer = (DataSealer) getServletContext().getAttribute("shibboleth.DataSealer");
         }
+
+        if (getInitParameter(auditLogInitParam) != null) {
+            auditLog = (AuditLog) getServletContext().getAttribute(getInitParameter(auditLogInitParam));
+            if (auditLog == null) {
+                throw new ServletException("AuditLog (" + getInitParameter(auditLogInitParam)
+                        + ") was not found in servlet context.");
+            }
+        }
+
+        if (getInitParameter(revocationsInitParam) != null) {
+            revocations = (RevocationList) getServletContext().getAttribute(
+                    getInitParameter(revocationsInitParam));
+            if (revocations == null) {
+                throw new ServletException("RevocationList (" + getInitParameter(revocationsInitParam)
+                        + ") was not found in servlet context.");
+            }
+        }
+
+        if (getInitParameter(admissionInitParam) != null) {
+            admission = (AdmissionController) getServletContext().getAttribute(
+                    getInitParameter(admissionInitParam));
+            if (admission == null) {
+                throw new ServletException("AdmissionController (" + getInitParameter(admissionInitParam)
+                        + ") was not found in servlet context.");
+            }
+        }
+
+        if (getInitParameter(addressPolicyInitParam) != null) {
+            addressPolicy = (AddressPolicy) getServletContext().getAttribute(
+                    getInitParameter(addressPolicyInitParam));
+            if (addressPolicy == null) {
+                throw new ServletException("AddressPolicy (" + getInitParameter(addressPolicyInitParam)
+                        + ") was not found in servlet context.");
+            }
+        }
+
+        if (getInitParameter(usernameCanonicalizerInitParam) != null) {
+            canonicalizer = (UsernameCanonicalizer) getServletContext().getAttribute(
+                    getInitParameter(usernameCanonicalizerInitParam));
+            if (canonicalizer == null) {
+                throw new ServletException("UsernameCanonicalizer ("
+                        + getInitParameter(usernameCanonicalizerInitParam) + ") was not found in servlet context.");
+            }
+        }
+
+        if (getInitParameter(uniqueUsersInitParam) != null) {
+            uniqueUsers = (UniqueUserTracker) getServletContext().getAttribute(
+                    getInitParameter(uniqueUsersInitParam));
+            if (uniqueUsers == null) {
+                throw new ServletException("UniqueUserTracker (" + getInitParameter(uniqueUsersInitParam)
+                        + ") was not found in servlet context.");
+            }
+        }
+
+        allocationAccounting = Boolean.parseBoolean(getInitParameter(allocationAccountingInitParam));
+        if (allocationAccounting) {
+            if (!AllocationCounter.isSupported()) {
+                log.warn("Allocation accounting requested, but this JVM doesn't count allocation per thread.");
+            }
+            if (getInitParameter(ssoAllocationBudgetInitParam) != null) {
+                metrics.setAllocationBudget(LoginMetrics.RequestType.SSO,
+                        Long.parseLong(getInitParameter(ssoAllocationBudgetInitParam)));
+            }
+            if (getInitParameter(loginAllocationBudgetInitParam) != null) {
+                metrics.setAllocationBudget(LoginMetrics.RequestType.LOGIN,
+                        Long.parseLong(getInitParameter(loginAllocationBudgetInitParam)));
+            }
+        }
+
+        if (Boolean.parseBoolean(getInitParameter(warmUpInitParam))) {
+            int logins = (getInitParameter(warmUpLoginsInitParam) != null)
+                    ? Integer.parseInt(getInitParameter(warmUpLoginsInitParam)) : 0;
+            long timeout = 1000 * 60;
+            if (getInitParameter(warmUpTimeoutInitParam) != null) {
+                timeout = XMLHelper.getDataTypeFactory().newDuration(
+                        getInitParameter(warmUpTimeoutInitParam)).getTimeInMillis(new Date());
+            }
+            metrics.setReady(false);
+            startWarmUp(logins, timeout);
+        } else {
+            metrics.setReady(true);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void destroy() {
+        if (reloadTimer != null) {
+            reloadTimer.cancel();
+        }
+        if (warmUpThread != null) {
+            warmUpThread.interrupt();
+        }
+        metrics.setReady(false);
+        super.destroy();
+    }
+
+    /**
+     * Looks up the submodules in a list and compiles them into a chain.
+     * 
+     * @param names     names of the submodules, separated by whitespace
+     * @param current   the chain in use, or null
+     * @return  the new chain, or the current one if it runs the same submodules
+     * @throws ServletException if the list is empty or names an unknown submodule
+     */
+    private SubmoduleChain buildChain(String names, SubmoduleChain current) throws ServletException {
+        String[] list = names.trim().split("\\s+");
+        if (list[0].isEmpty()) {
+            throw new ServletException("Submodule list was empty.");
+        }
+        StatelessLoginSubmodule[] submodules = new StatelessLoginSubmodule[list.length];
+        for (int i = 0; i < list.length; ++i) {
+            Object sm = getServletContext().getAttribute(list[i]);
+            if (!(sm instanceof StatelessLoginSubmodule)) {
+                throw new ServletException("Submodule (" + list[i] + ") was not found in servlet context.");
+            }
+            submodules[i] = (StatelessLoginSubmodule) sm;
+        }
+        if (current != null && current.isSame(list, submodules)) {
+            return current;
+        }
+        return new SubmoduleChain(list, submodules, metrics, affinitySize, adaptive);
+    }
+
+    /**
+     * Reads the submodule list from the submodule file, ignoring comments.
+     * 
+     * @return  names of the submodules, separated by whitespace
+     * @throws ServletException if the file can't be read
+     */
+    private String readSubmodulesFile() throws ServletException {
+        StringBuilder names = new StringBuilder();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(submodulesFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int comment = line.indexOf('#');
+                    names.append(' ').append((comment >= 0) ? line.substring(0, comment) : line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new ServletException("Unable to read submodule file (" + submodulesFile + ")", e);
+        }
+        return names.toString();
+    }
+
+    /**
+     * Replaces the chain if the submodule file or a submodule in the servlet context has changed.
+     * Submodules new to the chain are warmed up before it is published, and the current chain is
+     * kept if the new one can't be built.
+     */
+    private void reloadChain() {
+        SubmoduleChain current = chain;
+        String names = submoduleNames;
+        long modified = 0;
+        SubmoduleChain next;
+        try {
+            if (submodulesFile != null) {
+                modified = submodulesFile.lastModified();
+                if (modified != submodulesModified) {
+                    names = readSubmodulesFile();
+                }
+            }
+            next = buildChain(names, current);
+        } catch (ServletException e) {
+            log.error("Keeping current submodule chain: {}", e.getMessage());
+            return;
+        }
+        if (submodulesFile != null) {
+            submodulesModified = modified;
+        }
+        if (next == current) {
+            return;
+        }
+
+        for (int i = 0; i < next.size(); ++i) {
+            StatelessLoginSubmodule sm = next.getSubmodule(i);
+            boolean known = false;
+            for (int j = 0; j < current.size() && !known; ++j) {
+                known = current.getSubmodule(j) == sm;
+            }
+            if (!known && sm instanceof WarmUpSupport) {
+                try {
+                    ((WarmUpSupport) sm).warmUp();
+                } catch (Exception e) {
+                    log.warn("Warm-up of {} failed: {}", next.getName(i), e.toString());
+                }
+            }
+        }
+        chain = next;
+        submoduleNames = names;
+        log.info("Reloaded submodule chain: {}", names.trim());
+    }
+
+    /**
+     * Warms up the submodules and the cookie sealer in parallel in the background, optionally runs
+     * synthetic logins, and then reports the servlet ready.
+     * 
+     * @param logins    number of synthetic logins to run
+     * @param timeout   milliseconds to wait for the components before reporting ready anyway
+     */
+    private void startWarmUp(final int logins, final long timeout) {
+        final List<String> names = new ArrayList<String>();
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        SubmoduleChain chain = this.chain;
+        for (int i = 0; i < chain.size(); ++i) {
+            if (chain.getSubmodule(i) instanceof WarmUpSupport && seen.add(chain.getSubmodule(i))) {
+                names.add(chain.getName(i));
+                tasks.add(getWarmUpTask((WarmUpSupport) chain.getSubmodule(i)));
+            }
+        }
+        if (admission != null) {
+            names.add(getInitParameter(admissionInitParam));
+            tasks.add(getWarmUpTask(admission));
+        }
+        if (sessionStore != null) {
+            names.add(getInitParameter(sessionStoreInitParam));
+            tasks.add(getWarmUpTask(sessionStore));
+        }
+        names.add("ESAPI");
+        tasks.add(new Callable<Object>() {
+            public Object call() {
+                return ESAPI.encoder();
+            }
+        });
+        if (dataSealer != null) {
+            names.add("DataSealer");
+            tasks.add(new Callable<Object>() {
+                public Object call() throws DataSealerException {
+                    return dataSealer.unwrap(dataSealer.wrap("warmup", System.currentTimeMillis() + lifetime));
+                }
+            });
+        }
+
+        warmUpThread = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                final AtomicInteger threadCount = new AtomicInteger();
+                ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "StatelessLoginWarmUp-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                try {
+                    List<Future<Object>> results = executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+                    for (int i = 0; i < results.size(); ++i) {
+                        try {
+                            results.get(i).get();
+                        } catch (CancellationException e) {
+                            log.warn("Warm-up of {} timed out", names.get(i));
+                        } catch (ExecutionException e) {
+                            log.warn("Warm-up of {} failed: {}", names.get(i), e.getCause().toString());
+                        }
+                    }
+                    if (dataSealer != null) {
+                        for (int i = 0; i < logins; ++i) {
+                            warmUpLogin(i);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (DataSealerException e) {
+                    log.warn("Synthetic login failed during warm-up: {}", e.toString());
+                } finally {
+                    executor.shutdownNow();
+                }
+                metrics.setReady(true);
+                log.info("Warm-up of {} component(s) and {} synthetic login(s) finished in {}ms",
+                        new Object[] {tasks.size(), logins, System.currentTimeMillis() - start});
+            }
+        }, "StatelessLoginWarmUp");
+        warmUpThread.setDaemon(true);
+        warmUpThread.start();
+    }
+
+    /**
+     * Wraps a component's warm-up as a task.
+     * 
+     * @param component the component
+     * @return  the task
+     */
+    private static Callable<Object> getWarmUpTask(final WarmUpSupport component) {
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                component.warmUp();
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Runs a synthetic login through the servlet's own per-request work: plan ordering, sealing
+     * and recovering a cookie, and the address and revocation checks. Backends, the storage service
+     * and the metrics aren't touched.
+     * 
+     * @param n sequence number of the login
+     * @throws DataSealerException if the cookie can't be sealed or recovered
+     */
+    private void warmUpLogin(int n) throws DataSealerException {
+        String username = "warmup" + n;
+        canonicalizer.canonicalize(username);
+        SubmoduleChain chain = this.chain;
+        if (chain.getBackendSelector() != null) {
+            chain.getBackendSelector().order(chain.getPlan(0), username);
+        }
+        StatelessAuthenticationInfo info = new StatelessAuthenticationInfo();
+        info.setUsername(username);
+        info.setAuthnMethod(AuthnContext.PPT_AUTHN_CTX);
+        info.setAuthnInstant(System.currentTimeMillis());
+        info.setAddress("192.0.2." + (n & 0xff));
+        String sealed = dataSealer.wrap(info.getPickled(), info.getAuthnInstant() + lifetime);
+        StatelessAuthenticationInfo recovered = new StatelessAuthenticationInfo(dataSealer.unwrap(sealed));
+        if (checkAddress(recovered.getAddress())) {
+            isSameClient(recovered.getAddress(), info.getAddress());
+        }
+        if (revocations != null) {
+            revocations.isRevoked(recovered.getUsername(), recovered.getAuthnInstant());
+        }
+        getOutcomeFlags(recovered);
     }
 
     /** {@inheritDoc} */
     protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException,
             IOException {
+        long allocated = allocationAccounting ? AllocationCounter.current() : 0;
+        LoginMetrics.RequestType type = LoginMetrics.RequestType.OTHER;
+        metrics.loginStarted();
+        try {
+            type = doLogin(request, response);
+        } finally {
+            metrics.loginFinished();
+            if (allocationAccounting) {
+                recordAllocation(type, AllocationCounter.since(allocated));
+            }
+        }
+    }
+
+    /**
+     * Records the bytes allocated by a request, warning the first time a kind of request exceeds its budget.
+     * 
+     * @param type  kind of request
+     * @param bytes bytes allocated
+     */
+    private void recordAllocation(LoginMetrics.RequestType type, long bytes) {
+        if (metrics.recordAllocation(type, bytes)) {
+            if (metrics.getOverBudget(type) == 1) {
+                log.warn("{} request allocated {} bytes, over its budget of {}; further overruns are only counted.",
+                        new Object[] {type, bytes, metrics.getAllocationBudget(type)});
+            } else {
+                log.debug("{} request allocated {} bytes, over its budget of {}.",
+                        new Object[] {type, bytes, metrics.getAllocationBudget(type)});
+            }
+        }
+    }
+
+    /**
+     * Processes a login request.
+     * 
+     * @param request   incoming request
+     * @param response  outbound response
+     * @return  the kind of request, for allocation accounting
+     * @throws ServletException if an error occurs
+     * @throws IOException if an error occurs
+     */
+    private LoginMetrics.RequestType doLogin(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
 
         LoginContext loginContext = HttpServletHelper.getLoginContext(
                 HttpServletHelper.getStorageService(getServletContext()), getServletContext(), request);
@@ -150,13 +717,19 @@ public class StatelessLoginServlet extends HttpServlet {
             ServletContext servletCtx = (errorContext == null) ? getServletContext()
                     : getServletContext().getContext(errorContext);
             servletCtx.getRequestDispatcher(errorPage).forward(request, response);
-            return;
+            return LoginMetrics.RequestType.OTHER;
         }
         
         // Check for identity in cookie.
         log.debug("Checking for authentication state in SSO cookie.");
         StatelessAuthenticationInfo info = recoverFromCookie(request, response);
         boolean saveToCookie = true; // set to false to avoid rewrite of existing cookie
+        SubmoduleChain chain = this.chain;
+        BackendSelector backendSelector = chain.getBackendSelector();
+        if (info != null && info.getBackend() != null && backendSelector != null) {
+            // Share affinity learned by other nodes.
+            backendSelector.recordSuccess(info.getUsername(), chain.getIndex(info.getBackend()));
+        }
         
         // Check for "j_continue" to determine whether this is first time entry.
         // This is easily spoofable, but ForceAuthn is usually easy to get
@@ -184,15 +757,19 @@ public class StatelessLoginServlet extends HttpServlet {
                 // No valid identity yet. Check for passive requirement.
                 if (loginContext.isPassiveAuthRequired()) {
                     log.warn("Request for passive authentication cannot be satisfied.");
+                    audit(AuditLog.EventType.FAILURE, request, loginContext, null, "PASSIVE");
                     request.setAttribute(LoginHandler.AUTHENTICATION_EXCEPTION_KEY,
                             new PassiveAuthenticationException());
                     AuthenticationEngine.returnToAuthenticationEngine(request, response);
+                    return LoginMetrics.RequestType.OTHER;
                 }
             }
         } else if (info != null) {
             // In theory, this is a continuation from a warning message of some kind,
             // so we finish the login based on the previously established identity.
+            info.setLoginContext(loginContext);
             completeLogin(request, response, info, false);
+            return LoginMetrics.RequestType.SSO;
         }
 
         // If info remains valid, we're already authenticated.
@@ -202,30 +779,134 @@ public class StatelessLoginServlet extends HttpServlet {
         }
         info.setLoginContext(loginContext);
 
-        // Loop through the registered submodules until a response has been generated.
-        for (String smname : submodules) {
-            // Continue execution by next submodule.
-            log.debug("Running login submodule {}", smname);
-            StatelessLoginSubmodule sm = submoduleMap.get(smname);
-            if (sm == null) {
-                log.warn("Skipping unrecognized submodule {}", smname);
+        // Canonicalize the username once for every submodule, and keep garbage away from the backends.
+        String submitted = request.getParameter("j_username");
+        if (!info.isAuthenticated() && submitted != null && !submitted.isEmpty()) {
+            info.setSubmittedUsername(canonicalizer.canonicalize(submitted));
+            if (info.getSubmittedUsername() == null) {
+                log.info("Rejected malformed username from {}.", getClientAddress(request));
+                info.setUnknownUsername(true);
+            }
+        }
+
+        // A forced login bypasses the cookie, so it runs the same plan as a fresh one.
+        int shape = info.isAuthenticated() ? SubmoduleChain.SSO_SHAPE : 0;
+        if (loginContext.isPassiveAuthRequired()) {
+            shape |= SubmoduleChain.PASSIVE_SHAPE;
+        }
+
+        // Skip credential checks that can't satisfy the requested methods.
+        int[] plan = chain.getPlan(shape);
+        List<String> requestedMethods = loginContext.getRequestedAuthenticationMethods();
+        if (requestedMethods != null && !requestedMethods.isEmpty()) {
+            plan = chain.selectCredentialPath(shape, requestedMethods);
+        }
+        if (backendSelector != null && (shape & SubmoduleChain.SSO_SHAPE) == 0) {
+            backendSelector.refresh();
+            plan = backendSelector.order(plan, info.getSubmittedUsername());
+        }
+
+        // Admit fresh credential checks only as fast as the backends can answer them.
+        LoginMetrics.RequestType type = ((shape & SubmoduleChain.SSO_SHAPE) != 0)
+                ? LoginMetrics.RequestType.SSO : LoginMetrics.RequestType.LOGIN;
+        if (admission == null || (shape & SubmoduleChain.SSO_SHAPE) != 0
+                || info.getSubmittedUsername() == null) {
+            runPlan(request, response, info, chain, plan, saveToCookie);
+            return type;
+        } else if (!admission.acquire()) {
+            metrics.loginShed();
+            audit(AuditLog.EventType.FAILURE, request, loginContext, info, "BUSY");
+            try {
+                admission.shed(request, response, info);
+            } catch (AuthenticationException e) {
+                request.setAttribute(LoginHandler.AUTHENTICATION_EXCEPTION_KEY, e);
+                AuthenticationEngine.returnToAuthenticationEngine(request, response);
+            }
+            return LoginMetrics.RequestType.OTHER;
+        }
+        long admitted = System.nanoTime();
+        try {
+            runPlan(request, response, info, chain, plan, saveToCookie);
+        } finally {
+            admission.release(admitted);
+        }
+        return type;
+    }
+
+    /**
+     * Runs the submodules in an execution plan and completes or fails the login.
+     * 
+     * @param request       incoming request
+     * @param response      outbound response
+     * @param info          the authentication state
+     * @param chain         the submodules
+     * @param plan          indexes of the submodules to run
+     * @param saveToCookie  whether to save a resulting identity to the SSO cookie
+     */
+    private void runPlan(HttpServletRequest request, HttpServletResponse response, StatelessAuthenticationInfo info,
+            SubmoduleChain chain, int[] plan, boolean saveToCookie) {
+        LoginContext loginContext = info.getLoginContext();
+
+        // Run the planned submodules until a response has been generated.
+        boolean credentialsSettled = false;
+        for (int i : plan) {
+            // Skip submodules with nothing left to do, now that an identity is established
+            // or the account was found to be unusable.
+            int phases = chain.getPhases(i);
+            if (info.isAuthenticated() ? (phases & (SubmoduleChain.SSO_PHASE | SubmoduleChain.POST_AUTH_PHASE)) == 0
+                    : (phases & (credentialsSettled ? SubmoduleChain.UI_PHASE
+                            : SubmoduleChain.CREDENTIAL_PHASE | SubmoduleChain.UI_PHASE)) == 0) {
                 continue;
             }
 
+            // Continue execution by next submodule.
+            String smname = chain.getName(i);
+            log.debug("Running login submodule {}", smname);
+            StatelessLoginSubmodule sm = chain.getSubmodule(i);
+
+            int before = getOutcomeFlags(info);
+            long allocated = allocationAccounting ? AllocationCounter.current() : 0;
+            long start = System.nanoTime();
+            LoginOutcome outcome;
             try {
                 sm.run(this, request, response, info);
-                if (response.isCommitted()) {
-                    // A response was generated.
-                    return;
-                }
+                // A committed response means one was generated.
+                outcome = response.isCommitted() ? LoginOutcome.RESPONDED
+                        : getOutcome(before, getOutcomeFlags(info));
             } catch (AuthenticationException e) {
+                outcome = LoginOutcome.AUTHENTICATION_EXCEPTION;
                 // Save off exception.
                 log.error("Login submodule {} failed: {}", smname, e.getMessage());
                 info.setAuthnException(e);
             } catch (LoginException e) {
+                outcome = LoginOutcome.LOGIN_EXCEPTION;
             	// Save off login exception.
             	info.setLoginException(e);
             }
+
+            chain.getMetrics(i).record(start, outcome);
+            if (allocationAccounting) {
+                chain.getMetrics(i).recordAllocation(AllocationCounter.since(allocated));
+            }
+            if (LoginTrace.isEnabled()) {
+                LoginTrace.record("submodule", start, smname, loginContext.getRelyingPartyId(),
+                        outcome + " flags=0x" + Integer.toHexString(getOutcomeFlags(info)));
+            }
+            if (outcome == LoginOutcome.RESPONDED) {
+                recordFailure(request, info);
+                if (isFailure(info)) {
+                    audit(AuditLog.EventType.FAILURE, request, loginContext, info, getFailureReason(info));
+                }
+                return;
+            } else if (outcome == LoginOutcome.AUTHENTICATED && chain.getBackendSelector() != null) {
+                chain.getBackendSelector().recordSuccess(info.getUsername(), i);
+                if (affinityInCookie && chain.isMethodRestricted(i)) {
+                    info.setBackend(smname);
+                }
+            } else if (outcome == LoginOutcome.EXPIRED_PASSWORD || outcome == LoginOutcome.ACCOUNT_LOCKED
+                    || outcome == LoginOutcome.ACCOUNT_DISABLED) {
+                credentialsSettled = true;
+            }
         }
 
         if (info.getAuthnException() == null && info.isAuthenticated()) {
@@ -236,6 +917,8 @@ public class StatelessLoginServlet extends HttpServlet {
         }
         
         log.error("No response generated after running all submodules.");
+        recordFailure(request, info);
+        audit(AuditLog.EventType.FAILURE, request, loginContext, info, getFailureReason(info));
         if (info.getAuthnException() != null) {
             request.setAttribute(LoginHandler.AUTHENTICATION_EXCEPTION_KEY, info.getAuthnException());
         } else if (info.getLoginException() != null) {
@@ -282,12 +965,151 @@ public class StatelessLoginServlet extends HttpServlet {
                 log.error("Error while saving authentication info to cookie, SSO will not be possible: " + e);
             }
         }
+        audit(saveToCookie ? AuditLog.EventType.SUCCESS : AuditLog.EventType.SSO, httpRequest,
+                info.getLoginContext(), info, null);
+        if (uniqueUsers != null && info.getLoginContext() != null) {
+            uniqueUsers.record(info.getLoginContext().getRelyingPartyId(), info.getUsername());
+        }
         httpRequest.setAttribute(LoginHandler.PRINCIPAL_NAME_KEY, info.getUsername());
         httpRequest.setAttribute(LoginHandler.AUTHENTICATION_METHOD_KEY, info.getAuthnMethod());
         httpRequest.setAttribute(LoginHandler.AUTHENTICATION_INSTANT_KEY, new DateTime(info.getAuthnInstant()));
         AuthenticationEngine.returnToAuthenticationEngine(httpRequest, httpResponse);
     }
     
+    /**
+     * Records a login event to the audit log, if one is configured.
+     * 
+     * @param type          type of event
+     * @param httpRequest   incoming request
+     * @param loginContext  login context from IdP, or null
+     * @param info          the authentication state, or null
+     * @param reason        reason for a failure, or null
+     */
+    private void audit(AuditLog.EventType type, HttpServletRequest httpRequest, LoginContext loginContext,
+            StatelessAuthenticationInfo info, String reason) {
+        if (auditLog == null) {
+            return;
+        }
+        String username = (info != null) ? info.getUsername() : null;
+        if (username == null) {
+            username = httpRequest.getParameter("j_username");
+        }
+        auditLog.record(type, username, (info != null) ? info.getAuthnMethod() : null,
+                (info != null) ? info.getAuthnInstant() : 0, getClientAddress(httpRequest),
+                (loginContext != null) ? loginContext.getRelyingPartyId() : null, reason);
+    }
+
+    /**
+     * Records a rejected password or username for heavy hitter tracking.
+     * 
+     * @param httpRequest   incoming request
+     * @param info          the authentication state
+     */
+    private void recordFailure(HttpServletRequest httpRequest, StatelessAuthenticationInfo info) {
+        if (!info.isAuthenticated() && (info.isInvalidPassword() || info.isUnknownUsername())) {
+            String username = info.getUsername();
+            if (username == null) {
+                username = info.getSubmittedUsername();
+            }
+            if (username == null) {
+                username = httpRequest.getParameter("j_username");
+            }
+            metrics.recordFailure(username, getClientAddress(httpRequest));
+        }
+    }
+
+    /**
+     * Determines whether a response generated by a submodule reports a failed attempt, as opposed
+     * to a first visit to the login form or a warning after a successful login.
+     * 
+     * @param info  the authentication state
+     * @return  true iff the attempt failed
+     */
+    private static boolean isFailure(StatelessAuthenticationInfo info) {
+        if (info.isAccessDenied() || info.isThrottled()) {
+            return true;
+        }
+        return !info.isAuthenticated() && (getOutcomeFlags(info) != 0 || info.getLoginException() != null
+                || info.getAuthnException() != null);
+    }
+
+    /**
+     * Determines the reason a login failed.
+     * 
+     * @param info  the authentication state
+     * @return  the reason for the failure
+     */
+    private static String getFailureReason(StatelessAuthenticationInfo info) {
+        if (info.getAuthnException() != null) {
+            return LoginOutcome.AUTHENTICATION_EXCEPTION.name();
+        } else if (info.isAccessDenied()) {
+            return "ACCESS_DENIED";
+        } else if (info.isThrottled()) {
+            return "THROTTLED";
+        }
+        LoginOutcome outcome = getOutcome(0, getOutcomeFlags(info));
+        if (outcome != LoginOutcome.PASSED) {
+            return outcome.name();
+        } else if (info.getLoginException() != null) {
+            return LoginOutcome.LOGIN_EXCEPTION.name();
+        }
+        return "NO_RESPONSE";
+    }
+
+    /**
+     * Captures the result indicators of an authentication attempt as a set of flags.
+     * 
+     * @param info  the authentication state
+     * @return  the outcome flags
+     */
+    private static int getOutcomeFlags(StatelessAuthenticationInfo info) {
+        int flags = 0;
+        if (info.isAuthenticated()) {
+            flags |= AUTHENTICATED_FLAG;
+        }
+        if (info.isUnknownUsername()) {
+            flags |= UNKNOWN_USERNAME_FLAG;
+        }
+        if (info.isInvalidPassword()) {
+            flags |= INVALID_PASSWORD_FLAG;
+        }
+        if (info.isExpiredPassword()) {
+            flags |= EXPIRED_PASSWORD_FLAG;
+        }
+        if (info.isAccountLocked()) {
+            flags |= ACCOUNT_LOCKED_FLAG;
+        }
+        if (info.isAccountDisabled()) {
+            flags |= ACCOUNT_DISABLED_FLAG;
+        }
+        return flags;
+    }
+
+    /**
+     * Determines the outcome of a submodule from the indicators it set.
+     * 
+     * @param before    outcome flags before the submodule ran
+     * @param after     outcome flags after the submodule ran
+     * @return  the outcome
+     */
+    private static LoginOutcome getOutcome(int before, int after) {
+        int changed = after & ~before;
+        if ((changed & AUTHENTICATED_FLAG) != 0) {
+            return LoginOutcome.AUTHENTICATED;
+        } else if ((changed & EXPIRED_PASSWORD_FLAG) != 0) {
+            return LoginOutcome.EXPIRED_PASSWORD;
+        } else if ((changed & ACCOUNT_LOCKED_FLAG) != 0) {
+            return LoginOutcome.ACCOUNT_LOCKED;
+        } else if ((changed & ACCOUNT_DISABLED_FLAG) != 0) {
+            return LoginOutcome.ACCOUNT_DISABLED;
+        } else if ((changed & UNKNOWN_USERNAME_FLAG) != 0) {
+            return LoginOutcome.UNKNOWN_USERNAME;
+        } else if ((changed & INVALID_PASSWORD_FLAG) != 0) {
+            return LoginOutcome.INVALID_PASSWORD;
+        }
+        return LoginOutcome.PASSED;
+    }
+
     /**
      * Returns true iff the cookie address should be validated against the client.
      * 
@@ -295,8 +1117,34 @@ public class StatelessLoginServlet extends HttpServlet {
      * @return	indicator of whether to validate the address
      */
     private boolean checkAddress(String addr) {
-    	// TODO: implement exclusions
-    	return true;
+        return addressPolicy == null || !addressPolicy.isExcluded(addr);
+    }
+
+    /**
+     * Checks whether a client may present a cookie issued to an address.
+     *
+     * @param cookieAddr    the cookie address
+     * @param clientAddr    the client address
+     * @return  true iff the client matches the address
+     */
+    private boolean isSameClient(String cookieAddr, String clientAddr) {
+        if (addressPolicy != null) {
+            return addressPolicy.isSameClient(cookieAddr, clientAddr);
+        }
+        return cookieAddr.equals(clientAddr);
+    }
+
+    /**
+     * Gets the address of the client, looking past any trusted proxies.
+     *
+     * @param httpRequest   incoming request
+     * @return  the client address
+     */
+    public String getClientAddress(HttpServletRequest httpRequest) {
+        if (addressPolicy != null) {
+            return addressPolicy.getClientAddress(httpRequest);
+        }
+        return httpRequest.getRemoteAddr();
     }
     
     /**
@@ -308,49 +1156,135 @@ public class StatelessLoginServlet extends HttpServlet {
      */
     private StatelessAuthenticationInfo recoverFromCookie(HttpServletRequest httpRequest,
             HttpServletResponse httpResponse) {
+        long start = System.nanoTime();
+        long unwrapNanos = 0;
+        if (sessionStore != null) {
+            Cookie handle = HttpServletHelper.getCookie(httpRequest, handleCookieName);
+            if (handle != null && !"INVALID".equals(handle.getValue())) {
+                StatelessAuthenticationInfo info = sessionStore.get(handle.getValue());
+                if (info != null) {
+                    log.debug("Recovered username ({}) from session store.", info.getUsername());
+                    return checkRecovered(httpRequest, httpResponse, info, start, 0);
+                }
+                log.debug("Handle cookie not found in session store, falling back to SSO cookie.");
+            }
+        }
         Cookie cookie = HttpServletHelper.getCookie(httpRequest, cookieName);
         if (cookie != null && !"INVALID".equals(cookie.getValue())) {
             log.debug("Found SSO cookie ({}).", cookie.getValue());
             try {
-                StatelessAuthenticationInfo info =
-                    new StatelessAuthenticationInfo(dataSealer.unwrap(cookie.getValue()));
+                long unwrapStart = System.nanoTime();
+                String pickled;
+                try {
+                    pickled = dataSealer.unwrap(cookie.getValue());
+                } finally {
+                    unwrapNanos = System.nanoTime() - unwrapStart;
+                    metrics.getUnwrapLatency().recordNanos(unwrapNanos);
+                }
+                StatelessAuthenticationInfo info = new StatelessAuthenticationInfo(pickled);
                 log.debug("Recovered username ({}) from cookie.", info.getUsername());
-                
-                if (checkAddress(info.getAddress()) && !info.getAddress().equals(httpRequest.getRemoteAddr())) {
-                	log.warn("Client address mismatch for username ({}): actual {}, cookie issued to {}",
-                			new Object[] {info.getUsername(), httpRequest.getRemoteAddr(), info.getAddress() });
-                	invalidateCookie(httpRequest, httpResponse);
-                	return null;
+                info = checkRecovered(httpRequest, httpResponse, info, start, unwrapNanos);
+                if (info != null && sessionStore != null) {
+                    // Issue a handle so later requests reaching this node skip the unsealing.
+                    String handle = sessionStore.put(info, info.getAuthnInstant() + lifetime);
+                    if (handle != null) {
+                        addCookie(httpRequest, httpResponse, handleCookieName, handle);
+                    }
                 }
-                
                 return info;
             } catch (DataExpiredException e) {
                 log.info("Recovered authentication info has expired.");
                 invalidateCookie(httpRequest, httpResponse);
+                recordCookieResult(start, unwrapNanos, LoginMetrics.CookieResult.EXPIRED);
+                return null;
             } catch (DataSealerException e) {
                 log.error("Error while recovering authentication info from cookie: " + e);
                 invalidateCookie(httpRequest, httpResponse);
+                recordCookieResult(start, unwrapNanos, LoginMetrics.CookieResult.ERROR);
+                return null;
             }
         }
+        recordCookieResult(start, unwrapNanos, LoginMetrics.CookieResult.MISS);
         return null;
     }
 
     /**
-     * Invalidates the SSO cookie.
+     * Checks that a recovered session may be used by the client presenting it.
+     * 
+     * @param httpRequest   incoming request
+     * @param httpResponse  outbound response
+     * @param info          the recovered identity
+     * @param start         value of {@link System#nanoTime()} when the check started
+     * @param unwrapNanos   time spent unsealing the cookie
+     * @return  the recovered identity, or null if it may not be used
+     */
+    private StatelessAuthenticationInfo checkRecovered(HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse, StatelessAuthenticationInfo info, long start, long unwrapNanos) {
+        String clientAddr = getClientAddress(httpRequest);
+        if (checkAddress(info.getAddress()) && !isSameClient(info.getAddress(), clientAddr)) {
+        	log.warn("Client address mismatch for username ({}): actual {}, cookie issued to {}",
+        			new Object[] {info.getUsername(), clientAddr, info.getAddress() });
+        	invalidateCookie(httpRequest, httpResponse);
+        	metrics.recordFailure(info.getUsername(), clientAddr);
+        	recordCookieResult(start, unwrapNanos, LoginMetrics.CookieResult.ADDRESS_MISMATCH);
+        	return null;
+        }
+        
+        if (revocations != null && revocations.isRevoked(info.getUsername(), info.getAuthnInstant())) {
+            log.warn("Revoked SSO cookie presented for username ({})", info.getUsername());
+            invalidateCookie(httpRequest, httpResponse);
+            recordCookieResult(start, unwrapNanos, LoginMetrics.CookieResult.REVOKED);
+            return null;
+        }
+
+        recordCookieResult(start, unwrapNanos, LoginMetrics.CookieResult.HIT);
+        return info;
+    }
+
+    /**
+     * Records the result of checking for an SSO cookie.
+     * 
+     * @param start         value of {@link System#nanoTime()} when the check started
+     * @param unwrapNanos   time spent unsealing the cookie
+     * @param result        the result of the check
+     */
+    private void recordCookieResult(long start, long unwrapNanos, LoginMetrics.CookieResult result) {
+        metrics.recordCookieResult(result);
+        if (result == LoginMetrics.CookieResult.HIT) {
+            cookieRecoverMetrics.record(start, LoginOutcome.AUTHENTICATED);
+        } else if (result == LoginMetrics.CookieResult.ERROR) {
+            cookieRecoverMetrics.record(start, LoginOutcome.AUTHENTICATION_EXCEPTION);
+        } else {
+            cookieRecoverMetrics.record(start, LoginOutcome.PASSED);
+        }
+        if (LoginTrace.isEnabled()) {
+            LoginTrace.record(LoginMetrics.COOKIE_RECOVER_STEP, start, cookieName, null,
+                    result + " unwrapMicros=" + unwrapNanos / 1000);
+        }
+    }
+
+    /**
+     * Invalidates the SSO cookie, and the handle cookie and its session if a session store is in use.
      * 
      * @param httpRequest   incoming request
      * @param httpResponse  outbound response
      */
     private void invalidateCookie(HttpServletRequest httpRequest,
             HttpServletResponse httpResponse) {
-        Cookie cookie = new Cookie(cookieName, "INVALID");
-        cookie.setSecure(true);
-        cookie.setPath(httpRequest.getContextPath() + httpRequest.getServletPath());
-        httpResponse.addCookie(cookie);
+        addCookie(httpRequest, httpResponse, cookieName, "INVALID");
+        if (sessionStore != null) {
+            Cookie handle = HttpServletHelper.getCookie(httpRequest, handleCookieName);
+            if (handle != null && !"INVALID".equals(handle.getValue())) {
+                sessionStore.remove(handle.getValue());
+                addCookie(httpRequest, httpResponse, handleCookieName, "INVALID");
+            }
+        }
     }
     
     /**
-     * Stores the authenticated identity in a cookie.
+     * Stores the authenticated identity in a cookie. With a session store, the identity is also kept
+     * on this node behind a handle cookie, and the sealed cookie is issued only as a fallback for
+     * requests reaching other nodes, unless that's turned off.
      * 
      * @param httpRequest   incoming request
      * @param httpResponse  outbound response
@@ -359,9 +1293,46 @@ public class StatelessLoginServlet extends HttpServlet {
      */
     public void saveToCookie(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
             StatelessAuthenticationInfo info) throws DataSealerException {
-    	info.setAddress(httpRequest.getRemoteAddr());
-        Cookie cookie = new Cookie(cookieName, dataSealer.wrap(info.getPickled(), info.getAuthnInstant()
-                + lifetime));
+        long start = System.nanoTime();
+    	info.setAddress(getClientAddress(httpRequest));
+        String handle = null;
+        if (sessionStore != null) {
+            handle = sessionStore.put(info, info.getAuthnInstant() + lifetime);
+            if (handle != null) {
+                addCookie(httpRequest, httpResponse, handleCookieName, handle);
+            }
+        }
+        String sealed = "";
+        if (handle == null || sealedFallback) {
+            try {
+                sealed = dataSealer.wrap(info.getPickled(), info.getAuthnInstant() + lifetime);
+            } catch (DataSealerException e) {
+                cookieSaveMetrics.record(start, LoginOutcome.AUTHENTICATION_EXCEPTION);
+                throw e;
+            } finally {
+                metrics.getWrapLatency().recordNanos(System.nanoTime() - start);
+            }
+            addCookie(httpRequest, httpResponse, cookieName, sealed);
+        }
+        int issued = sealed.length() + ((handle != null) ? handle.length() : 0);
+        metrics.recordCookieIssued(issued);
+        cookieSaveMetrics.record(start, LoginOutcome.RESPONDED);
+        if (LoginTrace.isEnabled()) {
+            LoginTrace.record(LoginMetrics.COOKIE_SAVE_STEP, start, cookieName, null, issued);
+        }
+    }
+
+    /**
+     * Adds a secure cookie scoped to this servlet.
+     * 
+     * @param httpRequest   incoming request
+     * @param httpResponse  outbound response
+     * @param name          name of the cookie
+     * @param value         value of the cookie
+     */
+    private void addCookie(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+            String name, String value) {
+        Cookie cookie = new Cookie(name, value);
         cookie.setSecure(true);
         cookie.setPath(httpRequest.getContextPath() + httpRequest.getServletPath());
         httpResponse.addCookie(cookie);
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the metrics collected by the {@link StatelessLoginServlet} in Prometheus text or JSON format.
+ *
+ * Only in-memory counters are read, so the IdP storage service is never touched and the
+ * endpoint is cheap enough for load balancers to poll. A 503 status is returned until the
+ * login servlet has warmed up, and if backends are configured and none of them is available.
+ *
+ * With view=failures, the usernames and client addresses failing most often over the recent
+ * window are returned in JSON instead. Failed usernames often hold mistyped passwords, so that
+ * view is off unless the failuresView init-param is set, and an instance with it set belongs on
+ * its own, access-restricted mapping.
+ */
+public class StatelessStatusServlet extends HttpServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 4378231059946371785L;
+
+    /** Upper bounds of the histogram buckets reported, in microseconds. */
+    private static final long[] REPORTED_BOUNDS = {
+        1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000,
+    };
+
+    /** Metrics to report. */
+    private LoginMetrics metrics;
+
+    /** Backends to report on. */
+    private List<BackendStatus> backends;
+
+    /** init-param which can be passed to the servlet to override the metrics attribute name. */
+    private final String metricsInitParam = "metricsRef";
+
+    /** Whether to serve the usernames and addresses failing most often. */
+    private boolean failuresView;
+
+    /** init-param which can be passed to the servlet to specify the backend list. */
+    private final String backendsInitParam = "backends";
+
+    /** init-param which can be passed to the servlet to serve the failures view. */
+    private final String failuresViewInitParam = "failuresView";
+
+    /** {@inheritDoc} */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+
+        String metricsAttribute = getInitParameter(metricsInitParam) != null
+                ? getInitParameter(metricsInitParam) : LoginMetrics.DEFAULT_ATTRIBUTE;
+        synchronized (getServletContext()) {
+            metrics = (LoginMetrics) getServletContext().getAttribute(metricsAttribute);
+            if (metrics == null) {
+                metrics = new LoginMetrics();
+                getServletContext().setAttribute(metricsAttribute, metrics);
+            }
+        }
+
+        failuresView = Boolean.parseBoolean(getInitParameter(failuresViewInitParam));
+
+        backends = new ArrayList<BackendStatus>();
+        if (getInitParameter(backendsInitParam) != null) {
+            for (String name : getInitParameter(backendsInitParam).split(" ")) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+                Object backend = getServletContext().getAttribute(name);
+                if (!(backend instanceof BackendStatus)) {
+                    throw new ServletException("Backend (" + name + ") was not found in servlet context.");
+                }
+                backends.add((BackendStatus) backend);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+
+        if ("failures".equals(request.getParameter("view")) && !failuresView) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        boolean available = backends.isEmpty();
+        for (BackendStatus b : backends) {
+            available |= b.isBackendAvailable();
+        }
+        if (!available || !metrics.isReady()) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        response.setHeader("Cache-Control", "no-store");
+
+        String accept = request.getHeader("Accept");
+        if ("failures".equals(request.getParameter("view"))) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            PrintWriter out = response.getWriter();
+            out.print("{\"windowSeconds\":" + metrics.getFailedUsernames().getWindowDuration() / 1000
+                    + ",\"usernames\":");
+            writeJson(out, metrics.getFailedUsernames().getTop());
+            out.print(",\"addresses\":");
+            writeJson(out, metrics.getFailedAddresses().getTop());
+            out.print("}");
+            out.flush();
+        } else if ("json".equals(request.getParameter("format"))
+                || (request.getParameter("format") == null && accept != null && accept.contains("application/json"))) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            writeJson(response.getWriter());
+        } else {
+            response.setContentType("text/plain; version=0.0.4");
+            response.setCharacterEncoding("UTF-8");
+            writePrometheus(response.getWriter());
+        }
+    }
+
+    /**
+     * Writes the metrics in Prometheus text format.
+     *
+     * @param out   destination
+     */
+    private void writePrometheus(PrintWriter out) {
+        out.println("# HELP osu_idp_sso_cookie_total SSO cookie checks by result.");
+        out.println("# TYPE osu_idp_sso_cookie_total counter");
+        for (LoginMetrics.CookieResult r : LoginMetrics.CookieResult.values()) {
+            out.println("osu_idp_sso_cookie_total{result=\"" + r.name().toLowerCase() + "\"} "
+                    + metrics.getCookieCount(r));
+        }
+
+        out.println("# HELP osu_idp_sso_cookie_bytes Size of SSO cookies issued.");
+        out.println("# TYPE osu_idp_sso_cookie_bytes summary");
+        out.println("osu_idp_sso_cookie_bytes_sum " + metrics.getCookieBytes());
+        out.println("osu_idp_sso_cookie_bytes_count " + metrics.getCookiesIssued());
+        out.println("# HELP osu_idp_sso_cookie_bytes_max Size of the largest SSO cookie issued.");
+        out.println("# TYPE osu_idp_sso_cookie_bytes_max gauge");
+        out.println("osu_idp_sso_cookie_bytes_max " + metrics.getMaxCookieBytes());
+
+        out.println("# HELP osu_idp_sealer_seconds Latency of SSO cookie sealing operations.");
+        out.println("# TYPE osu_idp_sealer_seconds histogram");
+        writeHistogram(out, "osu_idp_sealer_seconds", "op=\"wrap\"", metrics.getWrapLatency());
+        writeHistogram(out, "osu_idp_sealer_seconds", "op=\"unwrap\"", metrics.getUnwrapLatency());
+
+        out.println("# HELP osu_idp_login_step_seconds Latency of login steps.");
+        out.println("# TYPE osu_idp_login_step_seconds histogram");
+        for (StepMetrics step : metrics.getSteps()) {
+            writeHistogram(out, "osu_idp_login_step_seconds", "step=\"" + escape(step.getName()) + "\"",
+                    step.getLatency());
+        }
+
+        out.println("# HELP osu_idp_login_step_total Login step runs by outcome.");
+        out.println("# TYPE osu_idp_login_step_total counter");
+        for (StepMetrics step : metrics.getSteps()) {
+            for (LoginOutcome o : LoginOutcome.values()) {
+                out.println("osu_idp_login_step_total{step=\"" + escape(step.getName()) + "\",outcome=\""
+                        + o.name().toLowerCase() + "\"} " + step.getCount(o));
+            }
+        }
+
+        out.println("# HELP osu_idp_login_step_allocated_bytes Heap allocated per login step run.");
+        out.println("# TYPE osu_idp_login_step_allocated_bytes summary");
+        for (StepMetrics step : metrics.getSteps()) {
+            if (step.getAllocation().getCount() > 0) {
+                writeSummary(out, "osu_idp_login_step_allocated_bytes", "step=\"" + escape(step.getName()) + "\"",
+                        step.getAllocation());
+            }
+        }
+
+        out.println("# HELP osu_idp_request_allocated_bytes Heap allocated per login request.");
+        out.println("# TYPE osu_idp_request_allocated_bytes summary");
+        for (LoginMetrics.RequestType t : LoginMetrics.RequestType.values()) {
+            writeSummary(out, "osu_idp_request_allocated_bytes", "type=\"" + t.name().toLowerCase() + "\"",
+                    metrics.getAllocation(t));
+        }
+
+        out.println("# HELP osu_idp_request_allocation_budget_bytes Heap allowed per login request, or 0 for none.");
+        out.println("# TYPE osu_idp_request_allocation_budget_bytes gauge");
+        for (LoginMetrics.RequestType t : LoginMetrics.RequestType.values()) {
+            out.println("osu_idp_request_allocation_budget_bytes{type=\"" + t.name().toLowerCase() + "\"} "
+                    + metrics.getAllocationBudget(t));
+        }
+
+        out.println("# HELP osu_idp_request_over_budget_total Login requests allocating more than their budget.");
+        out.println("# TYPE osu_idp_request_over_budget_total counter");
+        for (LoginMetrics.RequestType t : LoginMetrics.RequestType.values()) {
+            out.println("osu_idp_request_over_budget_total{type=\"" + t.name().toLowerCase() + "\"} "
+                    + metrics.getOverBudget(t));
+        }
+
+        out.println("# HELP osu_idp_backend_up Whether a backend was usable as of its most recent request.");
+        out.println("# TYPE osu_idp_backend_up gauge");
+        for (BackendStatus b : backends) {
+            out.println("osu_idp_backend_up{backend=\"" + escape(b.getBackendName()) + "\"} "
+                    + (b.isBackendAvailable() ? 1 : 0));
+        }
+
+        out.println("# HELP osu_idp_logins_in_flight Login requests being processed.");
+        out.println("# TYPE osu_idp_logins_in_flight gauge");
+        out.println("osu_idp_logins_in_flight " + metrics.getInFlight());
+
+        out.println("# HELP osu_idp_logins_shed_total Logins turned away for lack of capacity.");
+        out.println("# TYPE osu_idp_logins_shed_total counter");
+        out.println("osu_idp_logins_shed_total " + metrics.getShed());
+
+        out.println("# HELP osu_idp_ready Whether the login servlet has warmed up.");
+        out.println("# TYPE osu_idp_ready gauge");
+        out.println("osu_idp_ready " + (metrics.isReady() ? 1 : 0));
+        out.flush();
+    }
+
+    /**
+     * Writes a histogram in Prometheus text format.
+     *
+     * @param out       destination
+     * @param name      metric name
+     * @param labels    labels identifying the histogram
+     * @param h         the histogram
+     */
+    private void writeHistogram(PrintWriter out, String name, String labels, LatencyHistogram h) {
+        // Read the total first so the cumulative buckets never exceed it.
+        long count = h.getCount();
+        long sum = h.getSum();
+        for (long bound : REPORTED_BOUNDS) {
+            out.println(name + "_bucket{" + labels + ",le=\"" + toSeconds(bound) + "\"} "
+                    + Math.min(count, h.getCountBelow(bound)));
+        }
+        out.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count);
+        out.println(name + "_sum{" + labels + "} " + toSeconds(sum));
+        out.println(name + "_count{" + labels + "} " + count);
+    }
+
+    /**
+     * Writes a histogram of byte counts as a summary in Prometheus text format.
+     *
+     * @param out       destination
+     * @param name      metric name
+     * @param labels    labels identifying the summary
+     * @param h         the histogram
+     */
+    private void writeSummary(PrintWriter out, String name, String labels, LatencyHistogram h) {
+        out.println(name + "{" + labels + ",quantile=\"0.5\"} " + h.getValueAtPercentile(50));
+        out.println(name + "{" + labels + ",quantile=\"0.99\"} " + h.getValueAtPercentile(99));
+        out.println(name + "_sum{" + labels + "} " + h.getSum());
+        out.println(name + "_count{" + labels + "} " + h.getCount());
+    }
+
+    /**
+     * Writes the metrics in JSON format.
+     *
+     * @param out   destination
+     */
+    private void writeJson(PrintWriter out) {
+        out.print("{\"ssoCookie\":{");
+        for (LoginMetrics.CookieResult r : LoginMetrics.CookieResult.values()) {
+            out.print("\"" + r.name().toLowerCase() + "\":" + metrics.getCookieCount(r) + ",");
+        }
+        out.print("\"issued\":" + metrics.getCookiesIssued() + ",\"bytes\":" + metrics.getCookieBytes()
+                + ",\"maxBytes\":" + metrics.getMaxCookieBytes() + "},");
+
+        out.print("\"sealer\":{\"wrap\":");
+        writeJson(out, metrics.getWrapLatency());
+        out.print(",\"unwrap\":");
+        writeJson(out, metrics.getUnwrapLatency());
+        out.print("},");
+
+        out.print("\"steps\":{");
+        boolean first = true;
+        for (StepMetrics step : metrics.getSteps()) {
+            out.print((first ? "\"" : ",\"") + escape(step.getName()) + "\":{\"latency\":");
+            writeJson(out, step.getLatency());
+            if (step.getAllocation().getCount() > 0) {
+                out.print(",\"allocation\":");
+                writeBytesJson(out, step.getAllocation());
+            }
+            out.print(",\"outcomes\":{");
+            for (LoginOutcome o : LoginOutcome.values()) {
+                out.print((o.ordinal() == 0 ? "\"" : ",\"") + o.name().toLowerCase() + "\":" + step.getCount(o));
+            }
+            out.print("}}");
+            first = false;
+        }
+        out.print("},");
+
+        out.print("\"allocation\":{");
+        for (LoginMetrics.RequestType t : LoginMetrics.RequestType.values()) {
+            out.print((t.ordinal() == 0 ? "\"" : ",\"") + t.name().toLowerCase() + "\":{\"budget\":"
+                    + metrics.getAllocationBudget(t) + ",\"overBudget\":" + metrics.getOverBudget(t) + ",\"bytes\":");
+            writeBytesJson(out, metrics.getAllocation(t));
+            out.print("}");
+        }
+        out.print("},");
+
+        out.print("\"backends\":{");
+        first = true;
+        for (BackendStatus b : backends) {
+            out.print((first ? "\"" : ",\"") + escape(b.getBackendName()) + "\":" + b.isBackendAvailable());
+            first = false;
+        }
+        out.print("},");
+
+        out.print("\"inFlight\":" + metrics.getInFlight() + ",");
+        out.print("\"shed\":" + metrics.getShed() + ",");
+        out.print("\"ready\":" + metrics.isReady() + "}");
+        out.flush();
+    }
+
+    /**
+     * Writes a summary of a histogram in JSON format, with times in microseconds.
+     *
+     * @param out   destination
+     * @param h     the histogram
+     */
+    private void writeJson(PrintWriter out, LatencyHistogram h) {
+        out.print("{\"count\":" + h.getCount() + ",\"sumMicros\":" + h.getSum()
+                + ",\"p50Micros\":" + h.getValueAtPercentile(50) + ",\"p90Micros\":" + h.getValueAtPercentile(90)
+                + ",\"p99Micros\":" + h.getValueAtPercentile(99) + ",\"maxMicros\":" + h.getMax() + "}");
+    }
+
+    /**
+     * Writes a summary of a histogram of byte counts in JSON format.
+     *
+     * @param out   destination
+     * @param h     the histogram
+     */
+    private void writeBytesJson(PrintWriter out, LatencyHistogram h) {
+        out.print("{\"count\":" + h.getCount() + ",\"sum\":" + h.getSum() + ",\"p50\":" + h.getValueAtPercentile(50)
+                + ",\"p99\":" + h.getValueAtPercentile(99) + ",\"max\":" + h.getMax() + "}");
+    }
+
+    /**
+     * Writes a list of keys and counts in JSON format, preserving order.
+     *
+     * @param out   destination
+     * @param top   keys and counts
+     */
+    private void writeJson(PrintWriter out, List<Map.Entry<String, Long>> top) {
+        out.print("[");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : top) {
+            out.print((first ? "{\"key\":\"" : ",{\"key\":\"") + escape(entry.getKey()) + "\",\"count\":"
+                    + entry.getValue() + "}");
+            first = false;
+        }
+        out.print("]");
+    }
+
+    /**
+     * Converts microseconds to seconds.
+     *
+     * @param micros    time in microseconds
+     * @return  time in seconds
+     */
+    private static String toSeconds(long micros) {
+        return Double.toString(micros / 1000000.0);
+    }
+
+    /**
+     * Escapes a string for use as a JSON string or Prometheus label value.
+     *
+     * @param s the string
+     * @return  the escaped string
+     */
+    static String escape(String s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c >= ' ') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
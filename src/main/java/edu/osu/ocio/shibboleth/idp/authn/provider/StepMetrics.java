@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency, outcome counts and, when accounting is on, heap allocation for one step of the
+ * {@link StatelessLoginServlet}.
+ */
+public class StepMetrics {
+
+    /** Name of the step. */
+    private final String name;
+
+    /** Latency of the step. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Bytes allocated per run of the step. */
+    private final LatencyHistogram allocation = new LatencyHistogram();
+
+    /** Outcome counts indexed by ordinal. */
+    private final AtomicLongArray outcomes = new AtomicLongArray(LoginOutcome.values().length);
+
+    /**
+     * Constructor.
+     *
+     * @param name  name of the step
+     */
+    public StepMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a run of the step.
+     *
+     * @param startNanos    value of {@link System#nanoTime()} when the step started
+     * @param outcome       result of the step
+     */
+    public void record(long startNanos, LoginOutcome outcome) {
+        latency.recordNanos(System.nanoTime() - startNanos);
+        outcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    /**
+     * Records the bytes allocated by a run of the step.
+     *
+     * @param bytes bytes allocated
+     */
+    public void recordAllocation(long bytes) {
+        allocation.record(bytes);
+    }
+
+    /**
+     * Gets the name of the step.
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the latency of the step.
+     * @return the latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the bytes allocated per run of the step, recorded in the histogram's microsecond units.
+     * @return the allocation histogram
+     */
+    public LatencyHistogram getAllocation() {
+        return allocation;
+    }
+
+    /**
+     * Gets the number of runs with a given outcome.
+     *
+     * @param outcome   the outcome
+     * @return  the number of runs
+     */
+    public long getCount(LoginOutcome outcome) {
+        return outcomes.get(outcome.ordinal());
+    }
+}
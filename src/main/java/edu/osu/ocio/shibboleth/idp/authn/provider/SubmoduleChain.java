@@ -0,0 +1,363 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable snapshot of the submodules run by the {@link StatelessLoginServlet}, with the execution
+ * plans compiled from them.
+ *
+ * A request takes one snapshot and uses it throughout, so a replacement chain can be published
+ * at any time without locking: requests in flight finish on the chain they started with.
+ */
+class SubmoduleChain {
+
+    /** Request shape flag for an identity recovered from the SSO cookie. */
+    static final int SSO_SHAPE = 0x01;
+
+    /** Request shape flag for a passive authentication request. */
+    static final int PASSIVE_SHAPE = 0x02;
+
+    /** Phase mask for credential checks. */
+    static final int CREDENTIAL_PHASE = 1 << LoginPhase.CREDENTIAL.ordinal();
+
+    /** Phase mask for processing an identity from the SSO cookie. */
+    static final int SSO_PHASE = 1 << LoginPhase.SSO.ordinal();
+
+    /** Phase mask for processing an established identity. */
+    static final int POST_AUTH_PHASE = 1 << LoginPhase.POST_AUTH.ordinal();
+
+    /** Phase mask for rendering a user interface. */
+    static final int UI_PHASE = 1 << LoginPhase.UI.ordinal();
+
+    /** Phase mask for submodules that don't declare their phases. */
+    static final int ALL_PHASES = CREDENTIAL_PHASE | SSO_PHASE | POST_AUTH_PHASE | UI_PHASE;
+
+    /** Largest number of requested method lists to keep narrowed plans for, per request shape. */
+    private static final int MAX_METHOD_PLANS = 256;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SubmoduleChain.class);
+
+    /** Names of the submodules. */
+    private final String[] names;
+
+    /** Submodules, in the same order as the names. */
+    private final StatelessLoginSubmodule[] submodules;
+
+    /** Phases each submodule takes part in as bit masks. */
+    private final int[] phases;
+
+    /** Metrics for each submodule. */
+    private final StepMetrics[] metrics;
+
+    /** Execution plans as indexes into the submodule list, by request shape. */
+    private final int[][] plans;
+
+    /** Indexes of the submodules able to satisfy each authentication method, in submodule list order. */
+    private final Map<String, int[]> methodIndex;
+
+    /** Whether each submodule only satisfies certain authentication methods. */
+    private final boolean[] methodRestricted;
+
+    /** Execution plans narrowed to a list of requested methods, by request shape. */
+    private final List<ConcurrentMap<List<String>, int[]>> methodPlans;
+
+    /** Chooses the order of credential backends, or null to use the configured order. */
+    private final BackendSelector backendSelector;
+
+    /**
+     * Constructor.
+     *
+     * @param names         names of the submodules
+     * @param submodules    the submodules, in the same order as the names
+     * @param loginMetrics  metrics to register the submodules' steps with
+     * @param affinitySize  number of users to remember the backend of, or 0
+     * @param adaptive      whether to order backends by observed performance
+     */
+    SubmoduleChain(String[] names, StatelessLoginSubmodule[] submodules, LoginMetrics loginMetrics,
+            int affinitySize, boolean adaptive) {
+        this.names = names.clone();
+        this.submodules = submodules.clone();
+
+        phases = new int[submodules.length];
+        metrics = new StepMetrics[submodules.length];
+        for (int i = 0; i < submodules.length; ++i) {
+            phases[i] = getPhaseMask(submodules[i]);
+            metrics[i] = loginMetrics.getStep(names[i]);
+        }
+
+        plans = new int[(SSO_SHAPE | PASSIVE_SHAPE) + 1][];
+        methodPlans = new ArrayList<ConcurrentMap<List<String>, int[]>>(plans.length);
+        for (int shape = 0; shape < plans.length; ++shape) {
+            plans[shape] = compilePlan(shape);
+            methodPlans.add(new ConcurrentHashMap<List<String>, int[]>());
+        }
+
+        methodRestricted = new boolean[submodules.length];
+        methodIndex = buildMethodIndex();
+
+        if (affinitySize > 0 || adaptive) {
+            boolean[] backends = new boolean[submodules.length];
+            for (int i = 0; i < submodules.length; ++i) {
+                backends[i] = methodRestricted[i] && (phases[i] & CREDENTIAL_PHASE) != 0;
+            }
+            backendSelector = new BackendSelector(backends, metrics, affinitySize, adaptive);
+        } else {
+            backendSelector = null;
+        }
+    }
+
+    /**
+     * Gets the number of submodules.
+     * @return the number of submodules
+     */
+    int size() {
+        return submodules.length;
+    }
+
+    /**
+     * Gets the name of a submodule.
+     *
+     * @param index the submodule index
+     * @return  the submodule name
+     */
+    String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Gets a submodule.
+     *
+     * @param index the submodule index
+     * @return  the submodule
+     */
+    StatelessLoginSubmodule getSubmodule(int index) {
+        return submodules[index];
+    }
+
+    /**
+     * Gets the phases a submodule takes part in.
+     *
+     * @param index the submodule index
+     * @return  the phases as a bit mask
+     */
+    int getPhases(int index) {
+        return phases[index];
+    }
+
+    /**
+     * Gets the metrics for a submodule.
+     *
+     * @param index the submodule index
+     * @return  the step metrics
+     */
+    StepMetrics getMetrics(int index) {
+        return metrics[index];
+    }
+
+    /**
+     * Returns true iff a submodule only satisfies certain authentication methods.
+     *
+     * @param index the submodule index
+     * @return  indicator of whether the submodule is restricted
+     */
+    boolean isMethodRestricted(int index) {
+        return methodRestricted[index];
+    }
+
+    /**
+     * Gets the backend selector.
+     * @return the backend selector, or null to use the configured order
+     */
+    BackendSelector getBackendSelector() {
+        return backendSelector;
+    }
+
+    /**
+     * Gets the execution plan for a request shape.
+     *
+     * @param shape the request shape flags
+     * @return  indexes of the submodules to run, in order
+     */
+    int[] getPlan(int shape) {
+        return plans[shape];
+    }
+
+    /**
+     * Gets the position of a submodule in the chain.
+     * 
+     * @param name  the submodule name
+     * @return  the index of the submodule, or -1 if it isn't in the chain
+     */
+    int getIndex(String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true iff this chain runs the given submodules under the given names.
+     *
+     * @param otherNames        names of the submodules
+     * @param otherSubmodules   the submodules
+     * @return  indicator of whether the chains are the same
+     */
+    boolean isSame(String[] otherNames, StatelessLoginSubmodule[] otherSubmodules) {
+        if (otherNames.length != names.length) {
+            return false;
+        }
+        for (int i = 0; i < names.length; ++i) {
+            if (!names[i].equals(otherNames[i]) || submodules[i] != otherSubmodules[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Narrows an execution plan to the submodules able to satisfy at least one requested method.
+     * Submodules that don't restrict the methods they support are always kept.
+     * 
+     * @param shape             the request shape flags
+     * @param requestedMethods  the requested authentication methods
+     * @return  indexes of the submodules to run, in order
+     */
+    int[] selectCredentialPath(int shape, List<String> requestedMethods) {
+        int[] plan = methodPlans.get(shape).get(requestedMethods);
+        if (plan != null) {
+            return plan;
+        }
+
+        boolean[] capable = new boolean[submodules.length];
+        for (String method : requestedMethods) {
+            int[] indexes = methodIndex.get(method);
+            if (indexes != null) {
+                for (int i : indexes) {
+                    capable[i] = true;
+                }
+            }
+        }
+        int[] narrowed = new int[plans[shape].length];
+        int count = 0;
+        for (int i : plans[shape]) {
+            if (!methodRestricted[i] || capable[i]) {
+                narrowed[count++] = i;
+            }
+        }
+        plan = new int[count];
+        System.arraycopy(narrowed, 0, plan, 0, count);
+
+        if (methodPlans.get(shape).size() < MAX_METHOD_PLANS) {
+            methodPlans.get(shape).putIfAbsent(new ArrayList<String>(requestedMethods), plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Gets the phases a submodule takes part in.
+     * 
+     * @param sm    the submodule
+     * @return  the phases as a bit mask
+     */
+    private static int getPhaseMask(StatelessLoginSubmodule sm) {
+        if (!(sm instanceof PhasedLoginSubmodule)) {
+            return ALL_PHASES;
+        }
+        int mask = 0;
+        for (LoginPhase phase : ((PhasedLoginSubmodule) sm).getPhases()) {
+            mask |= 1 << phase.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Selects the submodules that can take part in a request of a given shape.
+     * 
+     * @param shape the request shape flags
+     * @return  indexes of the submodules to run, in order
+     */
+    private int[] compilePlan(int shape) {
+        int allowed = ((shape & SSO_SHAPE) != 0) ? SSO_PHASE | POST_AUTH_PHASE
+                : CREDENTIAL_PHASE | POST_AUTH_PHASE | UI_PHASE;
+        if ((shape & PASSIVE_SHAPE) != 0) {
+            allowed &= ~UI_PHASE;
+        }
+        int[] plan = new int[phases.length];
+        int count = 0;
+        for (int i = 0; i < phases.length; ++i) {
+            if ((phases[i] & allowed) != 0) {
+                plan[count++] = i;
+            }
+        }
+        int[] compiled = new int[count];
+        System.arraycopy(plan, 0, compiled, 0, count);
+        return compiled;
+    }
+
+    /**
+     * Indexes the submodules by the authentication methods they can satisfy, noting which
+     * submodules are restricted.
+     *
+     * @return  indexes of the submodules able to satisfy each method
+     */
+    private Map<String, int[]> buildMethodIndex() {
+        Map<String, List<Integer>> capable = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < submodules.length; ++i) {
+            if (!(submodules[i] instanceof AuthnMethodSupport)) {
+                continue;
+            }
+            methodRestricted[i] = true;
+            Set<String> methods = ((AuthnMethodSupport) submodules[i]).getAuthnMethods();
+            if (methods == null) {
+                continue;
+            }
+            for (String method : methods) {
+                List<Integer> indexes = capable.get(method);
+                if (indexes == null) {
+                    indexes = new ArrayList<Integer>();
+                    capable.put(method, indexes);
+                }
+                indexes.add(i);
+            }
+        }
+
+        Map<String, int[]> index = new HashMap<String, int[]>(capable.size());
+        for (Map.Entry<String, List<Integer>> entry : capable.entrySet()) {
+            int[] indexes = new int[entry.getValue().size()];
+            for (int j = 0; j < indexes.length; ++j) {
+                indexes[j] = entry.getValue().get(j);
+            }
+            index.put(entry.getKey(), indexes);
+            log.debug("Authentication method {} supported by {} submodule(s)", entry.getKey(), indexes.length);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.PrintWriter;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.owasp.esapi.ESAPI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
+
+/**
+ * Submodule that limits the rate of password attempts per username and per client address,
+ * rendering a Velocity template when a client is over the limit.
+ *
+ * It belongs ahead of the submodules that check credentials, so throttled attempts never reach
+ * a backend. Each attempt takes a token from a bucket for the username and one for the address.
+ */
+public class ThrottleLoginSubmodule implements PhasedLoginSubmodule, WarmUpSupport {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ThrottleLoginSubmodule.class);
+
+    /** Velocity engine to use to render the throttle page. */
+    private VelocityEngine velocity;
+
+    /** Name of throttle page template. */
+    private String templateName;
+
+    /** Maximum number of usernames and of addresses tracked. */
+    private int maxEntries = 65536;
+
+    /** Attempts allowed in a burst for a username. */
+    private int usernameBurst = 10;
+
+    /** Milliseconds to regain one attempt for a username. */
+    private long usernameRefillInterval = 6000;
+
+    /** Attempts allowed in a burst for a client address. */
+    private int addressBurst = 50;
+
+    /** Milliseconds to regain one attempt for a client address. */
+    private long addressRefillInterval = 1200;
+
+    /** Buckets for usernames. */
+    private ThrottleTable usernames;
+
+    /** Buckets for client addresses. */
+    private ThrottleTable addresses;
+
+    /**
+     * Gets the template engine.
+     * @return the template engine
+     */
+    public VelocityEngine getVelocityEngine() {
+        return velocity;
+    }
+
+    /**
+     * Gets the template name.
+     * @return the templateName
+     */
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    /**
+     * Gets the maximum number of usernames and of addresses tracked.
+     * @return the table size
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Gets the attempts allowed in a burst for a username.
+     * @return the username burst
+     */
+    public int getUsernameBurst() {
+        return usernameBurst;
+    }
+
+    /**
+     * Gets the milliseconds to regain one attempt for a username.
+     * @return the username refill interval
+     */
+    public long getUsernameRefillInterval() {
+        return usernameRefillInterval;
+    }
+
+    /**
+     * Gets the attempts allowed in a burst for a client address.
+     * @return the address burst
+     */
+    public int getAddressBurst() {
+        return addressBurst;
+    }
+
+    /**
+     * Gets the milliseconds to regain one attempt for a client address.
+     * @return the address refill interval
+     */
+    public long getAddressRefillInterval() {
+        return addressRefillInterval;
+    }
+
+    /**
+     * Sets the template engine.
+     * @param v the template engine to set
+     */
+    public void setVelocityEngine(VelocityEngine v) {
+        velocity = v;
+    }
+
+    /**
+     * Sets the template name.
+     * @param t the templateName to set
+     */
+    public void setTemplateName(String t) {
+        templateName = t;
+    }
+
+    /**
+     * Sets the maximum number of usernames and of addresses tracked.
+     * @param maxEntries the table size to set
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the attempts allowed in a burst for a username.
+     * @param usernameBurst the username burst to set
+     */
+    public void setUsernameBurst(int usernameBurst) {
+        this.usernameBurst = usernameBurst;
+    }
+
+    /**
+     * Sets the milliseconds to regain one attempt for a username.
+     * @param usernameRefillInterval the username refill interval to set
+     */
+    public void setUsernameRefillInterval(long usernameRefillInterval) {
+        this.usernameRefillInterval = usernameRefillInterval;
+    }
+
+    /**
+     * Sets the attempts allowed in a burst for a client address.
+     * @param addressBurst the address burst to set
+     */
+    public void setAddressBurst(int addressBurst) {
+        this.addressBurst = addressBurst;
+    }
+
+    /**
+     * Sets the milliseconds to regain one attempt for a client address.
+     * @param addressRefillInterval the address refill interval to set
+     */
+    public void setAddressRefillInterval(long addressRefillInterval) {
+        this.addressRefillInterval = addressRefillInterval;
+    }
+
+    /**
+     * Allocates the throttle tables. Must be called once the properties are set.
+     */
+    public void initialize() {
+        usernames = new ThrottleTable(maxEntries, usernameBurst, usernameRefillInterval);
+        addresses = new ThrottleTable(maxEntries, addressBurst, addressRefillInterval);
+    }
+
+    /**
+     * Parses the template.
+     * 
+     * @throws Exception if the template can't be loaded
+     */
+    public void warmUp() throws Exception {
+        velocity.getTemplate(templateName);
+    }
+
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.CREDENTIAL);
+    }
+
+    /** {@inheritDoc} */
+    public void run(StatelessLoginServlet servlet, HttpServletRequest request,
+            HttpServletResponse response, StatelessAuthenticationInfo info) throws AuthenticationException {
+
+        if (info.isAuthenticated()) {
+            return;
+        }
+
+        String u = info.getSubmittedUsername();
+        String p = request.getParameter("j_password");
+        if (u == null || p == null || p.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        String address = servlet.getClientAddress(request);
+        // Only charge the username once the address is let through, so a throttled address
+        // can't spend the tokens of the usernames it targets and lock their owners out.
+        boolean addressAllowed = addresses.tryAcquire(HyperLogLog.hash(address), now);
+        if (addressAllowed && usernames.tryAcquire(HyperLogLog.hash(u), now)) {
+            return;
+        }
+
+        log.warn("Throttling login attempt for username ({}) from address ({}): {} limit exceeded",
+                new Object[] {u, address, addressAllowed ? "username" : "address"});
+
+        info.setThrottled(true);
+        response.setStatus(429);
+        response.setContentType("text/html");
+        response.setHeader("Cache-Control", "content=\"no-store,no-cache,must-revalidate\"");
+        response.setHeader("Pragma","no-cache");
+        response.setHeader("Expires","-1");
+
+        VelocityContext vCtx = new VelocityContext();
+        vCtx.put("username", request.getParameter("j_username"));
+        vCtx.put("authnInfo", info);
+        vCtx.put("servletPath", request.getContextPath() + request.getServletPath());
+        vCtx.put("encoder", ESAPI.encoder());
+        vCtx.put("retryAfter", (addressAllowed ? usernameRefillInterval : addressRefillInterval) / 1000);
+
+        long start = System.nanoTime();
+        String result = "failed";
+        try {
+            Template template = velocity.getTemplate(templateName);
+            PrintWriter writer = response.getWriter();
+            template.merge(vCtx, writer);
+            writer.flush();
+            result = "success";
+        } catch (Exception e) {
+            log.error(e.getMessage());
+            throw new AuthenticationException("Error while processing throttle template.", e);
+        } finally {
+            LoginTrace.record("template-merge", start, templateName,
+                    info.getLoginContext().getRelyingPartyId(), result);
+        }
+    }
+}
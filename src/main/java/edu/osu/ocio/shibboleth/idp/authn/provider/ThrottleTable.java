@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+/**
+ * Bounded table of token buckets keyed by 64-bit hashes.
+ *
+ * The table is set-associative: each key maps to one set of a few slots, and a new key takes
+ * the slot in its set that was used least recently. Sets are guarded by a fixed number of
+ * striped locks, and all state is held in primitive arrays, so memory is fixed at construction.
+ * A bucket idle long enough to refill completely is no different from a new one, so evicting
+ * the least recently used slot loses nothing in practice.
+ */
+public class ThrottleTable {
+
+    /** Slots per set. */
+    private static final int WAYS = 8;
+
+    /** Number of lock stripes. */
+    private static final int STRIPES = 64;
+
+    /** Maximum tokens in a bucket. */
+    private final double capacity;
+
+    /** Milliseconds to add one token. */
+    private final long refillInterval;
+
+    /** Mask mapping hashes to sets. */
+    private final int setMask;
+
+    /** Key of each slot. */
+    private final long[] keys;
+
+    /** Time each slot was last updated, or 0 if empty. */
+    private final long[] stamps;
+
+    /** Tokens in each slot as of its last update. */
+    private final double[] tokens;
+
+    /** Lock stripes. */
+    private final Object[] locks;
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries        maximum number of keys tracked, rounded up to fill whole sets
+     * @param capacity          maximum tokens in a bucket
+     * @param refillInterval    milliseconds to add one token
+     */
+    public ThrottleTable(int maxEntries, int capacity, long refillInterval) {
+        if (capacity < 1 || refillInterval < 1) {
+            throw new IllegalArgumentException("Capacity and refill interval must be positive.");
+        }
+        int sets = 1;
+        while (sets * WAYS < maxEntries) {
+            sets <<= 1;
+        }
+        setMask = sets - 1;
+        keys = new long[sets * WAYS];
+        stamps = new long[sets * WAYS];
+        tokens = new double[sets * WAYS];
+        locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+        this.capacity = capacity;
+        this.refillInterval = refillInterval;
+    }
+
+    /**
+     * Takes a token from the bucket for a key if one is available.
+     *
+     * @param key   hash of the key
+     * @param now   current time in milliseconds
+     * @return  true iff a token was taken
+     */
+    public boolean tryAcquire(long key, long now) {
+        int set = (int) (key ^ (key >>> 32)) & setMask;
+        int base = set * WAYS;
+        synchronized (locks[set & (STRIPES - 1)]) {
+            int victim = base;
+            for (int i = base; i < base + WAYS; ++i) {
+                if (stamps[i] != 0 && keys[i] == key) {
+                    double t = Math.min(capacity, tokens[i] + (double) (now - stamps[i]) / refillInterval);
+                    stamps[i] = now;
+                    if (t >= 1) {
+                        tokens[i] = t - 1;
+                        return true;
+                    }
+                    tokens[i] = t;
+                    return false;
+                }
+                if (stamps[i] < stamps[victim]) {
+                    victim = i;
+                }
+            }
+            keys[victim] = key;
+            stamps[victim] = now;
+            tokens[victim] = capacity - 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Reports estimated distinct users per relying party from a {@link UniqueUserTracker} as JSON.
+ *
+ * The "hours" parameter sets the window to report on (default 24), and "rp" restricts the report
+ * to one relying party. With "export" set, the raw sketches for the named relying party are
+ * returned in base64 so they can be merged with those of other nodes.
+ */
+public class UniqueUserServlet extends HttpServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = -2630514385934004622L;
+
+    /** Tracker to report on. */
+    private UniqueUserTracker tracker;
+
+    /** init-param which can be passed to the servlet to specify the UniqueUserTracker bean id. */
+    private final String trackerInitParam = "uniqueUsersRef";
+
+    /** {@inheritDoc} */
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+
+        if (getInitParameter(trackerInitParam) == null) {
+            throw new ServletException("Required init-param (uniqueUsersRef) not set.");
+        }
+        tracker = (UniqueUserTracker) getServletContext().getAttribute(getInitParameter(trackerInitParam));
+        if (tracker == null) {
+            throw new ServletException("UniqueUserTracker (" + getInitParameter(trackerInitParam)
+                    + ") was not found in servlet context.");
+        }
+    }
+
+    /** {@inheritDoc} */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+
+        String rp = request.getParameter("rp");
+        long hours = 24;
+        if (request.getParameter("hours") != null) {
+            try {
+                hours = Long.parseLong(request.getParameter("hours"));
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid hours parameter.");
+                return;
+            }
+        }
+
+        if (request.getParameter("export") != null && rp == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Export requires an rp parameter.");
+            return;
+        }
+
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+
+        if (request.getParameter("export") != null) {
+            out.print("{\"rp\":\"" + StatelessStatusServlet.escape(rp) + "\",\"bucketDuration\":"
+                    + tracker.getBucketDuration() + ",\"sketches\":{");
+            boolean first = true;
+            for (Map.Entry<Long, byte[]> sketch : tracker.export(rp).entrySet()) {
+                out.print((first ? "\"" : ",\"") + sketch.getKey() + "\":\""
+                        + Base64.encodeBytes(sketch.getValue(), Base64.DONT_BREAK_LINES) + "\"");
+                first = false;
+            }
+            out.print("}}");
+            out.flush();
+            return;
+        }
+
+        long to = System.currentTimeMillis();
+        long from = to - hours * 60 * 60 * 1000;
+        out.print("{\"hours\":" + hours + ",\"total\":" + tracker.estimate(null, from, to)
+                + ",\"relyingParties\":{");
+        boolean first = true;
+        for (String name : tracker.getRelyingParties()) {
+            if (rp == null || rp.equals(name)) {
+                out.print((first ? "\"" : ",\"") + StatelessStatusServlet.escape(name) + "\":"
+                        + tracker.estimate(name, from, to));
+                first = false;
+            }
+        }
+        out.print("}}");
+        out.flush();
+    }
+}
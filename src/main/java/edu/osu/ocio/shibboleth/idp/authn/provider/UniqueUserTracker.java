@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Estimates the number of distinct users logging into each relying party over time.
+ *
+ * Each relying party gets a fixed ring of time buckets, each holding a {@link HyperLogLog}
+ * sketch, so memory per relying party doesn't depend on the number of users. Relying parties
+ * beyond the configured limit are counted together under {@link #OTHER}.
+ */
+public class UniqueUserTracker {
+
+    /** Key under which relying parties beyond the limit are counted. */
+    public static final String OTHER = "*";
+
+    /** Precision of the sketches. */
+    private int precision = 11;
+
+    /** Length of a time bucket in milliseconds. */
+    private long bucketDuration = 60 * 60 * 1000;
+
+    /** Number of time buckets retained. */
+    private int bucketCount = 48;
+
+    /** Maximum number of relying parties tracked individually. */
+    private int maxRelyingParties = 500;
+
+    /** Buckets for each relying party. */
+    private final ConcurrentMap<String, AtomicReferenceArray<Bucket>> relyingParties =
+        new ConcurrentHashMap<String, AtomicReferenceArray<Bucket>>();
+
+    /**
+     * Gets the precision of the sketches.
+     * @return the precision
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Gets the length of a time bucket in milliseconds.
+     * @return the bucket duration
+     */
+    public long getBucketDuration() {
+        return bucketDuration;
+    }
+
+    /**
+     * Gets the number of time buckets retained.
+     * @return the bucket count
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * Gets the maximum number of relying parties tracked individually.
+     * @return the relying party limit
+     */
+    public int getMaxRelyingParties() {
+        return maxRelyingParties;
+    }
+
+    /**
+     * Sets the precision of the sketches.
+     * @param precision the precision to set
+     */
+    public void setPrecision(int precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * Sets the length of a time bucket in milliseconds.
+     * @param bucketDuration the bucket duration to set
+     */
+    public void setBucketDuration(long bucketDuration) {
+        this.bucketDuration = bucketDuration;
+    }
+
+    /**
+     * Sets the number of time buckets retained.
+     * @param bucketCount the bucket count to set
+     */
+    public void setBucketCount(int bucketCount) {
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * Sets the maximum number of relying parties tracked individually.
+     * @param maxRelyingParties the relying party limit to set
+     */
+    public void setMaxRelyingParties(int maxRelyingParties) {
+        this.maxRelyingParties = maxRelyingParties;
+    }
+
+    /**
+     * Records a login.
+     *
+     * @param relyingParty  relying party logged into
+     * @param username      identity of the user
+     */
+    public void record(String relyingParty, String username) {
+        if (relyingParty == null || username == null) {
+            return;
+        }
+        long epoch = System.currentTimeMillis() / bucketDuration;
+        AtomicReferenceArray<Bucket> buckets = getBuckets(relyingParty);
+        int index = (int) (epoch % bucketCount);
+        Bucket bucket = buckets.get(index);
+        while (bucket == null || bucket.epoch < epoch) {
+            // The slot belongs to an expired window, so start a new one.
+            Bucket fresh = new Bucket(epoch, new HyperLogLog(precision));
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                bucket = fresh;
+            } else {
+                bucket = buckets.get(index);
+            }
+        }
+        if (bucket.epoch == epoch) {
+            bucket.sketch.add(username);
+        }
+    }
+
+    /**
+     * Gets the relying parties being tracked.
+     *
+     * @return  the relying party names
+     */
+    public List<String> getRelyingParties() {
+        return new ArrayList<String>(relyingParties.keySet());
+    }
+
+    /**
+     * Estimates the number of distinct users of a relying party within a time range.
+     *
+     * @param relyingParty  the relying party, or null for all of them
+     * @param from          start of the range in milliseconds since the epoch, inclusive
+     * @param to            end of the range in milliseconds since the epoch, exclusive
+     * @return  the estimated number of distinct users
+     */
+    public long estimate(String relyingParty, long from, long to) {
+        HyperLogLog merged = new HyperLogLog(precision);
+        if (relyingParty != null) {
+            mergeInto(merged, relyingParties.get(relyingParty), from, to);
+        } else {
+            for (AtomicReferenceArray<Bucket> buckets : relyingParties.values()) {
+                mergeInto(merged, buckets, from, to);
+            }
+        }
+        return merged.estimate();
+    }
+
+    /**
+     * Exports the retained sketches of a relying party, for merging with those of other nodes.
+     *
+     * @param relyingParty  the relying party
+     * @return  serialized sketches keyed by the start of their bucket in milliseconds since the epoch
+     */
+    public Map<Long, byte[]> export(String relyingParty) {
+        Map<Long, byte[]> sketches = new LinkedHashMap<Long, byte[]>();
+        AtomicReferenceArray<Bucket> buckets = relyingParties.get(relyingParty);
+        if (buckets != null) {
+            long oldest = System.currentTimeMillis() / bucketDuration - bucketCount;
+            for (int i = 0; i < buckets.length(); ++i) {
+                Bucket bucket = buckets.get(i);
+                if (bucket != null && bucket.epoch > oldest) {
+                    sketches.put(bucket.epoch * bucketDuration, bucket.sketch.toByteArray());
+                }
+            }
+        }
+        return sketches;
+    }
+
+    /**
+     * Gets the buckets for a relying party, creating them if necessary.
+     *
+     * @param relyingParty  the relying party
+     * @return  the buckets
+     */
+    private AtomicReferenceArray<Bucket> getBuckets(String relyingParty) {
+        AtomicReferenceArray<Bucket> buckets = relyingParties.get(relyingParty);
+        if (buckets == null) {
+            if (relyingParties.size() >= maxRelyingParties) {
+                relyingParty = OTHER;
+                buckets = relyingParties.get(relyingParty);
+            }
+            if (buckets == null) {
+                AtomicReferenceArray<Bucket> created = new AtomicReferenceArray<Bucket>(bucketCount);
+                buckets = relyingParties.putIfAbsent(relyingParty, created);
+                if (buckets == null) {
+                    buckets = created;
+                }
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Merges the buckets that fall within a time range into a sketch.
+     *
+     * @param merged    sketch to merge into
+     * @param buckets   buckets to merge, or null
+     * @param from      start of the range, inclusive
+     * @param to        end of the range, exclusive
+     */
+    private void mergeInto(HyperLogLog merged, AtomicReferenceArray<Bucket> buckets, long from, long to) {
+        if (buckets == null) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() / bucketDuration - bucketCount;
+        for (int i = 0; i < buckets.length(); ++i) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.epoch > oldest) {
+                long start = bucket.epoch * bucketDuration;
+                if (start + bucketDuration > from && start < to) {
+                    merged.merge(bucket.sketch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sketch for one time bucket.
+     */
+    private static class Bucket {
+
+        /** Index of the bucket since the epoch. */
+        private final long epoch;
+
+        /** Sketch of the users seen. */
+        private final HyperLogLog sketch;
+
+        /**
+         * Constructor.
+         *
+         * @param epoch     index of the bucket since the epoch
+         * @param sketch    sketch of the users seen
+         */
+        Bucket(long epoch, HyperLogLog sketch) {
+            this.epoch = epoch;
+            this.sketch = sketch;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bloom filter of valid usernames, loaded from an export file with one username per line
+ * and reloaded when the file changes.
+ *
+ * The filter fails open: if the file is missing, unreadable or older than the maximum age,
+ * every username is reported as possibly valid. The export is read as UTF-8 and each line is put
+ * through the same {@link UsernameCanonicalizer} as submitted usernames, so the two always agree
+ * on the form a valid user is hashed in.
+ */
+public class UsernameBloomFilter {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(UsernameBloomFilter.class);
+
+    /** Encoding of the export file. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Path of the export file. */
+    private String exportFile;
+
+    /** Target false positive rate. */
+    private double falsePositiveRate = 0.01;
+
+    /** Milliseconds between checks for a new file. */
+    private long reloadInterval = 5 * 60 * 1000;
+
+    /** Age in milliseconds beyond which the file is considered stale, or 0 for no limit. */
+    private long maxAge = 2 * 24 * 60 * 60 * 1000L;
+
+    /** Canonicalizes the usernames in the export, as the servlet does submitted ones. */
+    private UsernameCanonicalizer canonicalizer = new UsernameCanonicalizer();
+
+    /** Filter built from the current file, or null. */
+    private volatile Filter filter;
+
+    /** Timer driving reloads. */
+    private Timer timer;
+
+    /**
+     * Gets the path of the export file.
+     * @return the export file
+     */
+    public String getExportFile() {
+        return exportFile;
+    }
+
+    /**
+     * Gets the target false positive rate.
+     * @return the false positive rate
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Gets the milliseconds between checks for a new file.
+     * @return the reload interval
+     */
+    public long getReloadInterval() {
+        return reloadInterval;
+    }
+
+    /**
+     * Gets the age beyond which the file is considered stale.
+     * @return the maximum age in milliseconds, or 0 for no limit
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Gets the canonicalizer applied to the usernames in the export.
+     * @return the canonicalizer
+     */
+    public UsernameCanonicalizer getCanonicalizer() {
+        return canonicalizer;
+    }
+
+    /**
+     * Sets the path of the export file.
+     * @param exportFile the export file to set
+     */
+    public void setExportFile(String exportFile) {
+        this.exportFile = exportFile;
+    }
+
+    /**
+     * Sets the target false positive rate.
+     * @param falsePositiveRate the false positive rate to set
+     */
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Sets the milliseconds between checks for a new file.
+     * @param reloadInterval the reload interval to set
+     */
+    public void setReloadInterval(long reloadInterval) {
+        this.reloadInterval = reloadInterval;
+    }
+
+    /**
+     * Sets the age beyond which the file is considered stale.
+     * @param maxAge the maximum age in milliseconds to set, or 0 for no limit
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Sets the canonicalizer applied to the usernames in the export. This must be the one the
+     * servlet uses, or valid users may be reported as unknown.
+     * @param canonicalizer the canonicalizer to set
+     */
+    public void setCanonicalizer(UsernameCanonicalizer canonicalizer) {
+        this.canonicalizer = canonicalizer;
+    }
+
+    /**
+     * Loads the filter and schedules reloads. Must be called once the properties are set.
+     */
+    public synchronized void initialize() {
+        if (exportFile == null) {
+            throw new IllegalArgumentException("Username export file not set.");
+        } else if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+        }
+        reload();
+        if (reloadInterval > 0) {
+            timer = new Timer("UsernameBloomFilterReload", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    reload();
+                }
+            }, reloadInterval, reloadInterval);
+        }
+    }
+
+    /**
+     * Stops reloading.
+     */
+    public synchronized void destroy() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Returns false iff a username is definitely not in the export.
+     *
+     * @param username  the normalized username
+     * @return  indicator of whether the username may be valid
+     */
+    public boolean mightContain(String username) {
+        Filter f = filter;
+        if (f == null || (maxAge > 0 && System.currentTimeMillis() - f.lastModified > maxAge)) {
+            return true;
+        }
+        return f.mightContain(HyperLogLog.hash(username));
+    }
+
+    /**
+     * Rebuilds the filter if the export file has changed.
+     */
+    private void reload() {
+        File file = new File(exportFile);
+        Filter current = filter;
+        if (!file.isFile()) {
+            if (current != null) {
+                log.warn("Username export file {} is missing, pre-screen disabled", exportFile);
+                filter = null;
+            }
+            return;
+        }
+        long modified = file.lastModified();
+        if (current != null && current.lastModified == modified) {
+            return;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // Size the filter from the line count, then add each line.
+            int lines = 0;
+            for (int i = 0; i < buf.limit(); ++i) {
+                if (buf.get(i) == '\n') {
+                    ++lines;
+                }
+            }
+            Filter f = new Filter(Math.max(lines + 1, 1), falsePositiveRate, modified);
+            byte[] line = new byte[256];
+            int length = 0;
+            for (int i = 0; i <= buf.limit(); ++i) {
+                byte b = (i < buf.limit()) ? buf.get(i) : (byte) '\n';
+                if (b == '\n' || b == '\r') {
+                    if (length > 0) {
+                        String u = canonicalizer.canonicalize(new String(line, 0, length, UTF8).trim());
+                        // A username the canonicalizer rejects can never be submitted, so leave it out.
+                        if (u != null) {
+                            f.add(HyperLogLog.hash(u));
+                        }
+                        length = 0;
+                    }
+                } else {
+                    if (length == line.length) {
+                        byte[] longer = new byte[2 * length];
+                        System.arraycopy(line, 0, longer, 0, length);
+                        line = longer;
+                    }
+                    line[length++] = b;
+                }
+            }
+            filter = f;
+            log.info("Loaded {} usernames from {} into pre-screen filter", lines, exportFile);
+        } catch (IOException e) {
+            // Any previous filter stays in place until it goes stale.
+            log.error("Unable to load username export file {}: {}", exportFile, e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Error closing username export file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable Bloom filter over 64-bit hashes.
+     */
+    private static class Filter {
+
+        /** Bits of the filter. */
+        private final long[] bits;
+
+        /** Number of bits. */
+        private final long size;
+
+        /** Number of hash functions. */
+        private final int hashes;
+
+        /** Modification time of the file the filter was built from. */
+        private final long lastModified;
+
+        /**
+         * Constructor.
+         *
+         * @param entries           expected number of entries
+         * @param falsePositiveRate target false positive rate
+         * @param lastModified      modification time of the source file
+         */
+        Filter(int entries, double falsePositiveRate, long lastModified) {
+            long m = (long) Math.ceil(-entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            m = Math.max(64, m);
+            bits = new long[(int) ((m + 63) >>> 6)];
+            size = (long) bits.length << 6;
+            hashes = Math.max(1, (int) Math.round((double) size / entries * Math.log(2)));
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Adds a hash to the filter.
+         *
+         * @param hash  the hash
+         */
+        void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; ++i) {
+                long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        /**
+         * Checks whether a hash may have been added.
+         *
+         * @param hash  the hash
+         * @return  false iff the hash was definitely not added
+         */
+        boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; ++i) {
+                long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Reduces a submitted username to the canonical form passed to the submodules.
+ *
+ * The servlet runs this once per request and stores the result on the
+ * {@link StatelessAuthenticationInfo}, so every submodule sees the same identity and input that
+ * can't be a valid username is rejected before it reaches any backend. The defaults reproduce
+ * the historical behaviour of the JAAS submodule: fold case and strip the campus realm.
+ */
+public class UsernameCanonicalizer {
+
+    /** Whether to trim surrounding whitespace. */
+    private boolean trim;
+
+    /** Whether to fold the username to lower case. */
+    private boolean lowerCase = true;
+
+    /** Realm suffixes to strip, compared after case folding. */
+    private List<String> realms = new ArrayList<String>();
+
+    /** Shortest acceptable canonical username. */
+    private int minLength = 1;
+
+    /** Longest acceptable canonical username, or 0 for no limit. */
+    private int maxLength;
+
+    /** Pattern a canonical username must match, or null to accept any characters. */
+    private Pattern allowedPattern;
+
+    /** Constructor. */
+    public UsernameCanonicalizer() {
+        realms.add("@osu.edu");
+    }
+
+    /**
+     * Gets whether surrounding whitespace is trimmed.
+     * @return true iff whitespace is trimmed
+     */
+    public boolean isTrim() {
+        return trim;
+    }
+
+    /**
+     * Gets whether the username is folded to lower case.
+     * @return true iff case is folded
+     */
+    public boolean isLowerCase() {
+        return lowerCase;
+    }
+
+    /**
+     * Gets the realm suffixes to strip.
+     * @return the realms
+     */
+    public List<String> getRealms() {
+        return realms;
+    }
+
+    /**
+     * Gets the shortest acceptable canonical username.
+     * @return the minimum length
+     */
+    public int getMinLength() {
+        return minLength;
+    }
+
+    /**
+     * Gets the longest acceptable canonical username.
+     * @return the maximum length, or 0 for no limit
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Gets the pattern a canonical username must match.
+     * @return the pattern, or null
+     */
+    public String getAllowedPattern() {
+        return allowedPattern != null ? allowedPattern.pattern() : null;
+    }
+
+    /**
+     * Sets whether surrounding whitespace is trimmed.
+     * @param trim true iff whitespace should be trimmed
+     */
+    public void setTrim(boolean trim) {
+        this.trim = trim;
+    }
+
+    /**
+     * Sets whether the username is folded to lower case.
+     * @param lowerCase true iff case should be folded
+     */
+    public void setLowerCase(boolean lowerCase) {
+        this.lowerCase = lowerCase;
+    }
+
+    /**
+     * Sets the realm suffixes to strip. Anything from the first occurrence of a realm onward is
+     * removed, so they should be given in lower case when case folding is on.
+     * @param realms the realms
+     */
+    public void setRealms(List<String> realms) {
+        this.realms = realms;
+    }
+
+    /**
+     * Sets the shortest acceptable canonical username.
+     * @param minLength the minimum length
+     */
+    public void setMinLength(int minLength) {
+        this.minLength = minLength;
+    }
+
+    /**
+     * Sets the longest acceptable canonical username.
+     * @param maxLength the maximum length, or 0 for no limit
+     */
+    public void setMaxLength(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Sets the pattern a canonical username must match in its entirety.
+     * @param allowedPattern the regular expression, or null to accept any characters
+     */
+    public void setAllowedPattern(String allowedPattern) {
+        this.allowedPattern = allowedPattern != null && !allowedPattern.isEmpty()
+                ? Pattern.compile(allowedPattern) : null;
+    }
+
+    /**
+     * Reduces a submitted username to canonical form.
+     *
+     * @param username  the submitted username
+     * @return  the canonical username, or null if the input isn't acceptable
+     */
+    public String canonicalize(String username) {
+        if (username == null) {
+            return null;
+        }
+        String u = trim ? username.trim() : username;
+        if (lowerCase) {
+            u = u.toLowerCase(Locale.ENGLISH);
+        }
+        for (String realm : realms) {
+            int pos = u.indexOf(realm);
+            if (pos > 0) {
+                u = u.substring(0, pos);
+                break;
+            }
+        }
+        if (u.length() < minLength || (maxLength > 0 && u.length() > maxLength)) {
+            return null;
+        }
+        if (allowedPattern != null && !allowedPattern.matcher(u).matches()) {
+            return null;
+        }
+        return u;
+    }
+}
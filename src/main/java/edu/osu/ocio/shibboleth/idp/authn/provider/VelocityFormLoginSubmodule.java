@@ -16,6 +16,8 @@
 package edu.osu.ocio.shibboleth.idp.authn.provider;
 
 import java.io.PrintWriter;
+import java.util.EnumSet;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -32,7 +34,7 @@ import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationException;
 /**
  * Submodule that produces a login form using a Velocity template.
  */
-public class VelocityFormLoginSubmodule implements StatelessLoginSubmodule {
+public class VelocityFormLoginSubmodule implements PhasedLoginSubmodule, WarmUpSupport {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(VelocityFormLoginSubmodule.class);
@@ -75,6 +77,20 @@ public class VelocityFormLoginSubmodule implements StatelessLoginSubmodule {
         templateName = t;
     }
    
+    /**
+     * Parses the template.
+     * 
+     * @throws Exception if the template can't be loaded
+     */
+    public void warmUp() throws Exception {
+        velocity.getTemplate(templateName);
+    }
+
+    /** {@inheritDoc} */
+    public Set<LoginPhase> getPhases() {
+        return EnumSet.of(LoginPhase.UI);
+    }
+
     /** {@inheritDoc} */
     public void run(StatelessLoginServlet servlet, HttpServletRequest request,
             HttpServletResponse response, StatelessAuthenticationInfo info) throws AuthenticationException {
@@ -94,14 +110,20 @@ public class VelocityFormLoginSubmodule implements StatelessLoginSubmodule {
         response.setHeader("Pragma","no-cache");
         response.setHeader("Expires","-1");
         
+        long start = System.nanoTime();
+        String result = "failed";
         try {
             Template template = velocity.getTemplate(templateName);
             PrintWriter writer = response.getWriter();
             template.merge(vCtx, writer);
             writer.flush();
+            result = "success";
         } catch (Exception e) {
             log.error(e.getMessage());
             throw new AuthenticationException("Error while processing login template.", e);
+        } finally {
+            LoginTrace.record("template-merge", start, templateName,
+                    info.getLoginContext().getRelyingPartyId(), result);
         }
     }
 
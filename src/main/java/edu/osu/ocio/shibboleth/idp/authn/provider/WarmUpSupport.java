@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+/**
+ * Implemented by components with expensive first-use initialization, such as parsing configuration
+ * or opening connections, that can be done at startup instead of on a user's request.
+ */
+public interface WarmUpSupport {
+
+    /**
+     * Performs any deferred initialization. May be called concurrently with other components'
+     * warm-up, but only once for each component.
+     * 
+     * @throws Exception if the component couldn't be initialized
+     */
+    void warmUp() throws Exception;
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012 The Ohio State University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.osu.ocio.shibboleth.idp.authn.provider;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.crypto.KeyGenerator;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.util.storage.MapBasedStorageService;
+
+import edu.internet2.middleware.shibboleth.common.util.DataSealer;
+import edu.internet2.middleware.shibboleth.idp.authn.AuthenticationEngine;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContext;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginContextEntry;
+import edu.internet2.middleware.shibboleth.idp.authn.LoginHandler;
+import edu.internet2.middleware.shibboleth.idp.util.HttpServletHelper;
+
+/**
+ * Drives {@link StatelessLoginServlet#service} for an SSO request and a fresh login against stubbed
+ * servlet API objects, a stored {@link LoginContext} and an in-memory {@link DataSealer}, and fails
+ * if the median allocation of either kind of request exceeds its budget in allocation-budget.properties.
+ *
+ * Raising a budget is a deliberate change to that file. The test is skipped on JVMs that don't
+ * count allocation per thread.
+ */
+public class StatelessLoginServletAllocationTest {
+
+    /** Username accepted by the dummy submodule. */
+    private static final String USERNAME = "buckeye.1";
+
+    /** Password accepted by the dummy submodule. */
+    private static final String PASSWORD = "password";
+
+    /** Key of the stored login context. */
+    private static final String LOGIN_CONTEXT_KEY = "allocationtest";
+
+    /** Name of the SSO cookie issued by the servlet. */
+    private static final String SSO_COOKIE_NAME = "_osu_idp_sso";
+
+    /** Requests run before measuring, so class loading and JIT compilation aren't counted. */
+    private static final int WARM_UP_REQUESTS = 500;
+
+    /** Requests measured. */
+    private static final int MEASURED_REQUESTS = 50;
+
+    /** Attributes of the stubbed servlet context. */
+    private StubHandler contextHandler;
+
+    /** Target of forwards to the authentication engine and the error page. */
+    private RequestDispatcher dispatcher;
+
+    /** Servlet under test. */
+    private StatelessLoginServlet servlet;
+
+    /** Allocation budgets, by init-param name. */
+    private Properties budgets;
+
+    /**
+     * Stores a login context, and initializes the authentication engine and the servlet
+     * with a dummy submodule.
+     * 
+     * @throws Exception if the fixture can't be set up
+     */
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(AllocationCounter.isSupported());
+
+        budgets = new Properties();
+        InputStream in = getClass().getResourceAsStream("allocation-budget.properties");
+        try {
+            budgets.load(in);
+        } finally {
+            in.close();
+        }
+
+        LoginContext loginContext = new LoginContext(false, false);
+        loginContext.setRelyingParty("https://sp.example.org/shibboleth");
+        loginContext.setAuthenticationEngineURL("/AuthnEngine");
+        MapBasedStorageService<String, LoginContextEntry> storageService =
+                new MapBasedStorageService<String, LoginContextEntry>();
+        storageService.put(HttpServletHelper.DEFAULT_LOGIN_CTX_PARITION, LOGIN_CONTEXT_KEY,
+                new LoginContextEntry(loginContext, 1000 * 60 * 30));
+
+        DataSealer dataSealer = new DataSealer();
+        KeyGenerator cipherKeys = KeyGenerator.getInstance("AES");
+        cipherKeys.init(128);
+        dataSealer.setCipherKey(cipherKeys.generateKey());
+        dataSealer.setMacKey(KeyGenerator.getInstance("HmacSHA256").generateKey());
+        dataSealer.setRandom(new SecureRandom());
+
+        DummyLoginSubmodule dummy = new DummyLoginSubmodule();
+        dummy.setUsername(USERNAME);
+        dummy.setPassword(PASSWORD);
+
+        dispatcher = stub(RequestDispatcher.class, new StubHandler());
+        contextHandler = new StubHandler();
+        contextHandler.returns.put("getRequestDispatcher", dispatcher);
+        contextHandler.attributes.put("shibboleth.StorageService", storageService);
+        contextHandler.attributes.put("shibboleth.DataSealer", dataSealer);
+        contextHandler.attributes.put("shibboleth.DummyLoginSubmodule", dummy);
+        ServletContext context = stub(ServletContext.class, contextHandler);
+
+        StubHandler engineConfig = new StubHandler();
+        engineConfig.returns.put("getServletContext", context);
+        new AuthenticationEngine().init(stub(ServletConfig.class, engineConfig));
+
+        StubHandler servletConfig = new StubHandler();
+        servletConfig.returns.put("getServletContext", context);
+        servletConfig.returns.put("getServletName", "StatelessLogin");
+        servletConfig.parameters.put("submodules", "shibboleth.DummyLoginSubmodule");
+        servletConfig.parameters.put("allocationAccounting", "true");
+        servlet = new StatelessLoginServlet();
+        servlet.init(stub(ServletConfig.class, servletConfig));
+    }
+
+    /** Shuts down the servlet. */
+    @After
+    public void tearDown() {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+    }
+
+    /**
+     * Checks the allocation of a request answered from the SSO cookie.
+     * 
+     * @throws Exception if the servlet fails
+     */
+    @Test
+    public void testSsoRequestWithinBudget() throws Exception {
+        StubHandler login = newRequest(null);
+        login.parameters.put("j_username", USERNAME);
+        login.parameters.put("j_password", PASSWORD);
+        StubHandler response = run(login);
+        Cookie sso = null;
+        for (Cookie cookie : response.cookies) {
+            if (cookie.getName().equals(SSO_COOKIE_NAME)) {
+                sso = cookie;
+            }
+        }
+        Assert.assertNotNull("Login didn't issue an SSO cookie", sso);
+
+        long bytes = measure(sso, null, null);
+        assertWithinBudget(LoginMetrics.RequestType.SSO, "ssoAllocationBudget", bytes);
+    }
+
+    /**
+     * Checks the allocation of a request that checks a username and password.
+     * 
+     * @throws Exception if the servlet fails
+     */
+    @Test
+    public void testLoginRequestWithinBudget() throws Exception {
+        long bytes = measure(null, USERNAME, PASSWORD);
+        assertWithinBudget(LoginMetrics.RequestType.LOGIN, "loginAllocationBudget", bytes);
+    }
+
+    /**
+     * Runs requests through the servlet and measures the bytes each allocates.
+     * 
+     * @param sso       SSO cookie to send, or null
+     * @param username  username to submit, or null
+     * @param password  password to submit, or null
+     * @return  the median allocation of the measured requests, so a regression in most requests
+     *          fails the test while a single outlier doesn't
+     * @throws Exception if the servlet fails
+     */
+    private long measure(Cookie sso, String username, String password) throws Exception {
+        long[] measured = new long[MEASURED_REQUESTS];
+        for (int i = 0; i < WARM_UP_REQUESTS + MEASURED_REQUESTS; ++i) {
+            StubHandler request = newRequest(sso);
+            if (username != null) {
+                request.parameters.put("j_username", username);
+                request.parameters.put("j_password", password);
+            }
+            HttpServletRequest httpRequest = stub(HttpServletRequest.class, request);
+            HttpServletResponse httpResponse = stub(HttpServletResponse.class, new StubHandler());
+
+            long start = AllocationCounter.current();
+            servlet.service(httpRequest, httpResponse);
+            long bytes = AllocationCounter.since(start);
+
+            Assert.assertEquals(USERNAME, request.attributes.get(LoginHandler.PRINCIPAL_NAME_KEY));
+            if (i >= WARM_UP_REQUESTS) {
+                measured[i - WARM_UP_REQUESTS] = bytes;
+            }
+        }
+        Arrays.sort(measured);
+        return measured[MEASURED_REQUESTS / 2];
+    }
+
+    /**
+     * Checks that the servlet classified the measured requests as expected, and that they
+     * stayed within their budget.
+     * 
+     * @param type      expected kind of request
+     * @param budgetKey name of the budget in allocation-budget.properties
+     * @param bytes     median bytes allocated by a request
+     */
+    private void assertWithinBudget(LoginMetrics.RequestType type, String budgetKey, long bytes) {
+        LoginMetrics metrics = (LoginMetrics) contextHandler.attributes.get(LoginMetrics.DEFAULT_ATTRIBUTE);
+        Assert.assertTrue("No " + type + " requests were recorded",
+                metrics.getAllocation(type).getCount() >= MEASURED_REQUESTS);
+        long budget = Long.parseLong(budgets.getProperty(budgetKey).trim());
+        Assert.assertTrue(type + " requests allocated a median of " + bytes + " bytes, over the budget of "
+                + budget + " (" + budgetKey + " in allocation-budget.properties)", bytes <= budget);
+    }
+
+    /**
+     * Runs a request through the servlet.
+     * 
+     * @param request   the request
+     * @return  the response
+     * @throws Exception if the servlet fails
+     */
+    private StubHandler run(StubHandler request) throws Exception {
+        StubHandler response = new StubHandler();
+        servlet.service(stub(HttpServletRequest.class, request), stub(HttpServletResponse.class, response));
+        return response;
+    }
+
+    /**
+     * Creates a request bound to the stored login context.
+     * 
+     * @param sso   SSO cookie to send, or null
+     * @return  the request
+     */
+    private StubHandler newRequest(Cookie sso) {
+        Cookie key = new Cookie(HttpServletHelper.LOGIN_CTX_KEY_NAME, LOGIN_CONTEXT_KEY);
+        StubHandler request = new StubHandler();
+        request.returns.put("getCookies", (sso != null) ? new Cookie[] {key, sso} : new Cookie[] {key});
+        request.returns.put("getMethod", "POST");
+        request.returns.put("getRemoteAddr", "192.0.2.1");
+        request.returns.put("getContextPath", "/idp");
+        request.returns.put("getServletPath", "/Authn/Stateless");
+        request.returns.put("isSecure", Boolean.TRUE);
+        request.returns.put("getRequestDispatcher", dispatcher);
+        return request;
+    }
+
+    /**
+     * Creates a stub of a servlet API interface.
+     * 
+     * @param <T>       type of the interface
+     * @param type      the interface
+     * @param handler   answers calls to the stub
+     * @return  the stub
+     */
+    private static <T> T stub(Class<T> type, StubHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /**
+     * Answers calls to a stubbed servlet API interface from maps of attributes, parameters and
+     * canned return values. Any other call returns null, false or 0.
+     */
+    private static class StubHandler implements InvocationHandler {
+
+        /** Values returned by methods, by method name. */
+        private final Map<String, Object> returns = new HashMap<String, Object>();
+
+        /** Attributes set on the stub. */
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        /** Request parameters or init-params. */
+        private final Map<String, String> parameters = new HashMap<String, String>();
+
+        /** Cookies added to a response. */
+        private final List<Cookie> cookies = new ArrayList<Cookie>();
+
+        /** {@inheritDoc} */
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "stub";
+            } else if (name.equals("getAttribute")) {
+                return attributes.get(args[0]);
+            } else if (name.equals("setAttribute")) {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            } else if (name.equals("removeAttribute")) {
+                attributes.remove(args[0]);
+                return null;
+            } else if (name.equals("getParameter") || name.equals("getInitParameter")) {
+                return parameters.get(args[0]);
+            } else if (name.equals("addCookie")) {
+                cookies.add((Cookie) args[0]);
+                return null;
+            } else if (returns.containsKey(name)) {
+                return returns.get(name);
+            } else if (method.getReturnType() == boolean.class) {
+                return Boolean.FALSE;
+            } else if (method.getReturnType() == int.class) {
+                return Integer.valueOf(0);
+            } else if (method.getReturnType() == long.class) {
+                return Long.valueOf(0);
+            }
+            return null;
+        }
+    }
+}